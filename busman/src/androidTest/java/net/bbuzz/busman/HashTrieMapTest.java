@@ -0,0 +1,83 @@
+package net.bbuzz.busman;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class HashTrieMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        final HashTrieMap<String, Integer> map = HashTrieMap.<String, Integer>empty()
+                .put("Anna", 1).put("Ben", 2).put("Anna", 3);
+        assertEquals(2, map.size());
+        assertEquals(Integer.valueOf(3), map.get("Anna"));
+        assertNull(map.get("Carl"));
+        assertSame(map, map.remove("Carl"));
+        assertEquals(1, map.remove("Anna").size());
+        assertNull(map.remove("Anna").get("Anna"));
+    }
+
+    @Test
+    public void testOldMapUnchanged() {
+        final HashTrieMap<String, Integer> before = HashTrieMap.<String, Integer>empty()
+                .put("Anna", 1).put("Ben", 2);
+        final HashTrieMap<String, Integer> after = before.remove("Anna").put("Ben", 5);
+        assertEquals(Integer.valueOf(1), before.get("Anna"));
+        assertEquals(Integer.valueOf(2), before.get("Ben"));
+        assertNull(after.get("Anna"));
+        assertEquals(Integer.valueOf(5), after.get("Ben"));
+    }
+
+    @Test
+    public void testSameHashes() {
+        // "Aa" and "BB" have the same hashCode, and so do their concatenations
+        HashTrieMap<String, Integer> map = HashTrieMap.empty();
+        final String[] keys = {"AaAa", "AaBB", "BBAa", "BBBB", "Anna"};
+        for (int i = 0; i < keys.length; i++) {
+            map = map.put(keys[i], i);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(Integer.valueOf(i), map.get(keys[i]));
+        }
+        map = map.remove("AaBB").remove("BBBB").remove("Anna");
+        assertEquals(2, map.size());
+        assertEquals(Integer.valueOf(0), map.get("AaAa"));
+        assertEquals(Integer.valueOf(2), map.get("BBAa"));
+        assertNull(map.get("AaBB"));
+    }
+
+    @Test
+    public void testMatchesHashMap() {
+        final Random random = new Random(22);
+        final Map<String, Integer> expected = new HashMap<>();
+        HashTrieMap<String, Integer> map = HashTrieMap.empty();
+        for (int step = 0; step < 5000; step++) {
+            final String key = "rider" + random.nextInt(500);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.remove(key);
+            } else {
+                expected.put(key, step);
+                map = map.put(key, step);
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (int i = 0; i < 500; i++) {
+            final String key = "rider" + i;
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package net.bbuzz.busman;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class LinearRegexTest {
+
+    private static final String[] PATTERNS = {
+            "garth.*", ".*Mar 17.*", ".*Apr 0?1,.*", "^(anna|ben)$", "a|b|", "(?:ab)+c?",
+            "[a-c]{2,3}", "x{2}", "x{1,}", "[^\\d\\s]+", "\\w+@example\\.com", "\\Q.*\\E",
+            "(?i)Garth.*", "a*?b", "[]a]", "\\x41\\u0042", "(a|ab)(c|bcd)(d*)", "(a*)*b",
+            ".*(Sat|Sun), .* (0[6-9]|1[0-1]):.*", "[-a]", "[\\.x-]", "(?i)[^a]", "(?i)[^a-z]+",
+            "(?i)[^\\dB]+",
+    };
+
+    private static final String[] INPUTS = {
+            "", "a", "b", "ab", "abc", "abcd", "anna", "ben", "annaben", "garth@example.com",
+            "Garth@Example.com", "GARTH", "Sun, Mar 17, 2014 14:07", "Tue, Apr 1, 2014 08:15",
+            "Sat, May 4, 2014 07:30", "ababc", "xx", "xxx", "ccc", "abcabc", ".*", "AB", "aaab",
+            "]", "-", ".", "hello world", "abcdd", "A", "Ab", "Z9",
+    };
+
+    @Test
+    public void testMatchesLikeJavaRegex() {
+        for (final String pattern : PATTERNS) {
+            final Pattern expected = Pattern.compile(pattern);
+            final LinearRegex regex = LinearRegex.compile(pattern);
+            for (final String input : INPUTS) {
+                assertEquals(pattern + " on '" + input + "'",
+                        expected.matcher(input).matches(), regex.matches(input));
+            }
+        }
+    }
+
+    @Test
+    public void testIgnoreCaseNegatedClass() {
+        final LinearRegex regex = LinearRegex.compile("(?i)[^a]");
+        assertFalse(regex.matches("a"));
+        assertFalse(regex.matches("A"));
+        assertTrue(regex.matches("b"));
+    }
+
+    @Test
+    public void testUnsupportedRejected() {
+        final String[] patterns = {
+                "(a)\\1", "a(?=b)", "(?<=a)b", "(?<name>a)", "a++", "\\bword\\b", "\\p{L}",
+                "(unclosed", "*", "a{2", "[a", "[a-[b]]", "a)", "x{3,1}",
+        };
+        for (final String pattern : patterns) {
+            try {
+                LinearRegex.compile(pattern);
+                fail(pattern);
+            } catch (PatternSyntaxException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testPathologicalPatternIsLinear() {
+        final StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            input.append('a');
+        }
+        // exponential for a backtracking matcher
+        assertFalse(LinearRegex.compile("(a|aa)*(a*)*b").matches(input));
+    }
+}
@@ -0,0 +1,55 @@
+package net.bbuzz.busman;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ManifestAdapterTest {
+
+    private static final ManifestIndex MANIFEST = ManifestIndex.EMPTY
+            .add("Carl", 100).add("Anna", 200).add("Bea", 300).add("Ben", 400);
+
+    @Test
+    public void testMostRecentFirst() {
+        final ManifestAdapter adapter =
+                new ManifestAdapter(InstrumentationRegistry.getTargetContext());
+        adapter.update(MANIFEST, false, true);
+        assertEquals(4, adapter.getCount());
+        assertEquals("Ben", adapter.getItem(0).rider);
+        assertEquals("Carl", adapter.getItem(3).rider);
+        assertEquals(0, adapter.getSections().length);
+    }
+
+    @Test
+    public void testIdsFollowRiders() {
+        final ManifestAdapter adapter =
+                new ManifestAdapter(InstrumentationRegistry.getTargetContext());
+        adapter.update(MANIFEST, true, true);
+        final long annaId = adapter.getItemId(0);
+        adapter.update(MANIFEST.remove("Carl").add("Aaron", 500), true, true);
+        assertEquals("Anna", adapter.getItem(1).rider);
+        assertEquals(annaId, adapter.getItemId(1));
+    }
+
+    @Test
+    public void testSectionsByFirstLetter() {
+        final ManifestAdapter adapter =
+                new ManifestAdapter(InstrumentationRegistry.getTargetContext());
+        adapter.update(MANIFEST, true, true);
+        assertEquals(Arrays.asList("A", "B", "C"), Arrays.asList(adapter.getSections()));
+        assertEquals(1, adapter.getPositionForSection(1));
+        assertEquals(3, adapter.getPositionForSection(2));
+        assertEquals(0, adapter.getSectionForPosition(0));
+        assertEquals(1, adapter.getSectionForPosition(2));
+        assertEquals(2, adapter.getSectionForPosition(3));
+    }
+}
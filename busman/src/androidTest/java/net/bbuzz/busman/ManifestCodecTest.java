@@ -0,0 +1,85 @@
+package net.bbuzz.busman;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ManifestCodecTest {
+
+    private static final long NOW = 1500000000000L;
+
+    private static String rides(ManifestIndex manifest) {
+        final StringBuilder rides = new StringBuilder();
+        int boardingOrder = 0;
+        for (final Ride ride : manifest.toBoardingList()) {
+            rides.append(++boardingOrder).append(' ').append(ride.rider).append(' ')
+                    .append(ride.boardingTime).append(';');
+        }
+        return rides.toString();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final ManifestIndex manifest = ManifestIndex.EMPTY
+                .add("jadams@John Adams", NOW)
+                .add("jqa@John Quincy Adams", NOW + 60000)
+                .add("gw@George Washington", NOW - 5000)
+                .add("zoë@Zoë 🚌", NOW + 61000)
+                .add("", NOW + 62000)
+                .remove("jadams@John Adams");
+        final ManifestJournal.State state =
+                ManifestCodec.decode(ManifestCodec.encode(
+                        new ManifestJournal.State(false, manifest, 42)));
+        assertFalse(state.isAdding);
+        assertEquals(42, state.lastRecord);
+        assertEquals(rides(manifest), rides(state.manifest));
+        // riders boarding after the restore go after everyone restored
+        final ManifestIndex later = state.manifest.add("tjeff@Thomas Jefferson", NOW);
+        assertEquals(5, later.boardingOrder(later.get("tjeff@Thomas Jefferson")));
+    }
+
+    @Test
+    public void testSmallerThanText() {
+        ManifestIndex manifest = ManifestIndex.EMPTY;
+        int textLength = 0;
+        for (int i = 0; i < 50; i++) {
+            final String rider = "rider" + i + "@Rider Number " + i;
+            manifest = manifest.add(rider, NOW + i * 1000);
+            textLength += (rider + "|" + (i + 1) + "|" + (NOW + i * 1000) + "\n").length();
+        }
+        final byte[] bytes =
+                ManifestCodec.encode(new ManifestJournal.State(true, manifest, 0));
+        assertTrue(bytes.length * 3 < textLength * 2);
+    }
+
+    @Test
+    public void testBadBytesRejected() {
+        final byte[] bytes = ManifestCodec.encode(new ManifestJournal.State(true,
+                ManifestIndex.EMPTY.add("Anna", NOW).add("Ben", NOW), 0));
+        final byte[][] bad = {
+                new byte[0],
+                Arrays.copyOf(bytes, bytes.length - 1),
+                {(byte) (ManifestCodec.VERSION + 1), 0, 0, 0},
+        };
+        for (final byte[] badBytes : bad) {
+            try {
+                ManifestCodec.decode(badBytes);
+                fail("decoded " + Arrays.toString(badBytes));
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+}
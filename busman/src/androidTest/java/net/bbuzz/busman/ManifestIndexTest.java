@@ -0,0 +1,108 @@
+package net.bbuzz.busman;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ManifestIndexTest {
+
+    private static List<String> riders(List<Ride> rides) {
+        final List<String> riders = new ArrayList<>(rides.size());
+        for (final Ride ride : rides) {
+            riders.add(ride.rider);
+        }
+        return riders;
+    }
+
+    @Test
+    public void testBothOrders() {
+        final ManifestIndex manifest = ManifestIndex.EMPTY
+                .add("Carl", 100).add("Anna", 200).add("Ben", 300);
+        assertEquals(3, manifest.size());
+        assertEquals("[Anna, Ben, Carl]", riders(manifest.toNameList()).toString());
+        assertEquals("[Carl, Anna, Ben]", riders(manifest.toBoardingList()).toString());
+        assertEquals(2, manifest.boardingOrder(manifest.get("Anna")));
+        assertEquals(1, manifest.nameIndex("Ben"));
+        assertEquals(-1, manifest.nameIndex("Dave"));
+        assertEquals("Ben", manifest.inBoardingOrder(2).rider);
+        assertEquals(200, manifest.get("Anna").boardingTime);
+        assertSame(manifest, manifest.add("Anna", 400));
+    }
+
+    @Test
+    public void testLaterRidersMoveUp() {
+        final ManifestIndex manifest = ManifestIndex.EMPTY
+                .add("Carl", 100).add("Anna", 200).add("Ben", 300).remove("Carl");
+        assertEquals(1, manifest.boardingOrder(manifest.get("Anna")));
+        assertEquals(2, manifest.boardingOrder(manifest.get("Ben")));
+        assertNull(manifest.get("Carl"));
+        final ManifestIndex reboarded = manifest.add("Carl", 400);
+        assertEquals(3, reboarded.boardingOrder(reboarded.get("Carl")));
+    }
+
+    @Test
+    public void testOldIndexUnchanged() {
+        final ManifestIndex before = ManifestIndex.EMPTY.add("Anna", 100).add("Ben", 200);
+        final ManifestIndex after = before.remove("Anna").add("Carl", 300);
+        assertEquals("[Anna, Ben]", riders(before.toBoardingList()).toString());
+        assertEquals("[Ben, Carl]", riders(after.toBoardingList()).toString());
+        assertTrue(before.contains("Anna"));
+        assertFalse(after.contains("Anna"));
+    }
+
+    @Test
+    public void testPackedRidesRestored() {
+        ManifestIndex restored = ManifestIndex.EMPTY
+                .add(new Ride("Carl|2|300")).add(new Ride("Ben|1|200"));
+        assertEquals("[Ben, Carl]", riders(restored.toBoardingList()).toString());
+        restored = restored.add("Dave", 400);
+        assertEquals(3, restored.boardingOrder(restored.get("Dave")));
+        assertEquals(300, restored.get("Carl").boardingTime);
+    }
+
+    @Test
+    public void testMatchesSimpleList() {
+        final Random random = new Random(18);
+        final List<String> boarded = new ArrayList<>();
+        ManifestIndex manifest = ManifestIndex.EMPTY;
+        for (int step = 0; step < 2000; step++) {
+            final String rider = "rider" + random.nextInt(100);
+            if (random.nextInt(3) == 0) {
+                boarded.remove(rider);
+                manifest = manifest.remove(rider);
+            } else {
+                if (!boarded.contains(rider)) {
+                    boarded.add(rider);
+                }
+                manifest = manifest.add(rider, step);
+            }
+            assertEquals(boarded.size(), manifest.size());
+        }
+        assertEquals(boarded, riders(manifest.toBoardingList()));
+        final List<String> sorted = new ArrayList<>(boarded);
+        Collections.sort(sorted);
+        assertEquals(sorted, riders(manifest.toNameList()));
+        for (int i = 0; i < boarded.size(); i++) {
+            final Ride ride = manifest.get(boarded.get(i));
+            assertEquals(i + 1, manifest.boardingOrder(ride));
+            assertEquals(ride, manifest.inBoardingOrder(i));
+            assertEquals(sorted.indexOf(ride.rider), manifest.nameIndex(ride.rider));
+            assertEquals(sorted.get(i), manifest.inNameOrder(i).rider);
+        }
+    }
+}
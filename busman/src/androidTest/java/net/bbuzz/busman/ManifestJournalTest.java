@@ -0,0 +1,169 @@
+package net.bbuzz.busman;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ManifestJournalTest {
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("ManifestJournalTest", "");
+        mDir.delete();
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private static String riders(ManifestJournal.State state) {
+        final List<String> riders = new ArrayList<>();
+        for (final Ride ride : state.manifest.toBoardingList()) {
+            riders.add(ride.rider);
+        }
+        return riders.toString();
+    }
+
+    private void write(String fileName, String contents) throws IOException {
+        final FileOutputStream out = new FileOutputStream(new File(mDir, fileName));
+        out.write(contents.getBytes("UTF-8"));
+        out.close();
+    }
+
+    private File journalFile() {
+        return new File(mDir, ManifestJournal.JOURNAL_FILE);
+    }
+
+    @Test
+    public void testChangesReplayed() {
+        final ManifestJournal journal = new ManifestJournal(mDir, 0);
+        journal.restore();
+        journal.sync();
+        journal.add("Anna", 100);
+        journal.add("Ben", 200);
+        journal.add("Carl", 300);
+        journal.setAdding(false);
+        journal.drop("Anna");
+        journal.sync();
+        assertTrue(journalFile().length() > 0);
+
+        final ManifestJournal.State state = new ManifestJournal(mDir, 0).restore();
+        assertEquals("[Ben, Carl]", riders(state));
+        assertFalse(state.isAdding);
+        assertEquals(300, state.manifest.get("Carl").boardingTime);
+        assertEquals(2, state.manifest.boardingOrder(state.manifest.get("Carl")));
+    }
+
+    @Test
+    public void testCompaction() {
+        final ManifestJournal journal = new ManifestJournal(mDir, 0);
+        journal.restore();
+        journal.add("Anna", 100);
+        journal.add("Ben", 200);
+        journal.clear();
+        journal.add("Carl", 300);
+        journal.compact();
+        journal.sync();
+        assertEquals(0, journalFile().length());
+        journal.add("Dave", 400);
+        journal.sync();
+
+        final ManifestJournal.State state = new ManifestJournal(mDir, 0).restore();
+        assertEquals("[Carl, Dave]", riders(state));
+        assertTrue(state.isAdding);
+    }
+
+    @Test
+    public void testBurstWrittenOnce() {
+        final ManifestJournal journal = new ManifestJournal(mDir, 10000);
+        journal.restore();
+        journal.sync();
+        assertEquals(1, journal.getWritesIssued());
+        journal.add("Anna", 100);
+        journal.add("Ben", 200);
+        journal.drop("Anna");
+        journal.sync();
+        assertEquals(2, journal.getWritesIssued());
+        assertEquals(2, journal.getChangesCoalesced());
+        assertTrue(journal.getMaxWriteNanos() >= journal.getAverageWriteNanos());
+        assertEquals("[Ben]", riders(new ManifestJournal(mDir, 0).restore()));
+    }
+
+    @Test
+    public void testPartialRecordIgnored() throws IOException {
+        write(ManifestJournal.JOURNAL_FILE, "1|A|100|Anna\n2|A|200|Ben\n3|D|An");
+        final ManifestJournal journal = new ManifestJournal(mDir, 0);
+        assertEquals("[Anna, Ben]", riders(journal.restore()));
+        journal.drop("Ben");
+        journal.sync();
+        assertEquals("[Anna]", riders(new ManifestJournal(mDir, 0).restore()));
+    }
+
+    @Test
+    public void testJournalNotReappliedOverItsSnapshot() throws IOException {
+        // as if the app died after writing the snapshot but before emptying the journal
+        final ManifestIndex manifest = ManifestIndex.EMPTY
+                .add("Ben", 200).add("Anna", 300).add("Carl", 400);
+        final FileOutputStream out =
+                new FileOutputStream(new File(mDir, ManifestJournal.SNAPSHOT_FILE));
+        out.write(ManifestCodec.encode(new ManifestJournal.State(true, manifest, 3)));
+        out.close();
+        write(ManifestJournal.JOURNAL_FILE, "1|D|Anna\n2|A|300|Anna\n3|A|400|Carl\n");
+        assertEquals("[Ben, Anna, Carl]", riders(new ManifestJournal(mDir, 0).restore()));
+    }
+
+    @Test
+    public void testFailedWriteRetried() throws Exception {
+        // the snapshot can't be written while its temp file's name is taken by a directory
+        final File blocker = new File(mDir, ManifestJournal.SNAPSHOT_FILE + ".tmp");
+        blocker.mkdir();
+        final ManifestJournal journal = new ManifestJournal(mDir, 0);
+        journal.restore();
+        journal.add("Anna", 100);
+        journal.sync();
+        assertFalse(new File(mDir, ManifestJournal.SNAPSHOT_FILE).exists());
+
+        blocker.delete();
+        for (int i = 0; i < 100 && journal.getWritesIssued() == 0; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals("[Anna]", riders(new ManifestJournal(mDir, 0).restore()));
+    }
+
+    @Test
+    public void testOldStateFileRead() throws IOException {
+        write(ManifestJournal.LEGACY_SNAPSHOT_FILE, "false\nAnna|1|100\nBen|2|200\n");
+        final ManifestJournal journal = new ManifestJournal(mDir, 0);
+        final ManifestJournal.State state = journal.restore();
+        assertEquals("[Anna, Ben]", riders(state));
+        assertFalse(state.isAdding);
+        journal.sync();
+        assertFalse(new File(mDir, ManifestJournal.LEGACY_SNAPSHOT_FILE).exists());
+        assertEquals("[Anna, Ben]", riders(new ManifestJournal(mDir, 0).restore()));
+    }
+}
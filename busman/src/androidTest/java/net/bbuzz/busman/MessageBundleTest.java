@@ -0,0 +1,145 @@
+package net.bbuzz.busman;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class MessageBundleTest {
+    private File mBundleFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mBundleFile = File.createTempFile("MessageBundleTest", MessageBundle.BUNDLE_FILE_SUFFIX);
+    }
+
+    @After
+    public void tearDown() {
+        mBundleFile.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final RiderMessages riderMessages = new RiderMessages();
+        final InputStream inputStream =
+                getClass().getClassLoader().getResourceAsStream("TestMessages.json");
+        riderMessages.parseJsonStream(inputStream);
+        final RiderMessages.MessageSet messages = riderMessages.getMessages();
+
+        MessageBundle.write(mBundleFile, 1234L, new MessageBundle.Contents(
+                messages.welcomeMessages, messages.alreadyWelcomedMessages,
+                messages.returnMessages, messages.alreadyReturnedMessages, messages.goMessages));
+        final MessageBundle.Contents contents = MessageBundle.read(mBundleFile, 1234L);
+
+        assertNotNull(contents);
+        assertEquals(2, contents.welcomeMessages.size());
+        assertEquals(".*Mar 17.*", contents.welcomeMessages.get(0).timeRegexp);
+        assertEquals(25, contents.welcomeMessages.get(0).weight);
+        assertEquals(2, contents.alreadyWelcomedMessages.size());
+        assertEquals("garth.*", contents.returnMessages.get(0).idRegexp);
+        assertEquals(3, contents.alreadyReturnedMessages.size());
+        assertEquals("f", contents.alreadyReturnedMessages.get(2).dejaVu);
+        assertEquals(3, contents.goMessages.size());
+        assertEquals("Hooray! We're all aboard. Time to go!", contents.goMessages.get(2).message);
+    }
+
+    @Test
+    public void testWhenClauseRoundTrip() throws Exception {
+        final RiderMessages.WelcomeMessage welcome = new RiderMessages.WelcomeMessage();
+        welcome.message = "Morning %s";
+        welcome.when = new RiderMessages.WhenClause();
+        welcome.when.daysOfWeek = "Mon,Tue";
+        welcome.when.fromTime = "06:00";
+        welcome.when.day = 4;
+        final RiderMessages.GoMessage go = new RiderMessages.GoMessage();
+        MessageBundle.write(mBundleFile, 1L, new MessageBundle.Contents(
+                Arrays.asList(welcome), new ArrayList<RiderMessages.WelcomeMessage>(),
+                new ArrayList<RiderMessages.ReturnMessage>(),
+                new ArrayList<RiderMessages.AlreadyReturnedMessage>(), Arrays.asList(go)));
+
+        final MessageBundle.Contents contents = MessageBundle.read(mBundleFile, 1L);
+
+        final RiderMessages.WhenClause when = contents.welcomeMessages.get(0).when;
+        assertEquals("Mon,Tue", when.daysOfWeek);
+        assertEquals("06:00", when.fromTime);
+        assertEquals("", when.toTime);
+        assertEquals(4, when.day);
+        assertNull(contents.goMessages.get(0).when);
+    }
+
+    @Test
+    public void testCompiledPatternsBundled() throws Exception {
+        final String json = "{\"welcomeMessages\": ["
+                + "{\"idRegexp\": \"(unclosed\", \"message\": \"Bad %s\"},"
+                + "{\"idRegexp\": \"(?i)[^\\\\d]nn.*\", \"message\": \"Good %s\"},"
+                + "{\"idRegexp\": \"ben\", \"message\": \"%d\"}],"
+                + "\"goMessages\": [{\"timeRegexp\": \".*Mar 17.*\", \"message\": \"Go\"}]}";
+        final RiderMessages riderMessages = new RiderMessages();
+        final String summary = riderMessages.parseJsonStream(
+                new ByteArrayInputStream(json.getBytes("UTF-8")));
+        MessageBundle.write(mBundleFile, 1L, riderMessages.getMessages().bundleContents());
+
+        final MessageBundle.Contents contents = MessageBundle.read(mBundleFile, 1L);
+
+        // only the message that compiled is bundled, and the rejections are remembered
+        assertEquals(1, contents.welcomeMessages.size());
+        assertEquals("Good %s", contents.welcomeMessages.get(0).message);
+        assertTrue(contents.rejected.contains("Rejected welcomeMessages[0]"));
+        assertTrue(contents.rejected.contains("Rejected welcomeMessages[2]"));
+        assertTrue(summary.startsWith(contents.rejected));
+        assertEquals(2, contents.patterns.size());
+        final LinearRegex id = contents.patterns.get("(?i)[^\\d]nn.*");
+        assertTrue(id.matches("ANNA"));
+        assertFalse(id.matches("1nna"));
+        assertTrue(contents.patterns.get(".*Mar 17.*").matches("Mon, Mar 17, 2014 14:07"));
+
+        // compiling from the bundle uses its patterns and reports the same rejections
+        final StringBuilder reloaded = new StringBuilder();
+        final RiderMessages.MessageSet messages =
+                RiderMessages.MessageSet.compile(contents, reloaded);
+        assertEquals(contents.rejected, reloaded.toString());
+        assertSame(id, messages.welcomeRules.rules.get(0).idPattern);
+    }
+
+    @Test
+    public void testStaleOrDamagedBundleIgnored() throws Exception {
+        final RiderMessages.GoMessage go = new RiderMessages.GoMessage();
+        go.message = "Go, go, go \u00e9t\u00e9";
+        MessageBundle.write(mBundleFile, 1234L, new MessageBundle.Contents(
+                Arrays.<RiderMessages.WelcomeMessage>asList(),
+                Arrays.<RiderMessages.WelcomeMessage>asList(),
+                Arrays.<RiderMessages.ReturnMessage>asList(),
+                Arrays.<RiderMessages.AlreadyReturnedMessage>asList(),
+                Arrays.asList(go)));
+        assertEquals(go.message, MessageBundle.read(mBundleFile, 1234L).goMessages.get(0).message);
+
+        assertNull(MessageBundle.read(mBundleFile, 4321L));
+
+        final FileOutputStream truncate = new FileOutputStream(mBundleFile, true);
+        truncate.getChannel().truncate(mBundleFile.length() - 3);
+        truncate.close();
+        assertNull(MessageBundle.read(mBundleFile, 1234L));
+
+        assertNull(MessageBundle.read(new File(mBundleFile.getPath() + ".missing"), 1234L));
+    }
+}
@@ -0,0 +1,64 @@
+package net.bbuzz.busman;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class MessageTemplateTest {
+
+    @Test
+    public void testRenderMatchesStringFormat() {
+        final String[] messages = {
+                "Hi %s",
+                "%s, welcome aboard",
+                "No name here",
+                "%1$s! %1$s! 100%% %1$S",
+                "Hey %S",
+                "",
+        };
+        for (final String message : messages) {
+            assertEquals(message, String.format(message, "Anna"),
+                    MessageTemplate.compile(message).render("Anna"));
+        }
+    }
+
+    @Test
+    public void testLocaleExtracted() {
+        final MessageTemplate template = MessageTemplate.compile("!locale(en_GB)Cheerio %s");
+        assertEquals(new Locale("en_GB"), template.locale);
+        assertEquals("Cheerio Anna", template.render("Anna"));
+        assertEquals(1, template.slotCount());
+
+        assertNull(MessageTemplate.compile("Bye %s").locale);
+    }
+
+    @Test
+    public void testLiteralIgnoresFormats() {
+        final MessageTemplate template = MessageTemplate.compileLiteral("100% aboard!locale(fr)");
+        assertEquals(new Locale("fr"), template.locale);
+        assertEquals("100% aboard", template.render(null));
+    }
+
+    @Test
+    public void testMalformedRejected() {
+        final String[] messages = {"%d riders", "%s and %s", "50%", "%1$d", "%-5s"};
+        for (final String message : messages) {
+            try {
+                MessageTemplate.compile(message);
+                fail(message);
+            } catch (MessageTemplate.MalformedTemplateException e) {
+                // expected
+            }
+        }
+    }
+}
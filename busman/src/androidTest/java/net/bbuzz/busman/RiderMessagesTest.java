@@ -7,10 +7,24 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
 
 import static net.bbuzz.busman.RiderMessages.stripLeadingZeroInTimeRegexp;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(AndroidJUnit4.class)
 @SmallTest
@@ -70,6 +84,269 @@ public class RiderMessagesTest {
         assertEquals(RiderMessages.DEFAULT_WEIGHT, goMessage.weight);
     }
 
+    @Test
+    public void testBadRegexpRejectedAtLoad() throws Exception {
+        final String json = "{\"welcomeMessages\": ["
+                + "{\"idRegexp\": \"(unclosed\", \"message\": \"Bad %s\"},"
+                + "{\"timeRegexp\": \".*Mar 17.*\", \"message\": \"Good %s\"}],"
+                + "\"goMessages\": [{\"timeRegexp\": \"*\", \"message\": \"Go\"}]}";
+
+        final String summary = riderMessages.parseJsonStream(
+                new ByteArrayInputStream(json.getBytes("UTF-8")));
+
+        assertTrue(summary, summary.contains("Rejected welcomeMessages[0]"));
+        assertTrue(summary, summary.contains("Rejected goMessages[0]"));
+        assertEquals(2, riderMessages.getWelcomeMessages().size());
+        assertEquals(1, riderMessages.getWelcomeRules().size());
+        assertEquals("Good %s", riderMessages.getWelcomeRules().get(0).template.message);
+        assertEquals(0, riderMessages.getGoRules().size());
+        assertNull(riderMessages.getGoTemplate(time(2014, Calendar.MARCH, 17, 14, 7, 0)));
+    }
+
+    @Test
+    public void testBadTemplateRejectedAtLoad() throws Exception {
+        final String json = "{\"welcomeMessages\": ["
+                + "{\"message\": \"%d riders, %s\"},"
+                + "{\"message\": \"!locale(fr)Bonjour %s\"}]}";
+
+        final String summary = riderMessages.parseJsonStream(
+                new ByteArrayInputStream(json.getBytes("UTF-8")));
+
+        assertTrue(summary, summary.contains("Rejected welcomeMessages[0]"));
+        assertEquals(1, riderMessages.getWelcomeRules().size());
+        final MessageTemplate template = riderMessages.getWelcomeTemplate("anyone");
+        assertEquals(new Locale("fr"), template.locale);
+        assertEquals("Bonjour Anna", template.render("Anna"));
+    }
+
+    @Test
+    public void testLiteralIdsRecognized() {
+        assertArrayEquals(new String[] {"anna"}, RiderMessages.Rule.literalAlternatives("anna"));
+        assertArrayEquals(new String[] {"ben", "carl@example.com"},
+                RiderMessages.Rule.literalAlternatives("^(?:ben|carl@example\\.com)$"));
+        assertArrayEquals(new String[] {"ben", "carl"},
+                RiderMessages.Rule.literalAlternatives("(ben|carl)"));
+        assertNull(RiderMessages.Rule.literalAlternatives("garth.*"));
+        assertNull(RiderMessages.Rule.literalAlternatives("a|"));
+        assertNull(RiderMessages.Rule.literalAlternatives("(a)|(b)"));
+        assertNull(RiderMessages.Rule.literalAlternatives("\\d+"));
+    }
+
+    @Test
+    public void testLiteralIdRulesFoundByLookup() {
+        final List<RiderMessages.Rule> rules = new ArrayList<>();
+        rules.add(rule("anna"));
+        rules.add(rule("^(ben|carl)$"));
+        rules.add(rule("d.*"));
+        rules.add(rule(""));
+        rules.add(rule("carl|anna|carl"));
+        final RiderMessages.RuleSet ruleSet = new RiderMessages.RuleSet(rules);
+
+        assertEquals(1, ruleSet.getTable().patternRuleCount());
+        assertArrayEquals(new int[] {0, 3, 4}, ruleSet.riderMatches("anna"));
+        assertArrayEquals(new int[] {1, 3}, ruleSet.riderMatches("ben"));
+        assertArrayEquals(new int[] {1, 3, 4}, ruleSet.riderMatches("carl"));
+        assertArrayEquals(new int[] {2, 3}, ruleSet.riderMatches("dave"));
+        assertArrayEquals(new int[] {3}, ruleSet.riderMatches("annabel"));
+    }
+
+    private static RiderMessages.Rule rule(String idRegexp) {
+        return new RiderMessages.Rule(idRegexp, "", null, "", "",
+                MessageTemplate.compile("Hi %s"), RiderMessages.DEFAULT_WEIGHT);
+    }
+
+    @Test
+    public void testWhenClauseSelectsByCalendar() throws Exception {
+        final String json = "{\"goMessages\": ["
+                + "{\"when\": {\"daysOfWeek\": \"Sat,Sun\"}, \"message\": \"Weekend\"},"
+                + "{\"when\": {\"month\": 3, \"day\": 17, \"fromTime\": \"15:00\"},"
+                + " \"message\": \"Paddy\"},"
+                + "{\"when\": {\"fromDate\": \"2014-13-01\"}, \"message\": \"Bad\"}]}";
+
+        final String summary = riderMessages.parseJsonStream(
+                new ByteArrayInputStream(json.getBytes("UTF-8")));
+
+        assertTrue(summary, summary.contains("Rejected goMessages[2]"));
+        assertEquals(2, riderMessages.getGoRules().size());
+        // March 15, 2014 was a Saturday, and March 17th a Monday
+        assertEquals("Weekend",
+                riderMessages.getGoTemplate(time(2014, Calendar.MARCH, 15, 8, 0, 0)).message);
+        assertNull(riderMessages.getGoTemplate(time(2014, Calendar.MARCH, 17, 14, 59, 0)));
+        assertEquals("Paddy",
+                riderMessages.getGoTemplate(time(2014, Calendar.MARCH, 17, 15, 0, 0)).message);
+    }
+
+    @Test
+    public void testTimeMatchesComputedOncePerMinute() throws Exception {
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("TestMessages.json");
+        riderMessages.parseJsonStream(inputStream);
+        final RiderMessages.RuleSet goRules = riderMessages.getGoRuleSet();
+
+        final RiderMessages.TimeMatches first =
+                goRules.timeMatches(time(2014, Calendar.APRIL, 1, 8, 15, 5));
+        assertSame(first, goRules.timeMatches(time(2014, Calendar.APRIL, 1, 8, 15, 59)));
+        assertArrayEquals(new int[] {0, 2}, first.ruleIndexes);
+        assertEquals(10010, first.picker.totalWeight);
+
+        final RiderMessages.TimeMatches next =
+                goRules.timeMatches(time(2014, Calendar.APRIL, 1, 8, 16, 0));
+        assertNotSame(first, next);
+        assertArrayEquals(new int[] {0, 2}, next.ruleIndexes);
+
+        final RiderMessages.TimeMatches otherDay =
+                goRules.timeMatches(time(2014, Calendar.MAY, 4, 8, 16, 0));
+        assertArrayEquals(new int[] {1, 2}, otherDay.ruleIndexes);
+        assertEquals(20, otherDay.picker.totalWeight);
+    }
+
+    @Test
+    public void testRiderMatchesCachedUntilReload() throws Exception {
+        riderMessages.parseJsonStream(
+                getClass().getClassLoader().getResourceAsStream("TestMessages.json"));
+        final RiderMessages.RuleSet returnRules = riderMessages.getReturnRuleSet();
+
+        final RuleTable table = returnRules.getTable();
+        final long[] garth = table.idBits("garth@example.com");
+        assertArrayEquals(new int[] {0, 1}, returnRules.riderMatches("garth@example.com"));
+        assertSame(garth, table.idBits("garth@example.com"));
+        assertArrayEquals(new int[] {1}, returnRules.riderMatches("wayne@example.com"));
+        assertArrayEquals(new int[] {1}, returnRules.candidates("garth@example.com",
+                time(2014, Calendar.MAY, 4, 8, 0, 0), false, false).values());
+        assertArrayEquals(new int[] {0, 1}, returnRules.candidates("garth@example.com",
+                time(2014, Calendar.APRIL, 1, 8, 0, 0), false, false).values());
+
+        for (int i = 0; i < 2 * RuleTable.MAX_CACHED_RIDERS; i++) {
+            returnRules.riderMatches("rider" + i);
+        }
+        assertTrue(table.cachedRiderCount() <= RuleTable.MAX_CACHED_RIDERS);
+
+        riderMessages.parseJsonStream(
+                getClass().getClassLoader().getResourceAsStream("TestMessages.json"));
+        final RiderMessages.RuleSet reloadedRules = riderMessages.getReturnRuleSet();
+        assertNotSame(returnRules, reloadedRules);
+        // the new rules are warmed up for the riders seen before the reload
+        assertEquals(table.cachedRiderCount(), reloadedRules.getTable().cachedRiderCount());
+    }
+
+    @Test
+    public void testReloadSwapsWholeMessageSet() throws Exception {
+        riderMessages.parseJsonStream(
+                getClass().getClassLoader().getResourceAsStream("TestMessages.json"));
+        final RiderMessages.MessageSet loaded = riderMessages.getMessages();
+
+        final String truncated = "{\"welcomeMessages\": [{\"message\": \"Hi %s\"}], "
+                + "\"goMessages\": [";
+        riderMessages.parseJsonStream(new ByteArrayInputStream(truncated.getBytes("UTF-8")));
+        assertSame(loaded, riderMessages.getMessages());
+        assertEquals(2, riderMessages.getWelcomeMessages().size());
+
+        final String replacement = "{\"welcomeMessages\": [{\"message\": \"Yo %s\"}]}";
+        riderMessages.parseJsonStream(new ByteArrayInputStream(replacement.getBytes("UTF-8")));
+        assertNotSame(loaded, riderMessages.getMessages());
+        assertEquals(1, riderMessages.getWelcomeMessages().size());
+        assertEquals(0, riderMessages.getGoMessages().size());
+        assertEquals("Yo Anna", riderMessages.getWelcomeTemplate("anyone").render("Anna"));
+    }
+
+    @Test
+    public void testSelectionNeverRepeatsLatestMessage() throws Exception {
+        riderMessages.parseJsonStream(
+                getClass().getClassLoader().getResourceAsStream("TestMessages.json"));
+
+        // on May 4th, only one of garth's return messages matches
+        final long may4 = time(2014, Calendar.MAY, 4, 8, 0, 0);
+        final RiderMessages.RuleSet returnRules = riderMessages.getReturnRuleSet();
+        final WeightedPicker candidates =
+                returnRules.candidates("garth@example.com", may4, false, false);
+        assertEquals("heading home %s",
+                returnRules.pickTemplate(candidates, new Random(1)).message);
+        assertNull(returnRules.pickTemplate(candidates, new Random(1)));
+        assertEquals("heading home %s",
+                returnRules.pickTemplate(candidates, new Random(1)).message);
+    }
+
+    @Test
+    public void testLocalesCollectedAtLoad() throws Exception {
+        final String messages = "{\"welcomeMessages\": [{\"message\": \"Hi %s\"}, "
+                + "{\"message\": \"!locale(fr)Salut %s\"}], "
+                + "\"goMessages\": [{\"message\": \"!locale(de)Los geht's\"}, "
+                + "{\"message\": \"!locale(fr)Allons-y\"}]}";
+        riderMessages.parseJsonStream(new ByteArrayInputStream(messages.getBytes("UTF-8")));
+        assertEquals(new HashSet<>(Arrays.asList(new Locale("fr"), new Locale("de"))),
+                riderMessages.getLocales());
+    }
+
+    @Test
+    public void testPreparedMessagesTakenOnce() throws Exception {
+        final String messages = "{\"welcomeMessages\": [{\"message\": \"Yo %s\"}]}";
+        riderMessages.parseJsonStream(new ByteArrayInputStream(messages.getBytes("UTF-8")));
+        final long now = time(2014, Calendar.MAY, 4, 8, 0, 10);
+        riderMessages.prepare(RiderMessages.PREPARED_WELCOME, "Anna [anna]", "anna", "Anna", now);
+        riderMessages.prepare(RiderMessages.PREPARED_WELCOME, "Ben [ben]", "ben", "Ben", now);
+
+        final RiderMessages.PreparedMessage prepared =
+                riderMessages.takePrepared(RiderMessages.PREPARED_WELCOME, "Anna [anna]", now);
+        assertEquals("Yo Anna", prepared.text);
+        assertNull(riderMessages.takePrepared(RiderMessages.PREPARED_WELCOME, "Anna [anna]", now));
+        assertNull(riderMessages.takePrepared(RiderMessages.PREPARED_RETURN, "Anna [anna]", now));
+        // Ben's was picked before Anna's was said, and would repeat it
+        assertNull(riderMessages.takePrepared(RiderMessages.PREPARED_WELCOME, "Ben [ben]", now));
+    }
+
+    @Test
+    public void testPreparedMessagesGoStale() throws Exception {
+        final String messages = "{\"returnMessages\": [{\"message\": \"Bye %s\"}, "
+                + "{\"message\": \"Later %s\"}]}";
+        riderMessages.parseJsonStream(new ByteArrayInputStream(messages.getBytes("UTF-8")));
+        final long now = time(2014, Calendar.MAY, 4, 8, 0, 59);
+        riderMessages.prepare(RiderMessages.PREPARED_RETURN, "Anna [anna]", "anna", "Anna", now);
+        assertNull(riderMessages.takePrepared(RiderMessages.PREPARED_RETURN, "Anna [anna]",
+                now + 1000));
+
+        riderMessages.prepare(RiderMessages.PREPARED_RETURN, "Anna [anna]", "anna", "Anna", now);
+        riderMessages.parseJsonStream(new ByteArrayInputStream(messages.getBytes("UTF-8")));
+        assertNull(riderMessages.takePrepared(RiderMessages.PREPARED_RETURN, "Anna [anna]", now));
+
+        riderMessages.prepare(RiderMessages.PREPARED_RETURN, "Anna [anna]", "anna", "Anna", now);
+        assertTrue(riderMessages.takePrepared(RiderMessages.PREPARED_RETURN, "Anna [anna]", now)
+                .text.endsWith(" Anna"));
+    }
+
+    @Test
+    public void testPreparedMessagesKeptWhileGood() throws Exception {
+        final String messages = "{\"returnMessages\": ["
+                + "{\"message\": \"Bye %s\", \"when\": {\"toTime\": \"08:00\"}}, "
+                + "{\"message\": \"Later %s\", \"when\": {\"toTime\": \"08:01\"}}]}";
+        riderMessages.parseJsonStream(new ByteArrayInputStream(messages.getBytes("UTF-8")));
+        final long now = time(2014, Calendar.MAY, 4, 8, 0, 10);
+        final String text = riderMessages.prepare(RiderMessages.PREPARED_RETURN, "Anna [anna]",
+                "anna", "Anna", now).text;
+        for (int i = 0; i < 20; i++) {
+            final RiderMessages.PreparedMessage again = riderMessages.prepare(
+                    RiderMessages.PREPARED_RETURN, "Anna [anna]", "anna", "Anna", now);
+            assertEquals(text, again.text);
+            assertFalse(again.isNewPick);
+        }
+        // carried into the next minute only if its rule still matches
+        final String nextText = riderMessages.prepare(RiderMessages.PREPARED_RETURN,
+                "Anna [anna]", "anna", "Anna", now + 60000).text;
+        assertEquals(text.startsWith("Later") ? text : "Later Anna", nextText);
+
+        riderMessages.prepare(RiderMessages.PREPARED_RETURN, "Ben [ben]", "ben", "Ben", now);
+        riderMessages.dropStalePrepared(now + 60000);
+        assertNull(riderMessages.takePrepared(RiderMessages.PREPARED_RETURN, "Ben [ben]",
+                now + 60000));
+        assertEquals("Later Anna", riderMessages.takePrepared(RiderMessages.PREPARED_RETURN,
+                "Anna [anna]", now + 60000).text);
+    }
+
+    private static long time(int year, int month, int day, int hour, int minute, int second) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month, day, hour, minute, second);
+        return calendar.getTimeInMillis();
+    }
+
     @Test
     public void testReadStripLeadingZeroInTimeRegexp() throws Exception {
         assertEquals("Jun 3, 1955", stripLeadingZeroInTimeRegexp("Jun 03, 1955"));
@@ -0,0 +1,51 @@
+package net.bbuzz.busman;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class RiderRegistryTest {
+
+    @Test
+    public void testRidersInternedOnce() throws Exception {
+        final RiderRegistry registry = new RiderRegistry();
+        final RiderRegistry.Rider anna = registry.intern("Anna Smith [anna]");
+        assertSame(anna, registry.intern("Anna Smith [anna]"));
+        assertSame(anna, registry.internTag("anna@Anna Smith"));
+        assertSame(anna, registry.internTag("anna@Anna Smith"));
+        assertEquals("anna", anna.id);
+        assertEquals("Anna", anna.firstName);
+        assertEquals(0, anna.handle);
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void testBadKeyHasNoId() {
+        final RiderRegistry.Rider rider = new RiderRegistry().intern("Ben");
+        assertNull(rider.id);
+        assertEquals("Ben", rider.firstName);
+    }
+
+    @Test
+    public void testHandlesDense() {
+        final RiderRegistry registry = new RiderRegistry();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, registry.intern("Rider " + i + " [r" + i + "]").handle);
+        }
+        for (int i = 0; i < 1000; i++) {
+            final RiderRegistry.Rider rider = registry.intern("Rider " + i + " [r" + i + "]");
+            assertEquals(i, rider.handle);
+            assertSame(rider, registry.get(i));
+            assertEquals("r" + i, rider.id);
+        }
+        assertEquals(1000, registry.size());
+    }
+}
@@ -0,0 +1,59 @@
+package net.bbuzz.busman;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import net.bbuzz.busman.RiderMessages.Rule;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class RuleTableTest {
+
+    private static Rule rule(String idRegexp, String isLast, String dejaVu, int weight) {
+        return new Rule(idRegexp, "", null, isLast, dejaVu, MessageTemplate.compile("Hi %s"),
+                weight);
+    }
+
+    @Test
+    public void testCandidatesFilteredByEveryColumn() {
+        // enough rules that the categories straddle bitset words
+        final List<Rule> welcomes = new ArrayList<>();
+        for (int i = 0; i < 70; i++) {
+            welcomes.add(rule("rider" + i, "", "", 1));
+        }
+        final List<Rule> returns = new ArrayList<>();
+        returns.add(rule("", "t", "", 1));
+        returns.add(rule("", "f", "", 2));
+        returns.add(rule("", "", "", 4));
+        returns.add(rule("rider6.", "", "", 8));
+        final List<Rule> alreadyReturned = new ArrayList<>();
+        alreadyReturned.add(rule("", "", "t", 1));
+        alreadyReturned.add(rule("", "", "f", 2));
+        final RuleTable table = new RuleTable(Arrays.asList(welcomes, new ArrayList<Rule>(),
+                returns, alreadyReturned, new ArrayList<Rule>()));
+
+        assertArrayEquals(new int[] {65}, table.candidates(RuleTable.CATEGORY_WELCOME,
+                "rider65", 0, false, false).values());
+        assertArrayEquals(new int[] {0, 2, 3}, table.candidates(RuleTable.CATEGORY_RETURN,
+                "rider65", 0, true, false).values());
+        assertArrayEquals(new int[] {1, 2}, table.candidates(RuleTable.CATEGORY_RETURN,
+                "rider5", 0, false, false).values());
+        assertEquals(6, table.candidates(RuleTable.CATEGORY_RETURN, "rider5", 0, false, false)
+                .totalWeight);
+        assertArrayEquals(new int[] {0}, table.candidates(RuleTable.CATEGORY_ALREADY_RETURNED,
+                "rider5", 0, false, true).values());
+        assertArrayEquals(new int[0], table.candidates(RuleTable.CATEGORY_GO,
+                "rider5", 0, false, false).values());
+        assertEquals(1, table.patternRuleCount());
+    }
+}
@@ -0,0 +1,119 @@
+package net.bbuzz.busman;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SpeechCacheTest {
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("SpeechCacheTest", "");
+        mDir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    /**
+     * Write a clip the way the engine would, and tell the cache it's done
+     */
+    private void synthesize(SpeechCache cache, String text, int size) throws IOException {
+        final String name = SpeechCache.clipName(text, null);
+        final FileOutputStream out = new FileOutputStream(new File(mDir, name + ".part"));
+        out.write(new byte[size]);
+        out.close();
+        cache.onUtteranceCompleted(name);
+    }
+
+    @Test
+    public void testClipNames() {
+        assertEquals(SpeechCache.clipName("Hi Anna", null), SpeechCache.clipName("Hi Anna", null));
+        assertNotEquals(SpeechCache.clipName("Hi Anna", null),
+                SpeechCache.clipName("Hi Anna", Locale.FRENCH));
+        assertNotEquals(SpeechCache.clipName("Hi Anna", null),
+                SpeechCache.clipName("Hi Ben", null));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        final SpeechCache cache = new SpeechCache(mDir, 250);
+        synthesize(cache, "Bye Anna", 100);
+        synthesize(cache, "Bye Ben", 100);
+        assertNotNull(cache.get("Bye Anna", null));
+        synthesize(cache, "Bye Carl", 100);
+
+        assertNull(cache.get("Bye Ben", null));
+        assertFalse(new File(mDir, SpeechCache.clipName("Bye Ben", null)).exists());
+        assertNotNull(cache.get("Bye Anna", null));
+        assertNotNull(cache.get("Bye Carl", null));
+        assertEquals(200, cache.getTotalBytes());
+
+        cache.setBudget(150);
+        assertEquals(Arrays.asList(SpeechCache.clipName("Bye Carl", null)),
+                cache.getClipNames());
+    }
+
+    @Test
+    public void testFailedSynthesisIgnored() throws Exception {
+        final SpeechCache cache = new SpeechCache(mDir, 250);
+        synthesize(cache, "Bye Anna", 0);
+        assertNull(cache.get("Bye Anna", null));
+        assertEquals(0, cache.getTotalBytes());
+    }
+
+    @Test
+    public void testPlayOrderSavedBySynthesis() throws Exception {
+        final SpeechCache cache = new SpeechCache(mDir, 1000);
+        synthesize(cache, "Bye Anna", 100);
+        synthesize(cache, "Bye Ben", 100);
+        final File anna = new File(mDir, SpeechCache.clipName("Bye Anna", null));
+        anna.setLastModified(1000000);
+        new File(mDir, SpeechCache.clipName("Bye Ben", null)).setLastModified(2000000);
+        assertNotNull(cache.get("Bye Anna", null));
+        // a lookup doesn't touch the disk
+        assertEquals(1000000, anna.lastModified());
+        synthesize(cache, "Bye Carl", 100);
+        assertTrue(anna.lastModified() > 2000000);
+
+        final SpeechCache restarted = new SpeechCache(mDir, 250);
+        assertNull(restarted.get("Bye Ben", null));
+        assertNotNull(restarted.get("Bye Anna", null));
+    }
+
+    @Test
+    public void testClipsKeptAcrossRestarts() throws Exception {
+        synthesize(new SpeechCache(mDir, 250), "Bye Anna", 100);
+        final SpeechCache cache = new SpeechCache(mDir, 250);
+        assertNotNull(cache.get("Bye Anna", null));
+        assertEquals(100, cache.getTotalBytes());
+    }
+}
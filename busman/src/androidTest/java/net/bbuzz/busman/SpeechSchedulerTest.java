@@ -0,0 +1,178 @@
+package net.bbuzz.busman;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SpeechSchedulerTest {
+    private RecordingSpeechOutput mOutput;
+    private SpeechScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mOutput = new RecordingSpeechOutput(false);
+        mScheduler = new SpeechScheduler(mOutput, 3, 2000);
+        mScheduler.setCoalescedTemplate(SpeechScheduler.KIND_WELCOME,
+                MessageTemplate.compile("Welcome %s"));
+    }
+
+    private void welcome(String name, long time) {
+        mScheduler.add(new SpeechScheduler.Utterance(SpeechScheduler.PRIORITY_GREETING,
+                SpeechScheduler.KIND_WELCOME, "Hi " + name, null, name, time));
+    }
+
+    private void add(int priority, String text, long time) {
+        mScheduler.add(new SpeechScheduler.Utterance(priority, SpeechScheduler.KIND_OTHER, text,
+                null, null, time));
+    }
+
+    private void finishAll() {
+        while (mOutput.finish()) {
+            // keep going
+        }
+    }
+
+    @Test
+    public void testNothingCutOff() {
+        welcome("Anna", 0);
+        welcome("Ben", 5000);
+        assertEquals(Arrays.asList("Hi Anna"), mOutput.getTexts());
+        assertEquals(1, mScheduler.getQueueDepth());
+        finishAll();
+        assertEquals(Arrays.asList("Hi Anna", "Hi Ben"), mOutput.getTexts());
+        assertFalse(mScheduler.isSpeaking());
+    }
+
+    @Test
+    public void testWaitingWelcomesMerged() {
+        welcome("Anna", 0);
+        welcome("Ben", 500);
+        welcome("Carl", 1000);
+        welcome("Dave", 1500);
+        finishAll();
+        assertEquals(Arrays.asList("Hi Anna", "Welcome Ben, Carl and Dave"), mOutput.getTexts());
+        assertEquals(2, mScheduler.getCoalescedCount());
+        assertEquals(0, mScheduler.getDroppedCount());
+    }
+
+    @Test
+    public void testOnlyWelcomesInWindowMerged() {
+        welcome("Anna", 0);
+        welcome("Ben", 500);
+        welcome("Carl", 3000);
+        finishAll();
+        assertEquals(Arrays.asList("Hi Anna", "Hi Ben", "Hi Carl"), mOutput.getTexts());
+    }
+
+    @Test
+    public void testOtherLocalesNotMerged() {
+        welcome("Anna", 0);
+        welcome("Ben", 500);
+        mScheduler.add(new SpeechScheduler.Utterance(SpeechScheduler.PRIORITY_GREETING,
+                SpeechScheduler.KIND_WELCOME, "Salut Carl", Locale.FRENCH, "Carl", 600));
+        welcome("Dave", 700);
+        finishAll();
+        assertEquals(Arrays.asList("Hi Anna", "Welcome Ben and Dave", "Salut Carl"),
+                mOutput.getTexts());
+    }
+
+    @Test
+    public void testPriorities() {
+        welcome("Anna", 0);
+        welcome("Ben", 100);
+        add(SpeechScheduler.PRIORITY_WARNING, "Already here", 200);
+        add(SpeechScheduler.PRIORITY_GO, "Go", 300);
+        finishAll();
+        assertEquals(Arrays.asList("Hi Anna", "Go", "Already here", "Hi Ben"), mOutput.getTexts());
+        assertEquals(0, mOutput.getRecordings().get(0).pauseMs);
+        assertEquals(SpeechScheduler.GO_PAUSE_MS, mOutput.getRecordings().get(1).pauseMs);
+    }
+
+    private void goodbye(int kind, String text, String name, long time) {
+        mScheduler.add(new SpeechScheduler.Utterance(SpeechScheduler.PRIORITY_GREETING, kind,
+                text, null, name, time));
+    }
+
+    @Test
+    public void testGoAfterLastGoodbye() {
+        goodbye(SpeechScheduler.KIND_RETURN, "Bye Anna", "Anna", 0);
+        goodbye(SpeechScheduler.KIND_RETURN, "Bye Ben", "Ben", 100);
+        goodbye(SpeechScheduler.KIND_LAST_RETURN, "last one", "Carl", 200);
+        add(SpeechScheduler.PRIORITY_GO, "Time to go", 200);
+        finishAll();
+        assertEquals(Arrays.asList("Bye Anna", "Bye Ben", "last one", "Time to go"),
+                mOutput.getTexts());
+    }
+
+    @Test
+    public void testLastGoodbyeNotMerged() {
+        mScheduler.setCoalescedTemplate(SpeechScheduler.KIND_RETURN,
+                MessageTemplate.compile("Goodbye %s"));
+        goodbye(SpeechScheduler.KIND_RETURN, "Bye Anna", "Anna", 0);
+        goodbye(SpeechScheduler.KIND_RETURN, "Bye Ben", "Ben", 100);
+        goodbye(SpeechScheduler.KIND_RETURN, "Bye Carl", "Carl", 200);
+        goodbye(SpeechScheduler.KIND_LAST_RETURN, "Last off, Dave", "Dave", 300);
+        finishAll();
+        assertEquals(Arrays.asList("Bye Anna", "Goodbye Ben and Carl", "Last off, Dave"),
+                mOutput.getTexts());
+    }
+
+    @Test
+    public void testPreparedMessagesToOutput() throws Exception {
+        final RiderMessages riderMessages = new RiderMessages();
+        final String messages = "{\"welcomeMessages\": [{\"message\": \"Morning %s\"}]}";
+        riderMessages.parseJsonStream(new ByteArrayInputStream(messages.getBytes("UTF-8")));
+        final long now = System.currentTimeMillis();
+        riderMessages.prepare(RiderMessages.PREPARED_WELCOME, "Anna [anna]", "anna", "Anna", now);
+        final long tapNanos = System.nanoTime();
+
+        final RiderMessages.PreparedMessage prepared =
+                riderMessages.takePrepared(RiderMessages.PREPARED_WELCOME, "Anna [anna]", now);
+        mScheduler.add(new SpeechScheduler.Utterance(SpeechScheduler.PRIORITY_GREETING,
+                SpeechScheduler.KIND_WELCOME, prepared.text, prepared.locale, "Anna", now));
+        final RecordingSpeechOutput.Recording recording = mOutput.getRecordings().get(0);
+        assertEquals("Morning Anna", recording.text);
+        assertTrue(recording.timeNanos >= tapNanos);
+    }
+
+    @Test
+    public void testOutputFinishingAtOnce() {
+        mOutput = new RecordingSpeechOutput(true);
+        mScheduler = new SpeechScheduler(mOutput, 3, 2000);
+        welcome("Anna", 0);
+        welcome("Ben", 100);
+        assertFalse(mScheduler.isSpeaking());
+        assertEquals(Arrays.asList("Hi Anna", "Hi Ben"), mOutput.getTexts());
+    }
+
+    @Test
+    public void testLeastImportantDropped() {
+        add(SpeechScheduler.PRIORITY_WARNING, "Speaking", 0);
+        welcome("Anna", 100);
+        add(SpeechScheduler.PRIORITY_WARNING, "Warning 1", 200);
+        add(SpeechScheduler.PRIORITY_WARNING, "Warning 2", 300);
+        assertEquals(3, mScheduler.getQueueDepth());
+
+        add(SpeechScheduler.PRIORITY_GO, "Go", 400);
+        assertEquals(1, mScheduler.getDroppedCount());
+        welcome("Ben", 500);
+        assertEquals(2, mScheduler.getDroppedCount());
+        assertEquals(3, mScheduler.getMaxQueueDepth());
+
+        finishAll();
+        assertEquals(Arrays.asList("Speaking", "Go", "Warning 1", "Warning 2"), mOutput.getTexts());
+    }
+}
@@ -0,0 +1,75 @@
+package net.bbuzz.busman;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class TapFilterTest {
+
+    private static final long NOW = 1000000;
+
+    @Test
+    public void testRepeatIgnored() {
+        final TapFilter filter = new TapFilter(2);
+        assertFalse(filter.isRepeat(0, true, NOW));
+        assertTrue(filter.isRepeat(0, true, NOW + 300));
+        assertTrue(filter.isRepeat(0, true, NOW + 2000));
+        // another rider, or the same one the other way, isn't a repeat
+        assertFalse(filter.isRepeat(1, true, NOW + 2000));
+        assertFalse(filter.isRepeat(0, false, NOW + 2000));
+        assertEquals(2, filter.getSuppressedReads());
+    }
+
+    @Test
+    public void testWindowEnds() {
+        final TapFilter filter = new TapFilter(2);
+        assertFalse(filter.isRepeat(0, true, NOW));
+        assertFalse(filter.isRepeat(0, true, NOW + 3000));
+        // long after, when the ring has come round to the same bucket again
+        assertFalse(filter.isRepeat(0, true,
+                NOW + 3000 + 1000 * (TapFilter.MAX_WINDOW_SECONDS + 1)));
+        assertEquals(0, filter.getSuppressedReads());
+    }
+
+    @Test
+    public void testTagLeftOnPhone() {
+        final TapFilter filter = new TapFilter(2);
+        assertFalse(filter.isRepeat(0, true, NOW));
+        for (long ms = 500; ms < 10000; ms += 500) {
+            assertTrue(filter.isRepeat(0, true, NOW + ms));
+        }
+    }
+
+    @Test
+    public void testClearAndDisable() {
+        final TapFilter filter = new TapFilter(2);
+        assertFalse(filter.isRepeat(0, true, NOW));
+        filter.clear();
+        assertFalse(filter.isRepeat(0, true, NOW));
+        filter.setWindowSeconds(0);
+        assertFalse(filter.isRepeat(0, true, NOW));
+        for (int rider = 0; rider < 100; rider++) {
+            assertFalse(new TapFilter(5).isRepeat(rider, false, 0));
+        }
+    }
+
+    @Test
+    public void testManyRiders() {
+        final TapFilter filter = new TapFilter(TapFilter.MAX_WINDOW_SECONDS);
+        for (int rider = 0; rider < 100; rider++) {
+            assertFalse(filter.isRepeat(rider, true, NOW + rider * 10));
+        }
+        for (int rider = 0; rider < 100; rider++) {
+            assertTrue(filter.isRepeat(rider, true, NOW + 30000));
+        }
+        assertEquals(100, filter.getSuppressedReads());
+    }
+}
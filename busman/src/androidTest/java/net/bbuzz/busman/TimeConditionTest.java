@@ -0,0 +1,75 @@
+package net.bbuzz.busman;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Calendar;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class TimeConditionTest {
+
+    private static TimeCondition.Fields fields(int year, int month, int day, int hour,
+            int minute) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month, day, hour, minute, 0);
+        return new TimeCondition.Fields(calendar.getTimeInMillis());
+    }
+
+    @Test
+    public void testDateRange() {
+        final TimeCondition condition =
+                TimeCondition.compile("", "2014-03-01", "2014-03-31", "", "", 0, 0);
+        assertFalse(condition.matches(fields(2014, Calendar.FEBRUARY, 28, 23, 59)));
+        assertTrue(condition.matches(fields(2014, Calendar.MARCH, 1, 0, 0)));
+        assertTrue(condition.matches(fields(2014, Calendar.MARCH, 31, 23, 59)));
+        assertFalse(condition.matches(fields(2014, Calendar.APRIL, 1, 0, 0)));
+    }
+
+    @Test
+    public void testTimeRangePastMidnight() {
+        final TimeCondition condition = TimeCondition.compile("Fri", "", "", "22:00", "02:00", 0,
+                0);
+        // March 14, 2014 was a Friday
+        assertTrue(condition.matches(fields(2014, Calendar.MARCH, 14, 23, 30)));
+        assertTrue(condition.matches(fields(2014, Calendar.MARCH, 14, 1, 0)));
+        assertFalse(condition.matches(fields(2014, Calendar.MARCH, 14, 12, 0)));
+        assertFalse(condition.matches(fields(2014, Calendar.MARCH, 15, 23, 30)));
+    }
+
+    @Test
+    public void testMonthAndDay() {
+        final TimeCondition condition = TimeCondition.compile("", "", "", "", "", 4, 1);
+        assertTrue(condition.matches(fields(2014, Calendar.APRIL, 1, 8, 0)));
+        assertTrue(condition.matches(fields(2020, Calendar.APRIL, 1, 8, 0)));
+        assertFalse(condition.matches(fields(2014, Calendar.APRIL, 2, 8, 0)));
+        assertFalse(condition.matches(fields(2014, Calendar.MAY, 1, 8, 0)));
+    }
+
+    @Test
+    public void testMalformedRejected() {
+        final String[][] values = {
+                {"Funday", "", "", "", ""},
+                {"", "2014-3", "", "", ""},
+                {"", "", "2014-02-30x", "", ""},
+                {"", "", "", "25:00", ""},
+                {"", "", "", "", "7"},
+        };
+        for (final String[] value : values) {
+            try {
+                TimeCondition.compile(value[0], value[1], value[2], value[3], value[4], 0, 0);
+                fail(value[0] + value[1] + value[2] + value[3] + value[4]);
+            } catch (TimeCondition.MalformedConditionException e) {
+                // expected
+            }
+        }
+    }
+}
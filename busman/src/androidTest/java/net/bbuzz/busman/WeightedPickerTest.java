@@ -0,0 +1,71 @@
+package net.bbuzz.busman;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class WeightedPickerTest {
+
+    /**
+     * Hands out each value in [0, bound) in turn, so every outcome is visited exactly once
+     */
+    private static class SweepingRandom extends Random {
+        private int mNext;
+
+        @Override
+        public int nextInt(int bound) {
+            return mNext++ % bound;
+        }
+    }
+
+    private static WeightedPicker picker() {
+        return new WeightedPicker.Builder(4)
+                .add(2, 5)
+                .add(3, 0)
+                .add(7, 10)
+                .add(9, 1)
+                .build();
+    }
+
+    @Test
+    public void testDistributionMatchesWeights() {
+        final WeightedPicker picker = picker();
+        assertEquals(16, picker.totalWeight);
+        assertArrayEquals(new int[] {2, 3, 7, 9}, picker.values());
+
+        final int[] counts = new int[10];
+        final Random random = new SweepingRandom();
+        for (int i = 0; i < picker.totalWeight; i++) {
+            counts[picker.pick(random)]++;
+        }
+        assertArrayEquals(new int[] {0, 0, 5, 0, 0, 0, 0, 10, 0, 1}, counts);
+    }
+
+    @Test
+    public void testExcludedValueIsNeverPicked() {
+        final WeightedPicker picker = picker();
+        final int[] counts = new int[10];
+        final Random random = new SweepingRandom();
+        for (int i = 0; i < picker.totalWeight - 10; i++) {
+            counts[picker.pick(random, 7)]++;
+        }
+        assertArrayEquals(new int[] {0, 0, 5, 0, 0, 0, 0, 0, 0, 1}, counts);
+    }
+
+    @Test
+    public void testNothingToPick() {
+        assertEquals(WeightedPicker.NONE, WeightedPicker.EMPTY.pick(new Random()));
+        final WeightedPicker single = new WeightedPicker.Builder(1).add(4, 10).build();
+        assertEquals(4, single.pick(new Random(), WeightedPicker.NONE));
+        assertEquals(WeightedPicker.NONE, single.pick(new Random(), 4));
+    }
+}
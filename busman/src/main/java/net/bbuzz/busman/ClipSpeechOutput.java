@@ -0,0 +1,102 @@
+package net.bbuzz.busman;
+
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Plays announcements that were synthesized ahead of time into a {@link SpeechCache}, which
+ * starts much sooner than speaking them live. Anything that hasn't been synthesized, or can't be
+ * played, is passed on to another output.
+ */
+class ClipSpeechOutput implements SpeechOutput {
+
+    private static final String TAG = "ClipSpeechOutput";
+
+    private final SpeechCache mCache;
+    private final SpeechOutput mFallback;
+    private final Handler mHandler;
+    private final MediaPlayer mPlayer = new MediaPlayer();
+    private Listener mListener;
+    private Runnable mPendingClip;
+
+    /**
+     * @param fallback - says what isn't in the cache
+     * @param handler - where delayed clips are started
+     */
+    ClipSpeechOutput(SpeechCache cache, SpeechOutput fallback, Handler handler) {
+        mCache = cache;
+        mFallback = fallback;
+        mHandler = handler;
+        mPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
+            @Override
+            public void onCompletion(MediaPlayer player) {
+                final Listener listener = mListener;
+                mListener = null;
+                if (listener != null) {
+                    listener.onDone();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void say(final String text, final Locale locale, long pauseMs,
+            final Listener listener) {
+        final File clip = mCache.get(text, locale);
+        if (clip == null) {
+            mFallback.say(text, locale, pauseMs, listener);
+            return;
+        }
+        if (pauseMs == 0) {
+            play(clip, text, locale, listener);
+            return;
+        }
+        mPendingClip = new Runnable() {
+            @Override
+            public void run() {
+                mPendingClip = null;
+                play(clip, text, locale, listener);
+            }
+        };
+        mHandler.postDelayed(mPendingClip, pauseMs);
+    }
+
+    private void play(File clip, String text, Locale locale, Listener listener) {
+        try {
+            mPlayer.reset();
+            mPlayer.setDataSource(clip.getPath());
+            mPlayer.prepare();
+        } catch (IOException e) {
+            if (Log.isLoggable(TAG, Log.WARN)) {
+                Log.w(TAG, "failed to play " + clip + ": " + e);
+            }
+            mFallback.say(text, locale, 0, listener);
+            return;
+        }
+        mListener = listener;
+        mPlayer.start();
+    }
+
+    @Override
+    public void stop() {
+        if (mPendingClip != null) {
+            mHandler.removeCallbacks(mPendingClip);
+            mPendingClip = null;
+        }
+        mListener = null;
+        if (mPlayer.isPlaying()) {
+            mPlayer.stop();
+        }
+        mFallback.stop();
+    }
+
+    void release() {
+        stop();
+        mPlayer.release();
+    }
+}
@@ -0,0 +1,251 @@
+package net.bbuzz.busman;
+
+/**
+ * An immutable hash map: a hash array mapped trie, where each level takes the next five bits of
+ * a key's hash and keeps only the branches in use, found through a bitmap. Looking a key up
+ * reads at most a few short arrays, whatever the size. Putting or removing a key copies the
+ * nodes on its path and returns a new map that shares everything else with this one.
+ *
+ * Null keys and values aren't allowed.
+ */
+final class HashTrieMap<K, V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final HashTrieMap<?, ?> EMPTY = new HashTrieMap<>(null, 0);
+
+    private static final class Entry {
+        final Object key;
+        final int hash;
+        final Object value;
+
+        Entry(Object key, int hash, Object value) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+
+    /**
+     * The branches of one level; each is an Entry or another node
+     */
+    private static final class BitmapNode {
+        final int bitmap;
+        final Object[] slots;
+
+        BitmapNode(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+    }
+
+    /**
+     * Entries whose keys have the same hash
+     */
+    private static final class CollisionNode {
+        final int hash;
+        final Entry[] entries;
+
+        CollisionNode(int hash, Entry[] entries) {
+            this.hash = hash;
+            this.entries = entries;
+        }
+    }
+
+    // an Entry, a node, or null when empty
+    private final Object mRoot;
+    private final int mSize;
+
+    private HashTrieMap(Object root, int size) {
+        mRoot = root;
+        mSize = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> HashTrieMap<K, V> empty() {
+        return (HashTrieMap<K, V>) EMPTY;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return key's value, or null if it's not in the map
+     */
+    @SuppressWarnings("unchecked")
+    V get(K key) {
+        final int hash = hash(key);
+        Object slot = mRoot;
+        int shift = 0;
+        while (slot instanceof BitmapNode) {
+            final BitmapNode node = (BitmapNode) slot;
+            final int bit = 1 << ((hash >>> shift) & MASK);
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+            slot = node.slots[Integer.bitCount(node.bitmap & (bit - 1))];
+            shift += BITS;
+        }
+        if (slot instanceof Entry) {
+            final Entry entry = (Entry) slot;
+            return entry.hash == hash && entry.key.equals(key) ? (V) entry.value : null;
+        }
+        if (slot instanceof CollisionNode) {
+            final CollisionNode node = (CollisionNode) slot;
+            if (node.hash == hash) {
+                for (final Entry entry : node.entries) {
+                    if (entry.key.equals(key)) {
+                        return (V) entry.value;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return a map with key set to value
+     */
+    HashTrieMap<K, V> put(K key, V value) {
+        final boolean isNew = !containsKey(key);
+        final Object root = put(mRoot, new Entry(key, hash(key), value), 0);
+        return new HashTrieMap<>(root, isNew ? mSize + 1 : mSize);
+    }
+
+    /**
+     * @return a map without key, or this one if key isn't in it
+     */
+    HashTrieMap<K, V> remove(K key) {
+        final Object root = remove(mRoot, key, hash(key), 0);
+        return root == mRoot ? this : new HashTrieMap<K, V>(root, mSize - 1);
+    }
+
+    /**
+     * @return the hash spread so its low bits, used first, depend on all of it
+     */
+    private static int hash(Object key) {
+        final int hash = key.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private static Object put(Object slot, Entry entry, int shift) {
+        if (slot == null) {
+            return entry;
+        }
+        if (slot instanceof Entry) {
+            final Entry existing = (Entry) slot;
+            if (existing.hash == entry.hash) {
+                return existing.key.equals(entry.key)
+                        ? entry : new CollisionNode(entry.hash, new Entry[] {existing, entry});
+            }
+            return put(branch(existing, existing.hash, shift), entry, shift);
+        }
+        if (slot instanceof CollisionNode) {
+            final CollisionNode node = (CollisionNode) slot;
+            if (node.hash != entry.hash) {
+                return put(branch(node, node.hash, shift), entry, shift);
+            }
+            for (int i = 0; i < node.entries.length; i++) {
+                if (node.entries[i].key.equals(entry.key)) {
+                    final Entry[] entries = node.entries.clone();
+                    entries[i] = entry;
+                    return new CollisionNode(node.hash, entries);
+                }
+            }
+            final Entry[] entries = new Entry[node.entries.length + 1];
+            System.arraycopy(node.entries, 0, entries, 0, node.entries.length);
+            entries[node.entries.length] = entry;
+            return new CollisionNode(node.hash, entries);
+        }
+        final BitmapNode node = (BitmapNode) slot;
+        final int bit = 1 << ((entry.hash >>> shift) & MASK);
+        final int index = Integer.bitCount(node.bitmap & (bit - 1));
+        if ((node.bitmap & bit) != 0) {
+            final Object[] slots = node.slots.clone();
+            slots[index] = put(slots[index], entry, shift + BITS);
+            return new BitmapNode(node.bitmap, slots);
+        }
+        final Object[] slots = new Object[node.slots.length + 1];
+        System.arraycopy(node.slots, 0, slots, 0, index);
+        slots[index] = entry;
+        System.arraycopy(node.slots, index, slots, index + 1, node.slots.length - index);
+        return new BitmapNode(node.bitmap | bit, slots);
+    }
+
+    /**
+     * @return a node for this level holding just slot, so another hash can branch off it
+     */
+    private static BitmapNode branch(Object slot, int hash, int shift) {
+        return new BitmapNode(1 << ((hash >>> shift) & MASK), new Object[] {slot});
+    }
+
+    /**
+     * @return slot without key: the same slot if it wasn't there, or null if nothing's left
+     */
+    private static Object remove(Object slot, Object key, int hash, int shift) {
+        if (slot == null) {
+            return null;
+        }
+        if (slot instanceof Entry) {
+            final Entry entry = (Entry) slot;
+            return entry.hash == hash && entry.key.equals(key) ? null : slot;
+        }
+        if (slot instanceof CollisionNode) {
+            final CollisionNode node = (CollisionNode) slot;
+            if (node.hash != hash) {
+                return slot;
+            }
+            for (int i = 0; i < node.entries.length; i++) {
+                if (node.entries[i].key.equals(key)) {
+                    if (node.entries.length == 2) {
+                        return node.entries[1 - i];
+                    }
+                    final Entry[] entries = new Entry[node.entries.length - 1];
+                    System.arraycopy(node.entries, 0, entries, 0, i);
+                    System.arraycopy(node.entries, i + 1, entries, i, entries.length - i);
+                    return new CollisionNode(node.hash, entries);
+                }
+            }
+            return slot;
+        }
+        final BitmapNode node = (BitmapNode) slot;
+        final int bit = 1 << ((hash >>> shift) & MASK);
+        if ((node.bitmap & bit) == 0) {
+            return slot;
+        }
+        final int index = Integer.bitCount(node.bitmap & (bit - 1));
+        final Object child = remove(node.slots[index], key, hash, shift + BITS);
+        if (child == node.slots[index]) {
+            return slot;
+        }
+        if (child == null) {
+            if (node.slots.length == 1) {
+                return null;
+            }
+            final Object[] slots = new Object[node.slots.length - 1];
+            System.arraycopy(node.slots, 0, slots, 0, index);
+            System.arraycopy(node.slots, index + 1, slots, index, slots.length - index);
+            if (slots.length == 1 && !(slots[0] instanceof BitmapNode)) {
+                // a lone entry can move up to where this node was
+                return slots[0];
+            }
+            return new BitmapNode(node.bitmap & ~bit, slots);
+        }
+        if (node.slots.length == 1 && !(child instanceof BitmapNode)) {
+            return child;
+        }
+        final Object[] slots = node.slots.clone();
+        slots[index] = child;
+        return new BitmapNode(node.bitmap, slots);
+    }
+}
@@ -0,0 +1,793 @@
+package net.bbuzz.busman;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A regular expression matcher whose running time is linear in the length of the input, for
+ * the idRegexp and timeRegexp patterns written by message authors. The pattern is compiled to a
+ * nondeterministic automaton, and matching steps every live state forward one character at a
+ * time, so no pattern can make it backtrack.
+ *
+ * It supports the usual subset of java.util.regex: literals and escapes, ".", character classes
+ * with ranges and negation, \d \w \s and their negations, groups, alternation, the greedy and
+ * lazy quantifiers ? * + {n} {n,} {n,m}, ^ and $, \Q...\E, and a leading (?i) for ASCII case
+ * insensitivity. Constructs that need backtracking, such as back references and lookaround,
+ * are rejected with a PatternSyntaxException when the pattern is compiled. Like
+ * {@link java.util.regex.Matcher#matches()}, a match must cover the whole input.
+ */
+class LinearRegex {
+
+    // limits the expansion of counted repetition such as "(a|b){1000}"
+    private static final int MAX_STATES = 10000;
+    // a class inside a class, such as \d in [^\d\s], is as deep as the parser makes them
+    private static final int MAX_CLASS_DEPTH = 2;
+
+    private static final int CHAR = 0;
+    private static final int CLASS = 1;
+    private static final int SPLIT = 2;
+    private static final int BEGIN = 3;
+    private static final int END = 4;
+    private static final int MATCH = 5;
+
+    private static final String LINE_TERMINATORS = "\n\r\u0085\u2028\u2029";
+    private static final CharClass DOT = new CharClass(true);
+    static {
+        for (int i = 0; i < LINE_TERMINATORS.length(); i++) {
+            DOT.addRange(LINE_TERMINATORS.charAt(i), LINE_TERMINATORS.charAt(i));
+        }
+    }
+
+    final String pattern;
+    private final boolean mIgnoreCase;
+    private final int[] mTypes;
+    private final char[] mChars;
+    private final CharClass[] mClasses;
+    private final int[] mOut;
+    private final int[] mOut2;  // the second branch of a SPLIT
+    private final int mStart;
+
+    /**
+     * A set of characters: ranges, and the predefined classes such as \d, any of which can be
+     * negated
+     */
+    private static class CharClass {
+        private final boolean mNegated;
+        private char[] mRanges = new char[0];  // pairs of inclusive bounds
+        private final List<CharClass> mMembers = new ArrayList<>();
+
+        CharClass(boolean negated) {
+            mNegated = negated;
+        }
+
+        void addRange(char from, char to) {
+            mRanges = Arrays.copyOf(mRanges, mRanges.length + 2);
+            mRanges[mRanges.length - 2] = from;
+            mRanges[mRanges.length - 1] = to;
+        }
+
+        void addMember(CharClass member) {
+            mMembers.add(member);
+        }
+
+        /**
+         * @param ignoreCase - if true, c also matches if either of its cases is in the set. The
+         *          cases are tried before any negation, so that (?i)[^a] matches neither "a"
+         *          nor "A".
+         */
+        boolean matches(char c, boolean ignoreCase) {
+            boolean found = false;
+            for (int i = 0; i < mRanges.length && !found; i += 2) {
+                found = inRange(c, i)
+                        || (ignoreCase && (inRange(foldCase(c), i) || inRange(upperCase(c), i)));
+            }
+            for (int i = 0; i < mMembers.size() && !found; i++) {
+                found = mMembers.get(i).matches(c, ignoreCase);
+            }
+            return found != mNegated;
+        }
+
+        private boolean inRange(char c, int range) {
+            return c >= mRanges[range] && c <= mRanges[range + 1];
+        }
+
+        void writeBinary(DataOutputStream out) throws IOException {
+            out.writeBoolean(mNegated);
+            out.writeInt(mRanges.length);
+            for (final char bound : mRanges) {
+                out.writeChar(bound);
+            }
+            out.writeInt(mMembers.size());
+            for (final CharClass member : mMembers) {
+                member.writeBinary(out);
+            }
+        }
+
+        /**
+         * @param depth - how deeply this set is nested in others
+         */
+        static CharClass readBinary(ByteBuffer in, int depth) {
+            if (depth > MAX_CLASS_DEPTH) {
+                throw new IllegalArgumentException("character classes nested too deeply");
+            }
+            final CharClass set = new CharClass(in.get() != 0);
+            final int boundCount = in.getInt();
+            if (boundCount < 0 || boundCount % 2 != 0 || boundCount > in.remaining() / 2) {
+                throw new IllegalArgumentException("bad range count " + boundCount);
+            }
+            set.mRanges = new char[boundCount];
+            for (int i = 0; i < boundCount; i++) {
+                set.mRanges[i] = in.getChar();
+            }
+            for (int count = in.getInt(); count > 0; count--) {
+                set.mMembers.add(readBinary(in, depth + 1));
+            }
+            return set;
+        }
+    }
+
+    /**
+     * A node of the parsed pattern
+     */
+    private static class Node {
+        static final int LITERAL = 0;
+        static final int SET = 1;
+        static final int CONCAT = 2;
+        static final int ALTERNATE = 3;
+        static final int REPEAT = 4;
+        static final int BEGIN_ANCHOR = 5;
+        static final int END_ANCHOR = 6;
+
+        final int kind;
+        char literal;
+        CharClass set;
+        final List<Node> children = new ArrayList<>();
+        int min;
+        int max;  // -1 for no limit
+
+        Node(int kind) {
+            this.kind = kind;
+        }
+    }
+
+    /**
+     * @throws PatternSyntaxException if the pattern is malformed, or uses a construct that
+     *          isn't supported
+     */
+    static LinearRegex compile(String pattern) throws PatternSyntaxException {
+        return new Parser(pattern).compile();
+    }
+
+    private LinearRegex(String pattern, boolean ignoreCase, List<Integer> types,
+            List<Character> chars, List<CharClass> classes, List<Integer> out,
+            List<Integer> out2, int start) {
+        this.pattern = pattern;
+        mIgnoreCase = ignoreCase;
+        final int size = types.size();
+        mTypes = new int[size];
+        mChars = new char[size];
+        mClasses = new CharClass[size];
+        mOut = new int[size];
+        mOut2 = new int[size];
+        for (int i = 0; i < size; i++) {
+            mTypes[i] = types.get(i);
+            mChars[i] = chars.get(i);
+            mClasses[i] = classes.get(i);
+            mOut[i] = out.get(i);
+            mOut2[i] = out2.get(i);
+        }
+        mStart = start;
+    }
+
+    private LinearRegex(String pattern, boolean ignoreCase, int[] types, char[] chars,
+            CharClass[] classes, int[] out, int[] out2, int start) {
+        this.pattern = pattern;
+        mIgnoreCase = ignoreCase;
+        mTypes = types;
+        mChars = chars;
+        mClasses = classes;
+        mOut = out;
+        mOut2 = out2;
+        mStart = start;
+    }
+
+    /**
+     * Write the compiled states for a {@link MessageBundle}, so they needn't be compiled again
+     */
+    void writeBinary(DataOutputStream out) throws IOException {
+        MessageBundle.writeString(out, pattern);
+        out.writeBoolean(mIgnoreCase);
+        out.writeInt(mTypes.length);
+        out.writeInt(mStart);
+        for (int i = 0; i < mTypes.length; i++) {
+            out.writeByte(mTypes[i]);
+            out.writeChar(mChars[i]);
+            out.writeInt(mOut[i]);
+            out.writeInt(mOut2[i]);
+            out.writeBoolean(mClasses[i] != null);
+            if (mClasses[i] != null) {
+                mClasses[i].writeBinary(out);
+            }
+        }
+    }
+
+    /**
+     * Read the states written by {@link #writeBinary(DataOutputStream)}
+     *
+     * @throws IllegalArgumentException if they don't make a valid pattern
+     */
+    static LinearRegex readBinary(ByteBuffer in) {
+        final String pattern = MessageBundle.readString(in);
+        final boolean ignoreCase = in.get() != 0;
+        final int size = in.getInt();
+        final int start = in.getInt();
+        if (size < 1 || size > MAX_STATES || start < 0 || start >= size) {
+            throw new IllegalArgumentException("bad pattern size " + size + ", start " + start);
+        }
+        final int[] types = new int[size];
+        final char[] chars = new char[size];
+        final CharClass[] classes = new CharClass[size];
+        final int[] out = new int[size];
+        final int[] out2 = new int[size];
+        for (int i = 0; i < size; i++) {
+            types[i] = in.get();
+            chars[i] = in.getChar();
+            out[i] = in.getInt();
+            out2[i] = in.getInt();
+            if (in.get() != 0) {
+                classes[i] = CharClass.readBinary(in, 0);
+            }
+            // every state but MATCH goes on to another, and SPLIT to two
+            final boolean valid;
+            switch (types[i]) {
+                case MATCH:
+                    valid = true;
+                    break;
+                case SPLIT:
+                    valid = out[i] >= 0 && out[i] < size && out2[i] >= 0 && out2[i] < size;
+                    break;
+                case CHAR:
+                case CLASS:
+                case BEGIN:
+                case END:
+                    valid = out[i] >= 0 && out[i] < size
+                            && (types[i] != CLASS || classes[i] != null);
+                    break;
+                default:
+                    valid = false;
+            }
+            if (!valid) {
+                throw new IllegalArgumentException("bad state " + i + " in '" + pattern + "'");
+            }
+        }
+        return new LinearRegex(pattern, ignoreCase, types, chars, classes, out, out2, start);
+    }
+
+    /**
+     * @return true if the whole of input matches the pattern
+     */
+    boolean matches(CharSequence input) {
+        final int length = input.length();
+        int[] current = new int[mTypes.length];
+        int[] next = new int[mTypes.length];
+        final int[] listOf = new int[mTypes.length];  // the list each state was last added to
+        Arrays.fill(listOf, -1);
+        // each state is expanded at most once per position, and pushes at most two more
+        final int[] stack = new int[2 * mTypes.length + 1];
+
+        int currentCount = addState(current, 0, mStart, 0, length, listOf, 0, stack);
+        for (int position = 0; position < length && currentCount > 0; position++) {
+            final char c = input.charAt(position);
+            int nextCount = 0;
+            for (int i = 0; i < currentCount; i++) {
+                final int state = current[i];
+                if (consumes(state, c)) {
+                    nextCount = addState(next, nextCount, mOut[state], position + 1, length,
+                            listOf, position + 1, stack);
+                }
+            }
+            final int[] swap = current;
+            current = next;
+            next = swap;
+            currentCount = nextCount;
+        }
+        for (int i = 0; i < currentCount; i++) {
+            if (mTypes[current[i]] == MATCH) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean consumes(int state, char c) {
+        switch (mTypes[state]) {
+            case CHAR:
+                final char expected = mChars[state];
+                return c == expected || (mIgnoreCase && foldCase(c) == foldCase(expected));
+            case CLASS:
+                return mClasses[state].matches(c, mIgnoreCase);
+            default:
+                return false;
+        }
+    }
+
+    // (?i) only folds ASCII letters, as in java.util.regex
+    private static char foldCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static char upperCase(char c) {
+        return c >= 'a' && c <= 'z' ? (char) (c - ('a' - 'A')) : c;
+    }
+
+    /**
+     * Add state to list, following SPLITs and anchors, each state at most once per position
+     *
+     * @return the new size of list
+     */
+    private int addState(int[] list, int count, int state, int position, int length,
+            int[] listOf, int listId, int[] stack) {
+        int top = 0;
+        stack[top++] = state;
+        while (top > 0) {
+            final int s = stack[--top];
+            if (listOf[s] == listId) {
+                continue;
+            }
+            listOf[s] = listId;
+            switch (mTypes[s]) {
+                case SPLIT:
+                    // push the second branch first, so the first is explored first
+                    stack[top++] = mOut2[s];
+                    stack[top++] = mOut[s];
+                    break;
+                case BEGIN:
+                    if (position == 0) {
+                        stack[top++] = mOut[s];
+                    }
+                    break;
+                case END:
+                    if (position == length) {
+                        stack[top++] = mOut[s];
+                    }
+                    break;
+                default:
+                    list[count++] = s;
+                    break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Parses a pattern into {@link Node}s, then builds the automaton from them
+     */
+    private static class Parser {
+        private final String mPattern;
+        private int mPosition;
+        private boolean mIgnoreCase;
+
+        private final List<Integer> mTypes = new ArrayList<>();
+        private final List<Character> mChars = new ArrayList<>();
+        private final List<CharClass> mClasses = new ArrayList<>();
+        private final List<Integer> mOut = new ArrayList<>();
+        private final List<Integer> mOut2 = new ArrayList<>();
+
+        Parser(String pattern) {
+            mPattern = pattern;
+        }
+
+        LinearRegex compile() {
+            if (mPattern.startsWith("(?i)")) {
+                mIgnoreCase = true;
+                mPosition = 4;
+            }
+            final Node root = parseAlternation();
+            if (mPosition < mPattern.length()) {
+                // parseAlternation only stops early at an unmatched ')'
+                throw error("Unmatched closing ')'");
+            }
+            final int match = newState(MATCH, '\0', null, -1, -1);
+            final int start = build(root, match);
+            return new LinearRegex(mPattern, mIgnoreCase, mTypes, mChars, mClasses, mOut, mOut2,
+                    start);
+        }
+
+        private PatternSyntaxException error(String description) {
+            return new PatternSyntaxException(description, mPattern, mPosition);
+        }
+
+        private boolean more() {
+            return mPosition < mPattern.length();
+        }
+
+        private char peek() {
+            return mPattern.charAt(mPosition);
+        }
+
+        private Node parseAlternation() {
+            final Node first = parseConcatenation();
+            if (!more() || peek() != '|') {
+                return first;
+            }
+            final Node alternation = new Node(Node.ALTERNATE);
+            alternation.children.add(first);
+            while (more() && peek() == '|') {
+                mPosition++;
+                alternation.children.add(parseConcatenation());
+            }
+            return alternation;
+        }
+
+        private Node parseConcatenation() {
+            final Node concatenation = new Node(Node.CONCAT);
+            while (more() && peek() != '|' && peek() != ')') {
+                concatenation.children.add(parseRepetition());
+            }
+            return concatenation;
+        }
+
+        private Node parseRepetition() {
+            Node atom = parseAtom();
+            while (more()) {
+                final char c = peek();
+                final int min;
+                final int max;
+                if (c == '*') {
+                    mPosition++;
+                    min = 0;
+                    max = -1;
+                } else if (c == '+') {
+                    mPosition++;
+                    min = 1;
+                    max = -1;
+                } else if (c == '?') {
+                    mPosition++;
+                    min = 0;
+                    max = 1;
+                } else if (c == '{') {
+                    mPosition++;
+                    min = parseNumber();
+                    if (more() && peek() == ',') {
+                        mPosition++;
+                        max = more() && peek() == '}' ? -1 : parseNumber();
+                    } else {
+                        max = min;
+                    }
+                    if (!more() || peek() != '}') {
+                        throw error("Unclosed counted closure");
+                    }
+                    mPosition++;
+                    if (max != -1 && max < min) {
+                        throw error("Illegal repetition range");
+                    }
+                } else {
+                    break;
+                }
+                if (more() && peek() == '+') {
+                    throw error("Possessive quantifiers are not supported");
+                }
+                if (more() && peek() == '?') {
+                    // lazy and greedy quantifiers match the same whole strings
+                    mPosition++;
+                }
+                final Node repeat = new Node(Node.REPEAT);
+                repeat.children.add(atom);
+                repeat.min = min;
+                repeat.max = max;
+                atom = repeat;
+            }
+            return atom;
+        }
+
+        private int parseNumber() {
+            final int start = mPosition;
+            while (more() && peek() >= '0' && peek() <= '9') {
+                mPosition++;
+            }
+            if (start == mPosition || mPosition - start > 4) {
+                throw error("Illegal repetition");
+            }
+            return Integer.parseInt(mPattern.substring(start, mPosition));
+        }
+
+        private Node parseAtom() {
+            final char c = peek();
+            switch (c) {
+                case '(': {
+                    mPosition++;
+                    if (more() && peek() == '?') {
+                        if (!mPattern.startsWith("?:", mPosition)) {
+                            throw error("Only (?:...) groups are supported");
+                        }
+                        mPosition += 2;
+                    }
+                    final Node group = parseAlternation();
+                    if (!more() || peek() != ')') {
+                        throw error("Unclosed group");
+                    }
+                    mPosition++;
+                    return group;
+                }
+                case '[':
+                    mPosition++;
+                    return set(parseClass());
+                case '.':
+                    mPosition++;
+                    return set(DOT);
+                case '^':
+                    mPosition++;
+                    return new Node(Node.BEGIN_ANCHOR);
+                case '$':
+                    mPosition++;
+                    return new Node(Node.END_ANCHOR);
+                case '\\':
+                    mPosition++;
+                    return parseEscape();
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    throw error("Dangling meta character '" + c + "'");
+                default:
+                    mPosition++;
+                    return literal(c);
+            }
+        }
+
+        private static Node literal(char c) {
+            final Node node = new Node(Node.LITERAL);
+            node.literal = c;
+            return node;
+        }
+
+        private static Node set(CharClass set) {
+            final Node node = new Node(Node.SET);
+            node.set = set;
+            return node;
+        }
+
+        private Node parseEscape() {
+            if (!more()) {
+                throw error("Unexpected internal error");
+            }
+            if (peek() == 'Q') {
+                mPosition++;
+                int end = mPattern.indexOf("\\E", mPosition);
+                if (end < 0) {
+                    end = mPattern.length();
+                }
+                final Node quoted = new Node(Node.CONCAT);
+                for (int i = mPosition; i < end; i++) {
+                    quoted.children.add(literal(mPattern.charAt(i)));
+                }
+                mPosition = Math.min(end + 2, mPattern.length());
+                return quoted;
+            }
+            final CharClass predefined = predefinedClass(peek());
+            if (predefined != null) {
+                mPosition++;
+                return set(predefined);
+            }
+            return literal(parseEscapedChar());
+        }
+
+        /**
+         * @return the class for \d, \D, \w, \W, \s or \S, or null for any other escape
+         */
+        private static CharClass predefinedClass(char c) {
+            final CharClass set = new CharClass(Character.isUpperCase(c));
+            switch (Character.toLowerCase(c)) {
+                case 'd':
+                    set.addRange('0', '9');
+                    break;
+                case 'w':
+                    set.addRange('a', 'z');
+                    set.addRange('A', 'Z');
+                    set.addRange('0', '9');
+                    set.addRange('_', '_');
+                    break;
+                case 's':
+                    set.addRange(' ', ' ');
+                    set.addRange('\t', '\r');  // \t \n \u000B \f \r
+                    break;
+                default:
+                    return null;
+            }
+            return set;
+        }
+
+        /**
+         * Parse the escape after a '\' that stands for a single character
+         */
+        private char parseEscapedChar() {
+            final char c = peek();
+            mPosition++;
+            switch (c) {
+                case 't':
+                    return '\t';
+                case 'n':
+                    return '\n';
+                case 'r':
+                    return '\r';
+                case 'f':
+                    return '\f';
+                case 'a':
+                    return '\u0007';
+                case 'e':
+                    return '\u001B';
+                case 'x':
+                    return parseHex(2);
+                case 'u':
+                    return parseHex(4);
+                case '0': {
+                    int value = 0;
+                    int digits = 0;
+                    while (more() && digits < 3 && peek() >= '0' && peek() <= '7') {
+                        value = value * 8 + (peek() - '0');
+                        mPosition++;
+                        digits++;
+                    }
+                    if (digits == 0 || value > 0377) {
+                        throw error("Illegal octal escape sequence");
+                    }
+                    return (char) value;
+                }
+                default:
+                    if (c >= '1' && c <= '9') {
+                        throw error("Back references are not supported");
+                    }
+                    if (Character.isLetter(c)) {
+                        // \b, \p{...} and the like, or an escape that java.util.regex rejects
+                        throw error("Unsupported escape sequence '\\" + c + "'");
+                    }
+                    return c;
+            }
+        }
+
+        private char parseHex(int digits) {
+            if (mPosition + digits > mPattern.length()) {
+                throw error("Illegal hexadecimal escape sequence");
+            }
+            try {
+                final int value = Integer.parseInt(
+                        mPattern.substring(mPosition, mPosition + digits), 16);
+                mPosition += digits;
+                return (char) value;
+            } catch (NumberFormatException e) {
+                throw error("Illegal hexadecimal escape sequence");
+            }
+        }
+
+        /**
+         * Parse a character class, after its '['
+         */
+        private CharClass parseClass() {
+            final boolean negated = more() && peek() == '^';
+            if (negated) {
+                mPosition++;
+            }
+            final CharClass set = new CharClass(negated);
+            boolean first = true;
+            while (true) {
+                if (!more()) {
+                    throw error("Unclosed character class");
+                }
+                char c = peek();
+                if (c == ']' && !first) {
+                    mPosition++;
+                    return set;
+                }
+                first = false;
+                if (c == '[' || mPattern.startsWith("&&", mPosition)) {
+                    throw error("Nested classes and intersections are not supported");
+                }
+                mPosition++;
+                if (c == '\\') {
+                    if (!more()) {
+                        throw error("Unclosed character class");
+                    }
+                    final CharClass predefined = predefinedClass(peek());
+                    if (predefined != null) {
+                        mPosition++;
+                        set.addMember(predefined);
+                        continue;
+                    }
+                    c = parseEscapedChar();
+                }
+                if (mPosition + 1 < mPattern.length() && peek() == '-'
+                        && mPattern.charAt(mPosition + 1) != ']') {
+                    mPosition++;
+                    char to = peek();
+                    mPosition++;
+                    if (to == '\\') {
+                        if (!more()) {
+                            throw error("Unclosed character class");
+                        }
+                        to = parseEscapedChar();
+                    } else if (to == '[') {
+                        throw error("Nested classes and intersections are not supported");
+                    }
+                    if (to < c) {
+                        throw error("Illegal character range");
+                    }
+                    set.addRange(c, to);
+                } else {
+                    set.addRange(c, c);
+                }
+            }
+        }
+
+        private int newState(int type, char c, CharClass set, int out, int out2) {
+            if (mTypes.size() >= MAX_STATES) {
+                throw error("Pattern is too large");
+            }
+            mTypes.add(type);
+            mChars.add(c);
+            mClasses.add(set);
+            mOut.add(out);
+            mOut2.add(out2);
+            return mTypes.size() - 1;
+        }
+
+        /**
+         * Build the states for node, working backwards from the state that follows it
+         *
+         * @return the state that starts node
+         */
+        private int build(Node node, int next) {
+            switch (node.kind) {
+                case Node.LITERAL:
+                    return newState(CHAR, node.literal, null, next, -1);
+                case Node.SET:
+                    return newState(CLASS, '\0', node.set, next, -1);
+                case Node.BEGIN_ANCHOR:
+                    return newState(BEGIN, '\0', null, next, -1);
+                case Node.END_ANCHOR:
+                    return newState(END, '\0', null, next, -1);
+                case Node.CONCAT: {
+                    int start = next;
+                    for (int i = node.children.size() - 1; i >= 0; i--) {
+                        start = build(node.children.get(i), start);
+                    }
+                    return start;
+                }
+                case Node.ALTERNATE: {
+                    final int last = node.children.size() - 1;
+                    int start = build(node.children.get(last), next);
+                    for (int i = last - 1; i >= 0; i--) {
+                        start = newState(SPLIT, '\0', null, build(node.children.get(i), next),
+                                start);
+                    }
+                    return start;
+                }
+                case Node.REPEAT: {
+                    final Node body = node.children.get(0);
+                    int start;
+                    if (node.max == -1) {
+                        // a loop: the SPLIT either runs the body again or leaves
+                        final int loop = newState(SPLIT, '\0', null, -1, next);
+                        mOut.set(loop, build(body, loop));
+                        start = loop;
+                    } else {
+                        start = next;
+                        for (int i = node.min; i < node.max; i++) {
+                            start = newState(SPLIT, '\0', null, build(body, start), next);
+                        }
+                    }
+                    for (int i = 0; i < node.min; i++) {
+                        start = build(body, start);
+                    }
+                    return start;
+                }
+                default:
+                    throw new IllegalStateException("unknown node " + node.kind);
+            }
+        }
+    }
+}
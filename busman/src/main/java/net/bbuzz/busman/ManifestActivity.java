@@ -17,7 +17,6 @@
 package net.bbuzz.busman;
 
 import android.Manifest;
-import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.DownloadManager;
 import android.content.BroadcastReceiver;
@@ -27,15 +26,18 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.content.res.Resources;
 import android.database.Cursor;
 import android.net.Uri;
 import android.nfc.NdefMessage;
 import android.nfc.NfcAdapter;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.speech.tts.TextToSpeech;
 import android.support.v4.app.ActivityCompat;
@@ -50,35 +52,28 @@ import android.widget.AdapterView;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ListView;
-import android.widget.SimpleAdapter;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import net.bbuzz.busman.ConfigureTagActivity.RiderInfo;
+import net.bbuzz.busman.RiderRegistry.Rider;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.nio.channels.FileChannel;
-import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.IllegalFormatException;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ManifestActivity extends AppCompatActivity {
 
@@ -90,7 +85,17 @@ public class ManifestActivity extends AppCompatActivity {
     private static final int COLOR_DROPPING = 0xff600000;
     private static final int COLOR_BLACK = 0xff000000;
 
-    private static final int MAX_MESSAGE_TRIES = 3;
+    // how long to wait for the messages file to come up with an announcement
+    private static final long MESSAGE_DEADLINE_MS = 30;
+    // how many announcements may wait while another is said
+    private static final int SPEECH_QUEUE_CAPACITY = 8;
+    // greetings waiting together are merged if they were asked for this close together
+    private static final long COALESCE_WINDOW_MS = 2000;
+    private static final String SPEECH_CACHE_DIR = "speech";
+    // how many riders not on the manifest to have welcomes ready for
+    private static final int MAX_RECENT_RIDERS = 64;
+    // manifest changes this close together are saved in one write
+    private static final long JOURNAL_COALESCE_WINDOW_MS = 50;
 
     private static final String ACTION_FORWARD = "net.bbuzz.busman.action.FORWARD";
     private static final String EXTRA_KEY_RIDER = "rider";
@@ -99,10 +104,7 @@ public class ManifestActivity extends AppCompatActivity {
     private static final boolean MANIFEST_SORT_BY_BOARDING = false;
     private static final boolean MANIFEST_SORT_DEFAULT = MANIFEST_SORT_BY_BOARDING;
 
-    private static final String ISKEY_IS_ADDING = "is_adding";
     private static final String ISKEY_SORT_BY_NAME = "sort";
-    private static final String ISKEY_MANIFEST = "bus_manifest";
-    private static final String MANIFEST_STATE_FILE = "ManifestState.txt";
 
     private static final int REQUEST_PERMISSIONS = 12731;
 
@@ -131,30 +133,64 @@ public class ManifestActivity extends AppCompatActivity {
             "caa@Chester A Arthur"
     };
 
-    private final static String[] ColumnNames = {Ride.ORDER, Ride.RIDER, Ride.TIME};
-    private final static int[] ColumnFields = {R.id.ride_order, R.id.ride_name, R.id.ride_time};
-
     private TextView mModeLabel;
     private TextView mLatestActionLabel;
     private TextView mLatestRider;
     private ListView mListView;
+    private ManifestAdapter mManifestAdapter;
     private TextView mEmptyListView;
     private boolean mIsAddingToManifest;
-    private final Map<String, Ride> mRideManifest = new HashMap<>();
-    private final Set<String> mRemovedRiders = new HashSet<>();
+    // replaced, never modified, so the message thread can read the one it's handed
+    private volatile ManifestIndex mManifest = ManifestIndex.EMPTY;
+    // outlives the activity, so a recreated one never writes alongside the old one's writes
+    private static ManifestJournal sJournal;
+    private final RiderRegistry mRiders = new RiderRegistry();
+    // by handle
+    private final BitSet mRemovedRiders = new BitSet();
+    // tag reads that repeat one just made, which are ignored
+    private TapFilter mTapFilter;
+    // riders seen lately, least recent first, who are likely to board again
+    private final Set<Rider> mRecentRiders = Collections.newSetFromMap(
+            new LinkedHashMap<Rider, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Rider, Boolean> eldest) {
+                    return size() > MAX_RECENT_RIDERS;
+                }
+            });
     private boolean mManifestSortByName = MANIFEST_SORT_DEFAULT;
     private String mLatestRiderFromNfc;
 
     private boolean mTtsIsAvailable = false;
+    // speaks phrases in the default locale, and any in a locale without an engine ready
     private TextToSpeech mTts;
-    private HashMap<String, String> mTtsOptions;
-    private Integer mLastUtteranceSubmitted = 0;
-    private String[] mWelcomes;
-    private String[] mReturns;
+    // says one announcement at a time, so taps don't cut each other off
+    private SpeechScheduler mSpeechScheduler;
+    private TtsSpeechOutput mTtsOutput;
+    private ClipSpeechOutput mClipOutput;
+    // announcements synthesized ahead of time, and played back instead of speaking them live
+    private SpeechCache mSpeechCache;
+    private TextToSpeech mSynthesisTts;
+
+    // messages are picked and rendered here, off the UI thread
+    private HandlerThread mMessageThread;
+    private Handler mMessageHandler;
+    private final Handler mMainHandler = new Handler();
+    private final Runnable mMinuteTick = new Runnable() {
+        @Override
+        public void run() {
+            prepareMessages();
+            scheduleMinuteTick();
+        }
+    };
+    // the built-in messages, for when the messages file has nothing suitable
+    private MessageTemplate[] mWelcomes;
+    private MessageTemplate[] mReturns;
+    private MessageTemplate[] mGoes;
+    private MessageTemplate mAlreadyWelcomed;
+    private MessageTemplate mAlreadyReturned;
     private static final Random sRandom = new Random();
     private boolean mTtsIsEnabled;
     private Locale mDefaultLocale;
-    private Locale mLastLocale;
     private long mAwaitedDownloadId;
     private DownloadManager mDownloadManager;
 
@@ -245,9 +281,34 @@ public class ManifestActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.manifest_activity);
 
-        mTts = new TextToSpeech(this, new TtsListener());
         mDefaultLocale = Locale.getDefault();
-        mLastLocale = mDefaultLocale;
+        mTts = new TextToSpeech(this, new TtsListener());
+        mTtsOutput = new TtsSpeechOutput(this, mTts, mDefaultLocale, mMainHandler);
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        mSpeechCache = new SpeechCache(new File(getCacheDir(), SPEECH_CACHE_DIR),
+                getSpeechCacheBudget(prefs));
+        // before the tag that may have launched the activity is read
+        mTapFilter = new TapFilter(getTapWindowSeconds(prefs));
+        mSynthesisTts = new TextToSpeech(this, new TextToSpeech.OnInitListener() {
+            @Override
+            public void onInit(int status) {
+                if (status == TextToSpeech.SUCCESS) {
+                    mSpeechCache.setEngine(mSynthesisTts);
+                }
+            }
+        });
+        mClipOutput = new ClipSpeechOutput(mSpeechCache, mTtsOutput, mMainHandler);
+        mSpeechScheduler = new SpeechScheduler(mClipOutput, SPEECH_QUEUE_CAPACITY,
+                COALESCE_WINDOW_MS);
+        mSpeechScheduler.setCoalescedTemplate(SpeechScheduler.KIND_WELCOME,
+                MessageTemplate.compile(getString(R.string.welcome_many)));
+        mSpeechScheduler.setCoalescedTemplate(SpeechScheduler.KIND_RETURN,
+                MessageTemplate.compile(getString(R.string.return_many)));
+        mSpeechScheduler.setNameSeparators(getString(R.string.name_list_separator),
+                getString(R.string.name_list_last_separator));
+        mMessageThread = new HandlerThread("messages");
+        mMessageThread.start();
+        mMessageHandler = new Handler(mMessageThread.getLooper());
 
         mModeLabel = findViewById(R.id.manifest_mode_label);
         mLatestActionLabel = findViewById(R.id.manifest_latest_label);
@@ -259,19 +320,37 @@ public class ManifestActivity extends AppCompatActivity {
         mListView.setFastScrollEnabled(true);
         mListView.setFastScrollAlwaysVisible(true);
         mListView.setScrollBarStyle(View.SCROLLBARS_INSIDE_INSET);
+        mManifestAdapter = new ManifestAdapter(this);
+        mListView.setAdapter(mManifestAdapter);
+        mListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> adapterView, View view, int position,
+                                    long id) {
+                confirmDrop(mManifestAdapter.getItem(position).rider);
+            }
+        });
         mIsAddingToManifest = true;
-        mWelcomes = getResources().getStringArray(R.array.welcomes);
-        mReturns = getResources().getStringArray(R.array.returns);
+        compileResourceMessages();
 
         mDownloadManager = (DownloadManager) getSystemService(DOWNLOAD_SERVICE);
         final IntentFilter filter = new IntentFilter(DownloadManager.ACTION_DOWNLOAD_COMPLETE);
         registerReceiver(mDownloadReceiver, filter);
+        RiderMessages.sInstance.setMessagesListener(new RiderMessages.MessagesListener() {
+            @Override
+            public void onMessagesLoaded() {
+                startTtsEngines();
+                prepareMessages();
+            }
+        });
+        startTtsEngines();
         loadMessages();
 
+        if (sJournal == null) {
+            sJournal = new ManifestJournal(getFilesDir(), JOURNAL_COALESCE_WINDOW_MS);
+        }
+        restoreState();
         if (savedInstanceState != null) {
             restoreFromBundle(savedInstanceState);
-        } else {
-            restoreState();
         }
 
         addButton.setOnClickListener(new View.OnClickListener() {
@@ -279,7 +358,9 @@ public class ManifestActivity extends AppCompatActivity {
             public void onClick(View v) {
                 if (!mIsAddingToManifest) {
                     mIsAddingToManifest = true;
+                    sJournal.setAdding(true);
                     mRemovedRiders.clear();
+                    mTapFilter.clear();
                     clearRiderResult();
                     updateList();
                 }
@@ -289,9 +370,11 @@ public class ManifestActivity extends AppCompatActivity {
         dropButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                if (mIsAddingToManifest && !mRideManifest.isEmpty()) {
+                if (mIsAddingToManifest && !mManifest.isEmpty()) {
                     mIsAddingToManifest = false;
+                    sJournal.setAdding(false);
                     mRemovedRiders.clear();
+                    mTapFilter.clear();
                     clearRiderResult();
                     updateList();
                 }
@@ -301,6 +384,8 @@ public class ManifestActivity extends AppCompatActivity {
         mModeLabel.setText(mIsAddingToManifest ? R.string.add_button : R.string.drop_button);
         updateList();
 
+        scheduleMinuteTick();
+        prepareMessages();
         maybeRecordNewRider(getIntent());
     }
 
@@ -310,15 +395,58 @@ public class ManifestActivity extends AppCompatActivity {
         final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         mTtsIsEnabled = prefs.getBoolean(SettingsActivity.PREF_ENABLE_TTS,
                 SettingsActivity.PREF_ENABLE_TTS_DEFAULT);
+        mSpeechCache.setBudget(getSpeechCacheBudget(prefs));
+        mTapFilter.setWindowSeconds(getTapWindowSeconds(prefs));
+    }
+
+    /**
+     * @return the disk space, in bytes, that synthesized announcements may take
+     */
+    private static long getSpeechCacheBudget(SharedPreferences prefs) {
+        final String speechCacheMbString = prefs.getString(
+                SettingsActivity.PREF_SPEECH_CACHE_MB,
+                SettingsActivity.PREF_SPEECH_CACHE_MB_DEFAULT);
+        long speechCacheMb;
+        try {
+            speechCacheMb = Long.parseLong(speechCacheMbString);
+        } catch (final NumberFormatException e) {
+            speechCacheMb = SettingsActivity.SPEECH_CACHE_MB_DEFAULT;
+        }
+        return speechCacheMb * 1024 * 1024;
+    }
+
+    /**
+     * @return how long, in seconds, a repeat read of a tag is ignored for
+     */
+    private static int getTapWindowSeconds(SharedPreferences prefs) {
+        final String tapWindowString = prefs.getString(
+                SettingsActivity.PREF_TAP_WINDOW_SECONDS,
+                SettingsActivity.PREF_TAP_WINDOW_SECONDS_DEFAULT);
+        try {
+            return Integer.parseInt(tapWindowString);
+        } catch (final NumberFormatException e) {
+            return SettingsActivity.TAP_WINDOW_SECONDS_DEFAULT;
+        }
     }
 
     @Override
     public void onDestroy() {
+        mSpeechScheduler.clear();
+        mClipOutput.release();
+        mTtsOutput.shutdown();
         if (mTts != null) {
             mTts.stop();
             mTts.shutdown();
         }
+        mSpeechCache.release();
+        if (mSynthesisTts != null) {
+            mSynthesisTts.stop();
+            mSynthesisTts.shutdown();
+        }
         unregisterReceiver(mDownloadReceiver);
+        RiderMessages.sInstance.setMessagesListener(null);
+        mMessageThread.quit();
+        mMainHandler.removeCallbacksAndMessages(null);
 
         super.onDestroy();
     }
@@ -329,36 +457,18 @@ public class ManifestActivity extends AppCompatActivity {
     }
 
     /**
-     * Unpack saved app state from the bundle
+     * Unpack saved view state from the bundle. The manifest isn't in it: the journal outlives
+     * the activity and always has the latest manifest, so it's only ever restored from there.
      */
     private void restoreFromBundle(Bundle savedInstanceState) {
-        mIsAddingToManifest = savedInstanceState.getBoolean(ISKEY_IS_ADDING);
         mManifestSortByName = savedInstanceState.getBoolean(ISKEY_SORT_BY_NAME);
-        final String[] rideStrings = savedInstanceState.getStringArray(ISKEY_MANIFEST);
-        for (final String rideString : rideStrings) {
-            final Ride ride = new Ride(rideString);
-            synchronized(mRideManifest) {
-                mRideManifest.put(ride.rider, ride);
-            }
-        }
         invalidateOptionsMenu();
     }
 
     @Override
     protected void onSaveInstanceState(Bundle outState) {
-        saveState();
         super.onSaveInstanceState(outState);
-        outState.putBoolean(ISKEY_IS_ADDING, mIsAddingToManifest);
         outState.putBoolean(ISKEY_SORT_BY_NAME, mManifestSortByName);
-        final int manifestSize = mRideManifest.size();
-        final String[] rideArray = new String[manifestSize];
-        int i = 0;
-        synchronized(mRideManifest) {
-            for (final Ride ride: mRideManifest.values()) {
-                rideArray[i++] = ride.toString();
-            }
-        }
-        outState.putStringArray(ISKEY_MANIFEST, rideArray);
     }
 
     @Override
@@ -384,58 +494,43 @@ public class ManifestActivity extends AppCompatActivity {
             mEmptyListView.setBackgroundColor(COLOR_SUCCESS);
             mEmptyListView.setText(R.string.empty_list_when_dropping);
         }
-        final ArrayList<Ride> rideList;
-        synchronized(mRideManifest) {
-            rideList = new ArrayList<>(mRideManifest.values());
-        }
-        Collections.sort(rideList,
-                mManifestSortByName ? new NameComparator<Ride>() : new BoardingComparator<Ride>());
-        final ArrayList<Map<String, String>> rideRows =
-                new ArrayList<>(mRideManifest.size());
-        for (final Ride ride: rideList) {
-            rideRows.add(ride.toMap());
-        }
-        if (rideRows.isEmpty()) {
+        final ManifestIndex manifest = mManifest;
+        mManifestAdapter.update(manifest, mManifestSortByName, mIsAddingToManifest);
+        if (manifest.isEmpty()) {
             mEmptyListView.setVisibility(View.VISIBLE);
             mListView.setVisibility(View.GONE);
         } else {
-            final Activity activity = this;
             mEmptyListView.setVisibility(View.GONE);
             mListView.setVisibility(View.VISIBLE);
-            mListView.setAdapter(new SimpleAdapter(this, rideRows,
-                    mIsAddingToManifest ? R.layout.rider_row_adding : R.layout.rider_row_dropping,
-                    ColumnNames, ColumnFields));
-            mListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
-                @Override
-                public void onItemClick(AdapterView<?> adapterView, View view, int position,
-                                        long id) {
-                    final TextView textView = view.findViewById(R.id.ride_name);
-                    final String clickedRider = textView.getText().toString();
-                    final String dialogMessage = activity.getResources()
-                            .getString(R.string.drop_dialog_message, clickedRider);
-                    new AlertDialog.Builder(activity)
-                            .setTitle(R.string.drop_dialog_title)
-                            .setMessage(dialogMessage)
-                            .setPositiveButton(android.R.string.ok,
-                                    new DialogInterface.OnClickListener() {
-                                        @Override
-                                        public void onClick(DialogInterface dialog, int which) {
-                                            recordNewRider(false, clickedRider);
-                                            updateList();
-                                            saveState();
-                                        }
-                                    })
-                            .setNegativeButton(android.R.string.cancel, null)
-                            .show();
-                }
-            });
         }
     }
 
+    /**
+     * Ask whether to drop a rider picked from the manifest list
+     */
+    private void confirmDrop(final String clickedRider) {
+        final String dialogMessage = getResources()
+                .getString(R.string.drop_dialog_message, clickedRider);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.drop_dialog_title)
+                .setMessage(dialogMessage)
+                .setPositiveButton(android.R.string.ok,
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                recordNewRider(false, mRiders.intern(clickedRider));
+                                updateList();
+                            }
+                        })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
     @Override
     protected void onPause() {
         super.onPause();
-        saveState();
+        // every change is already in the journal; this just keeps replay short
+        sJournal.compact();
     }
 
     @Override
@@ -470,9 +565,11 @@ public class ManifestActivity extends AppCompatActivity {
                 return true;
 
             case R.id.option_clear:
-                if (mRideManifest.isEmpty()) {
+                if (mManifest.isEmpty()) {
                     mIsAddingToManifest = true;
+                    sJournal.setAdding(true);
                     mRemovedRiders.clear();
+                    mTapFilter.clear();
                     clearRiderResult();
                 } else {
                     new AlertDialog.Builder(this)
@@ -483,13 +580,12 @@ public class ManifestActivity extends AppCompatActivity {
                                         @Override
                                         public void onClick(DialogInterface dialog, int which) {
                                             mIsAddingToManifest = true;
-                                            synchronized(mRideManifest) {
-                                                mRideManifest.clear();
-                                            }
+                                            mManifest = ManifestIndex.EMPTY;
+                                            sJournal.clear();
                                             mRemovedRiders.clear();
+                                            mTapFilter.clear();
                                             clearRiderResult();
                                             updateList();
-                                            saveState();
                                         }
                                     })
                             .setNegativeButton(android.R.string.cancel, null)
@@ -513,13 +609,14 @@ public class ManifestActivity extends AppCompatActivity {
                     .setView(riderView)
                     .setPositiveButton(R.string.add_button, new DialogInterface.OnClickListener() {
                         public void onClick(DialogInterface dialog, int which) {
-                            String riderName = riderNameView.getText().toString();
+                            final Rider rider =
+                                    mRiders.intern(riderNameView.getText().toString());
                             // Validate the name and warn the user if it's incorrect.
-                            if (id(riderName) == null) {
+                            if (rider.id == null) {
                                 Toast.makeText(ManifestActivity.this,
                                         R.string.bad_rider_id, Toast.LENGTH_LONG).show();
                             }
-                            recordNewRider(true, riderName);
+                            recordNewRider(true, rider);
                         }
                     })
                     .setNegativeButton(android.R.string.cancel, null).create().show();
@@ -580,8 +677,15 @@ public class ManifestActivity extends AppCompatActivity {
                     nfcRiderText);
         }
         mLatestRiderFromNfc = nfcRiderText;
-        final RiderInfo riderInfo = RiderInfo.getRiderInfo(nfcRiderText);
-        final String rider = riderInfo.name + " [" + riderInfo.id + "]";
+        final Rider rider = mRiders.internTag(nfcRiderText);
+        if (mTapFilter.isRepeat(rider.handle, mIsAddingToManifest,
+                SystemClock.elapsedRealtime())) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "ignoring repeat read of " + rider + ", "
+                        + mTapFilter.getSuppressedReads() + " so far");
+            }
+            return;
+        }
         recordNewRider(mIsAddingToManifest, rider);
     }
 
@@ -590,31 +694,30 @@ public class ManifestActivity extends AppCompatActivity {
      *
      * @param addToManifest if true, add the rider, else drop them
      */
-    private void recordNewRider(boolean addToManifest, String rider) {
+    private void recordNewRider(boolean addToManifest, Rider rider) {
         if (Log.isLoggable(TAG, Log.DEBUG)) {
             Log.d(TAG, "recordLatestRider " + (addToManifest ? "add " : "drop ") + rider);
         }
-        mLatestRider.setText(rider);
+        mLatestRider.setText(rider.key);
         if (addToManifest) {
-            if (mRideManifest.containsKey(rider)) {
+            if (mManifest.contains(rider.key)) {
                 dejaVu(rider);
                 showRiderResult(COLOR_WARNING, R.string.manifest_action_label_dupe_added);
             } else {
-                welcomeRider(rider, MAX_MESSAGE_TRIES);
-                synchronized(mRideManifest) {
-                    mRideManifest.put(rider, new Ride(rider, mRideManifest.size() + 1,
-                            System.currentTimeMillis()));
-                }
+                welcomeRider(rider);
+                final long boardingTime = System.currentTimeMillis();
+                mManifest = mManifest.add(rider.key, boardingTime);
+                sJournal.add(rider.key, boardingTime);
                 showRiderResult(COLOR_SUCCESS, R.string.manifest_action_label_added);
                 updateList();
             }
         } else {
-            if (mRideManifest.containsKey(rider)) {
-                returningRider(rider, mRideManifest.size() == 1, MAX_MESSAGE_TRIES);
+            if (mManifest.contains(rider.key)) {
+                returningRider(rider, mManifest.size() == 1);
                 remove(rider);
                 showRiderResult(COLOR_SUCCESS, R.string.manifest_action_label_dropped);
                 updateList();
-                if (mRideManifest.isEmpty()) {
+                if (mManifest.isEmpty()) {
                     timeToGo();
                 }
             } else {
@@ -622,210 +725,370 @@ public class ManifestActivity extends AppCompatActivity {
                 showRiderResult(COLOR_WARNING, R.string.manifest_action_label_dupe_dropped);
             }
         }
+        mRecentRiders.add(rider);
+        prepareMessages(rider);
     }
 
     /**
-     * @param rider - String in form "rider's name [rider's id]"
-     * @return rider's first name
+     * Have the message thread pick and render the next message for each rider who's likely to
+     * tap next: a return message for those on the manifest, and a welcome for recent riders who
+     * aren't. Taps then don't have to wait for the messages file.
+     *
+     * This goes through the whole manifest, so it's only done when the minute or the messages
+     * file changes. Messages prepared earlier that can still be said are kept.
      */
-    private static String firstName(final String rider) {
-        final String[] names = rider.split("\\s+");
-        for (final String name: names) {
-            if (!name.isEmpty()) {
-                return name;
+    private void prepareMessages() {
+        final ManifestIndex manifest = mManifest;
+        final List<Rider> aboard = new ArrayList<>(manifest.size());
+        for (final Ride ride: manifest.toNameList()) {
+            aboard.add(mRiders.intern(ride.rider));
+        }
+        final List<Rider> boarding = new ArrayList<>();
+        for (final Rider rider: mRecentRiders) {
+            if (!manifest.contains(rider.key)) {
+                boarding.add(rider);
             }
         }
-        return null;
+        // only the last rider off gets the isLast message
+        final int returnKind = aboard.size() == 1
+                ? RiderMessages.PREPARED_LAST_RETURN : RiderMessages.PREPARED_RETURN;
+        mMessageHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final RiderMessages messages = RiderMessages.sInstance;
+                final long time = System.currentTimeMillis();
+                prepare(messages, RiderMessages.PREPARED_WELCOME, boarding, time, false);
+                prepare(messages, returnKind, aboard, time, true);
+                messages.dropStalePrepared(time);
+                // any of these could follow the last return
+                for (final MessageTemplate go : messages.getGoTemplates(time)) {
+                    mSpeechCache.request(go.render(null), go.locale);
+                }
+                for (final MessageTemplate go : mGoes) {
+                    mSpeechCache.request(go.render(null), go.locale);
+                }
+            }
+        });
     }
 
     /**
-     * @param rider - String in form "rider's name [rider's id]"
-     * @return rider's id, or null if the string is not in the expected format
+     * Prepare the next message for a rider who just tapped, in place of the one just said.
+     * Only the last rider off gets the isLast message, so while the manifest is this small the
+     * others on it are prepared again too.
      */
-    private static String id(final String rider) {
-        final int openBracePos = rider.indexOf('[');
-        final int closeBracePos = rider.indexOf(']');
+    private void prepareMessages(final Rider tapped) {
+        final ManifestIndex manifest = mManifest;
+        final boolean isAboard = manifest.contains(tapped.key);
+        final List<Rider> aboard = new ArrayList<>(2);
+        if (manifest.size() <= 2) {
+            for (int i = 0; i < manifest.size(); i++) {
+                aboard.add(mRiders.intern(manifest.inNameOrder(i).rider));
+            }
+        } else if (isAboard) {
+            aboard.add(tapped);
+        }
+        final int returnKind = manifest.size() == 1
+                ? RiderMessages.PREPARED_LAST_RETURN : RiderMessages.PREPARED_RETURN;
+        mMessageHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final RiderMessages messages = RiderMessages.sInstance;
+                final long time = System.currentTimeMillis();
+                if (!isAboard) {
+                    prepare(messages, RiderMessages.PREPARED_WELCOME,
+                            Collections.singletonList(tapped), time, false);
+                }
+                prepare(messages, returnKind, aboard, time, true);
+            }
+        });
+    }
 
-        if (openBracePos == -1 || closeBracePos <= openBracePos + 1) {
-            return null;
+    /**
+     * @param synthesize - true to also synthesize the prepared messages ahead of time. Only
+     *          newly picked ones are handed to the cache: the others were handed over when they
+     *          were picked.
+     */
+    private void prepare(RiderMessages messages, int kind, List<Rider> riders, long time,
+            boolean synthesize) {
+        for (final Rider rider: riders) {
+            if (rider.id == null) {
+                continue;
+            }
+            final RiderMessages.PreparedMessage prepared =
+                    messages.prepare(kind, rider.key, rider.id, rider.firstName, time);
+            if (synthesize && prepared != null && prepared.isNewPick) {
+                mSpeechCache.request(prepared.text, prepared.locale);
+            }
         }
-        return rider.substring(openBracePos + 1, closeBracePos);
     }
 
-    private void sayRightNow(String phrase) {
-        final Phrase localPhrase = new Phrase(phrase);
-        setLocale(localPhrase);
-        if (mTtsIsAvailable && mTtsIsEnabled) {
-            bumpUtteranceNumber();
-            mTts.speak(localPhrase.text, TextToSpeech.QUEUE_FLUSH, mTtsOptions);
+    /**
+     * Refresh the prepared messages just after each minute starts, since the rules that match
+     * may change with it
+     */
+    private void scheduleMinuteTick() {
+        final long minute = TimeUnit.MINUTES.toMillis(1);
+        mMainHandler.postDelayed(mMinuteTick, minute - System.currentTimeMillis() % minute);
+    }
+
+    /**
+     * Speak the message prepared for rider, if it's still good
+     *
+     * @return false if there wasn't one
+     */
+    private boolean sayPrepared(int kind, Rider rider) {
+        final RiderMessages.PreparedMessage prepared =
+                RiderMessages.sInstance.takePrepared(kind, rider.key, System.currentTimeMillis());
+        if (prepared == null) {
+            return false;
         }
+        say(SpeechScheduler.PRIORITY_GREETING, kind == RiderMessages.PREPARED_WELCOME
+                ? SpeechScheduler.KIND_WELCOME : kind == RiderMessages.PREPARED_LAST_RETURN
+                ? SpeechScheduler.KIND_LAST_RETURN : SpeechScheduler.KIND_RETURN,
+                prepared.text, prepared.locale, rider);
+        return true;
     }
 
-    private void sayQueued(String phrase) {
-        final Phrase localPhrase = new Phrase(phrase);
-        setLocale(localPhrase);
+    /**
+     * Hand an announcement to the scheduler, to be said once what's ahead of it has been
+     *
+     * @param priority - one of SpeechScheduler's PRIORITY values
+     * @param kind - one of SpeechScheduler's KIND values
+     * @param rider - the rider it's for, or null
+     */
+    private void say(int priority, int kind, String phrase, Locale locale, Rider rider) {
         if (mTtsIsAvailable && mTtsIsEnabled) {
-            bumpUtteranceNumber();
-            mTts.speak(localPhrase.text, TextToSpeech.QUEUE_ADD, mTtsOptions);
+            mSpeechScheduler.add(new SpeechScheduler.Utterance(priority, kind, phrase, locale,
+                    firstNameOrNull(rider), System.currentTimeMillis()));
         }
     }
 
-    private void bumpUtteranceNumber() {
-        ++mLastUtteranceSubmitted;
-        mTtsOptions.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID,
-                mLastUtteranceSubmitted.toString());
+    /**
+     * Start an engine for each locale the loaded messages name
+     */
+    private void startTtsEngines() {
+        mTtsOutput.addLocales(RiderMessages.sInstance.getLocales());
     }
 
-    private void setLocale(final Phrase phrase) {
-        final String phraseLocale = extractToken(phrase, "locale");
-        final Locale newLocale = phraseLocale == null ? mDefaultLocale : new Locale(phraseLocale);
-        if (!newLocale.equals(mLastLocale)) {
-            if (Log.isLoggable(TAG, Log.DEBUG)) {
-                Log.d(TAG, "changing TTS to " + phraseLocale);
-            }
-            mTts.setLanguage(newLocale);
-            mLastLocale = newLocale;
+    /**
+     * Compile the built-in messages once, rather than on each use
+     */
+    private void compileResourceMessages() {
+        final Resources res = getResources();
+        mWelcomes = compileTemplates(res.getStringArray(R.array.welcomes));
+        mReturns = compileTemplates(res.getStringArray(R.array.returns));
+        final String[] goStrings = res.getStringArray(R.array.go);
+        mGoes = new MessageTemplate[goStrings.length];
+        for (int i = 0; i < goStrings.length; i++) {
+            mGoes[i] = MessageTemplate.compileLiteral(goStrings[i]);
         }
+        mAlreadyWelcomed = MessageTemplate.compile(res.getString(R.string.already_welcomed));
+        mAlreadyReturned = MessageTemplate.compile(res.getString(R.string.already_returned));
+    }
+
+    private static MessageTemplate[] compileTemplates(String[] messages) {
+        final MessageTemplate[] templates = new MessageTemplate[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            templates[i] = MessageTemplate.compile(messages[i]);
+        }
+        return templates;
     }
 
     /**
-     * Looks for a !command(param) string in phrase.
-     *
-     * @param phrase - contains string that may contain the command. If the command is found,
-     *            it will be stripped out
-     * @param command - the command to look for
-     * @return the param or null if the command wasn't found
+     * A message to be picked and rendered on the message thread, then spoken on the UI thread.
+     * If that takes longer than {@link #MESSAGE_DEADLINE_MS}, a built-in message is spoken
+     * instead, so that a slow messages file never holds up an announcement. Whichever comes
+     * first wins; the other is dropped.
      */
-    private String extractToken(final Phrase phrase, String command) {
-        final String phraseText = phrase.text;
-        String param = null;
-        final int startIdx = phraseText.indexOf("!" + command + "(");
-        if (startIdx >= 0) {
-            final int endIdx = phraseText.indexOf(')', startIdx);
-            if (endIdx > 0) {
-                param = phraseText.substring(startIdx + command.length() + 2, endIdx);
-                phrase.text = phraseText.substring(0, startIdx) + phraseText.substring(endIdx + 1);
+    private abstract class Announcement implements Runnable {
+        private final Rider mRider;  // null for messages that don't name anyone
+        private final int mPriority;
+        private final int mKind;
+        private final AtomicBoolean mDone = new AtomicBoolean();
+
+        private final Runnable mDeadline = new Runnable() {
+            @Override
+            public void run() {
+                if (mDone.compareAndSet(false, true)) {
+                    if (Log.isLoggable(TAG, Log.WARN)) {
+                        Log.w(TAG, "message deadline passed for " + mRider);
+                    }
+                    final MessageTemplate template = fallback();
+                    speak(template.render(firstNameOrNull(mRider)), template.locale);
+                }
             }
+        };
+
+        /**
+         * @param priority - one of SpeechScheduler's PRIORITY values
+         * @param kind - one of SpeechScheduler's KIND values
+         */
+        Announcement(Rider rider, int priority, int kind) {
+            mRider = rider;
+            mPriority = priority;
+            mKind = kind;
         }
-        return param;
-    }
 
-    private void welcomeRider(final String rider, int triesLeft) {
-        final String message = getWelcomeString(rider);
-        try {
-            sayRightNow(formatFirstName("welcome", message, rider));
-        } catch (IllegalFormatException | NullPointerException e) {
-            if (Log.isLoggable(TAG, Log.ERROR)) {
-                Log.e(TAG, "Bad welcome message: '" + message + "'");
-            }
-            if (triesLeft > 0) {
-                // pull an alternate message
-                welcomeRider(rider, triesLeft - 1);
-            } else {
-                // willing to trust that resource messages won't throw an exception
-                sayRightNow(formatFirstName("welcome alt", getRandomResWelcome(), rider));
-            }
+        /**
+         * Runs on the message thread
+         *
+         * @return the message to speak, or null to use the fallback
+         */
+        abstract MessageTemplate select();
+
+        /**
+         * @return a built-in message
+         */
+        abstract MessageTemplate fallback();
+
+        void start() {
+            mMainHandler.postDelayed(mDeadline, MESSAGE_DEADLINE_MS);
+            mMessageHandler.post(this);
         }
-    }
 
-    private String formatFirstName(String where, String message, String rider) {
-        final String firstName = firstName(rider);
-        try {
-            return String.format(message, firstName);
-        } catch (IllegalFormatException e) {
-            if (Log.isLoggable(TAG, Log.ERROR)) {
-                Log.e(TAG, "bad " + where + " format in '" + message + "': " + e);
+        @Override
+        public void run() {
+            final MessageTemplate selected = select();
+            final MessageTemplate template = selected != null ? selected : fallback();
+            final String text = template.render(firstNameOrNull(mRider));
+            if (mDone.compareAndSet(false, true)) {
+                mMainHandler.removeCallbacks(mDeadline);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        speak(text, template.locale);
+                    }
+                });
             }
         }
-        return firstName;
+
+        private void speak(String text, Locale locale) {
+            say(mPriority, mKind, text, locale, mRider);
+        }
     }
 
-    private void returningRider(final String rider, boolean isLast, int triesLeft) {
-        final String message = getReturnsString(rider, isLast);
-        try {
-            sayRightNow(formatFirstName("returning", message, rider));
-        } catch (IllegalFormatException | NullPointerException e) {
-            if (Log.isLoggable(TAG, Log.ERROR)) {
-                Log.e(TAG, "Bad return message: '" + message + "': " + e);
+    private static String firstNameOrNull(Rider rider) {
+        return rider == null ? null : rider.firstName;
+    }
+
+    private void welcomeRider(final Rider rider) {
+        if (sayPrepared(RiderMessages.PREPARED_WELCOME, rider)) {
+            return;
+        }
+        new Announcement(rider, SpeechScheduler.PRIORITY_GREETING,
+                SpeechScheduler.KIND_WELCOME) {
+            @Override
+            MessageTemplate select() {
+                return getWelcomeTemplate(rider);
             }
-            if (triesLeft > 0) {
-                // pull an alternate message
-                returningRider(rider, isLast, triesLeft - 1);
-            } else {
-                // willing to trust that resource messages won't throw an exception
-                sayRightNow(formatFirstName("returning alt", getRandomResReturn(), rider));
+
+            @Override
+            MessageTemplate fallback() {
+                return getRandomResWelcome();
             }
+        }.start();
+    }
+
+    private void returningRider(final Rider rider, final boolean isLast) {
+        if (sayPrepared(isLast ? RiderMessages.PREPARED_LAST_RETURN
+                : RiderMessages.PREPARED_RETURN, rider)) {
+            return;
         }
+        new Announcement(rider, SpeechScheduler.PRIORITY_GREETING,
+                isLast ? SpeechScheduler.KIND_LAST_RETURN : SpeechScheduler.KIND_RETURN) {
+            @Override
+            MessageTemplate select() {
+                return getReturnsTemplate(rider, isLast);
+            }
+
+            @Override
+            MessageTemplate fallback() {
+                return getRandomResReturn();
+            }
+        }.start();
     }
 
-    private void whoAreYou(final String rider) {
-        final boolean dejaVu = mRemovedRiders.contains(rider);
-        final String alreadyReturned = RiderMessages.sInstance.getAlreadyReturnedString(rider,
-                dejaVu);
-        sayRightNow(alreadyReturned != null ? formatFirstName("who", alreadyReturned, rider) :
-                getResources().getString(R.string.already_returned, firstName(rider)));
+    private void whoAreYou(final Rider rider) {
+        final boolean dejaVu = mRemovedRiders.get(rider.handle);
+        new Announcement(rider, SpeechScheduler.PRIORITY_WARNING, SpeechScheduler.KIND_OTHER) {
+            @Override
+            MessageTemplate select() {
+                return rider.id == null ? null
+                        : RiderMessages.sInstance.getAlreadyReturnedTemplate(rider.id, dejaVu);
+            }
+
+            @Override
+            MessageTemplate fallback() {
+                return mAlreadyReturned;
+            }
+        }.start();
     }
 
-    private void dejaVu(final String rider) {
-        final String alreadyWelcomed = RiderMessages.sInstance.getAlreadyWelcomedString(rider);
-        sayRightNow(alreadyWelcomed != null ? formatFirstName("dejavu", alreadyWelcomed, rider) :
-                getResources().getString(R.string.already_welcomed, firstName(rider)));
+    private void dejaVu(final Rider rider) {
+        new Announcement(rider, SpeechScheduler.PRIORITY_WARNING, SpeechScheduler.KIND_OTHER) {
+            @Override
+            MessageTemplate select() {
+                return rider.id == null ? null
+                        : RiderMessages.sInstance.getAlreadyWelcomedTemplate(rider.id);
+            }
+
+            @Override
+            MessageTemplate fallback() {
+                return mAlreadyWelcomed;
+            }
+        }.start();
     }
 
+    /**
+     * Said ahead of any other announcements that are waiting
+     */
     private void timeToGo() {
-        mTts.playSilence(500, TextToSpeech.QUEUE_ADD, null);
-        final String goString = RiderMessages.sInstance.getGoString(RiderMessages.timeString());
-        sayQueued(goString != null ? goString : getRandomResGo());
-    }
+        new Announcement(null, SpeechScheduler.PRIORITY_GO, SpeechScheduler.KIND_OTHER) {
+            @Override
+            MessageTemplate select() {
+                return RiderMessages.sInstance.getGoTemplate();
+            }
 
-    private String getRandomResGo() {
-        final String[] goStrings = getResources().getStringArray(R.array.go);
-        return goStrings[sRandom.nextInt(goStrings.length)];
+            @Override
+            MessageTemplate fallback() {
+                return mGoes[sRandom.nextInt(mGoes.length)];
+            }
+        }.start();
     }
 
-    private String getWelcomeString(final String rider) {
-        final String riderId = id(rider);
-        if (riderId == null) {
+    private MessageTemplate getWelcomeTemplate(final Rider rider) {
+        if (rider.id == null) {
             return getRandomResWelcome();
         }
-        final String welcomeString = RiderMessages.sInstance.getWelcomeString(id(rider));
-        return welcomeString != null ? welcomeString : getRandomResWelcome();
+        final MessageTemplate welcome = RiderMessages.sInstance.getWelcomeTemplate(rider.id);
+        return welcome != null ? welcome : getRandomResWelcome();
     }
 
-    private String getRandomResWelcome() {
+    private MessageTemplate getRandomResWelcome() {
         return mWelcomes[sRandom.nextInt(mWelcomes.length)];
     }
 
-    private String getReturnsString(final String rider, final boolean isLast) {
-        final String riderId = id(rider);
-        if (riderId == null) {
+    private MessageTemplate getReturnsTemplate(final Rider rider, final boolean isLast) {
+        if (rider.id == null) {
             return getRandomResReturn();
         }
-        final String returnsString = RiderMessages.sInstance.getReturnsString(id(rider), isLast);
-        return returnsString != null ? returnsString : getRandomResReturn();
+        final MessageTemplate returns =
+                RiderMessages.sInstance.getReturnsTemplate(rider.id, isLast);
+        return returns != null ? returns : getRandomResReturn();
     }
 
-    private String getRandomResReturn() {
+    private MessageTemplate getRandomResReturn() {
         return mReturns[sRandom.nextInt(mReturns.length)];
     }
 
     /**
-     * Remove rider from the manifest after adjusting the boarding order of all subsequent riders
+     * Remove rider from the manifest. Later riders move up in boarding order without being
+     * touched, since their order is worked out from the index.
      */
-    private void remove(final String riderToRemove) {
-        final Ride removedRide = mRideManifest.get(riderToRemove);
-        final int removedBoardingOrder = removedRide.boardingOrder;
-        synchronized(mRideManifest) {
-            for (final String rider: mRideManifest.keySet()) {
-                final Ride ride = mRideManifest.get(rider);
-                if (ride.boardingOrder > removedBoardingOrder) {
-                    mRideManifest.put(rider, new Ride(ride.rider, ride.boardingOrder - 1,
-                            ride.boardingTime));
-                }
-            }
-            mRideManifest.remove(riderToRemove);
-            mRemovedRiders.add(riderToRemove);
-        }
+    private void remove(final Rider riderToRemove) {
+        mManifest = mManifest.remove(riderToRemove.key);
+        sJournal.drop(riderToRemove.key);
+        mRemovedRiders.set(riderToRemove.handle);
     }
 
     /**
@@ -955,182 +1218,18 @@ public class ManifestActivity extends AppCompatActivity {
         }
     }
 
-    private static class Ride {
-        final static String SEPARATOR = "|";
-        final static String SEPARATOR_RE = "\\|";
-        final static String RIDER = "rider";
-        final static String ORDER = "order";
-        final static String TIME = "time";
-        final String rider;
-        final int boardingOrder;
-        final long boardingTime;
-
-        Ride(String rider, int boardingOrder, long boardingTime) {
-            this.rider = rider;
-            this.boardingOrder = boardingOrder;
-            this.boardingTime = boardingTime;
-        }
-
-        Ride(String packedRide) {
-            final String[] splitRide = packedRide.split(SEPARATOR_RE);
-            rider = splitRide[0];
-            boardingOrder = Integer.valueOf(splitRide[1]);
-            boardingTime = Long.valueOf(splitRide[2]);
-        }
-
-        public String toString() {
-            return rider + SEPARATOR + boardingOrder + SEPARATOR + boardingTime;
-        }
-
-        Map<String, String> toMap() {
-            final Map<String, String> result = new HashMap<>(3);
-            result.put(RIDER, rider);
-            result.put(ORDER, Integer.toString(boardingOrder));
-            final DateFormat timeFormat = DateFormat.getTimeInstance(DateFormat.SHORT,
-                    Locale.getDefault());
-            final Date timeDate = new Date(boardingTime);
-            final String timeString = timeFormat.format(timeDate);
-            result.put(TIME, timeString);
-            return result;
-        }
-    }
-
-    /**
-     * Sort by rider name.
-     * @author rschnapp
-     *
-     * @param <T>
-     */
-    private static class NameComparator<T> implements Comparator<T> {
-
-        @Override
-        public int compare(Object lhs, Object rhs) {
-            Ride lhsRide = null;
-            Ride rhsRide = null;
-            if (lhs instanceof Ride) {
-                lhsRide = (Ride) lhs;
-            } else {
-                return -1;
-            }
-            if (rhs instanceof Ride) {
-                rhsRide = (Ride) rhs;
-            } else {
-                return 1;
-            }
-            return lhsRide.rider.compareTo(rhsRide.rider);
-        }
-
-    }
-
-    /**
-     * Sort by descending boarding order (most recent arrival comes first).
-     * @author rschnapp
-     *
-     * @param <T>
-     */
-    private static class BoardingComparator<T> implements Comparator<T> {
-
-        @Override
-        public int compare(Object lhs, Object rhs) {
-            Ride lhsRide = null;
-            Ride rhsRide = null;
-            if (lhs instanceof Ride) {
-                lhsRide = (Ride) lhs;
-            } else {
-                return -1;
-            }
-            if (rhs instanceof Ride) {
-                rhsRide = (Ride) rhs;
-            } else {
-                return 1;
-            }
-            return rhsRide.boardingOrder - lhsRide.boardingOrder;
-        }
-
-    }
-
-    /**
-     * Store app state (mode and manifest) in a file
-     */
-    private void saveState() {
-        if (Log.isLoggable(TAG, Log.DEBUG)) {
-            Log.d(TAG, "saveState()");
-            Log.d(TAG, "  isAdding=" + mIsAddingToManifest + ", manifest=" + mRideManifest);
-        }
-        new AsyncTask<Void, Void, Void>() {
-
-            @Override
-            protected Void doInBackground(Void... params) {
-                final String eol = System.getProperty("line.separator");
-                BufferedWriter writer = null;
-                try {
-                    writer = new BufferedWriter(new OutputStreamWriter(openFileOutput(
-                            MANIFEST_STATE_FILE,
-                            MODE_PRIVATE)));
-                    writer.write("" + mIsAddingToManifest + eol);
-                    synchronized(mRideManifest) {
-                        for (final Ride ride : mRideManifest.values()) {
-                            writer.write(ride.toString() + eol);
-                        }
-                    }
-                } catch (Exception e) {
-                    if (Log.isLoggable(TAG, Log.ERROR)) {
-                        Log.e(TAG, "saveState create/write failed", e);
-                    }
-                } finally {
-                    if (writer != null) {
-                        try {
-                            writer.close();
-                        } catch (IOException e) {
-                            if (Log.isLoggable(TAG, Log.ERROR)) {
-                                Log.e(TAG, "saveState close failed", e);
-                            }
-                        }
-                    }
-                }
-                return null;
-            }
-
-        }.execute((Void) null);
-    }
-
     /**
-     * Restore app state (mode and manifest) from a file
+     * Restore app state (mode and manifest) from the journal
      */
     private void restoreState() {
+        final ManifestJournal.State state = sJournal.restore();
+        mIsAddingToManifest = state.isAdding;
+        mManifest = state.manifest;
         if (Log.isLoggable(TAG, Log.DEBUG)) {
             Log.d(TAG, "restoreState()");
-            Log.d(TAG, "  isAdding=" + mIsAddingToManifest + ", manifest=" + mRideManifest);
-        }
-        BufferedReader reader = null;
-        try {
-            reader = new BufferedReader(new InputStreamReader(openFileInput(MANIFEST_STATE_FILE)));
-            // read the "is adding" state: will be 'true' or 'false'
-            String line = reader.readLine();
-            mIsAddingToManifest = (line == null) || "true".equals(line);
-            // read the riders
-            synchronized(mRideManifest) {
-                while ((line = reader.readLine()) != null) {
-                    final Ride ride = new Ride(line);
-                    mRideManifest.put(ride.rider, ride);
-                }
-            }
-            invalidateOptionsMenu();
-        } catch (Exception e) {
-            if (Log.isLoggable(TAG, Log.ERROR)) {
-                Log.e(TAG, "restoreState open/read failed", e);
-            }
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    if (Log.isLoggable(TAG, Log.ERROR)) {
-                        Log.e(TAG, "restoreState close failed", e);
-                    }
-                }
-            }
+            Log.d(TAG, "  isAdding=" + mIsAddingToManifest + ", manifest=" + mManifest);
         }
+        invalidateOptionsMenu();
     }
 
     private class TtsListener implements TextToSpeech.OnInitListener {
@@ -1138,11 +1237,11 @@ public class ManifestActivity extends AppCompatActivity {
         @Override
         public void onInit(int status) {
             if (status == TextToSpeech.SUCCESS) {
-                mTtsOptions = new HashMap<>();
                 final Locale defaultLocale = Locale.getDefault();
                 final int result = mTts.setLanguage(defaultLocale);
                 mTtsIsAvailable = (result != TextToSpeech.LANG_MISSING_DATA) &&
                         (result != TextToSpeech.LANG_NOT_SUPPORTED);
+                mTts.setOnUtteranceCompletedListener(mTtsOutput);
                 // Need to make enablement of network synthesis a setting. Gets complicated with
                 // network connectivity coming and going.
                 // final Set<String> ttsFeatures = mTts.getFeatures(defaultLocale);
@@ -1153,11 +1252,4 @@ public class ManifestActivity extends AppCompatActivity {
         }
 
     }
-
-    private class Phrase {
-        String text;
-        Phrase(final String text) {
-            this.text = text;
-        }
-    }
 }
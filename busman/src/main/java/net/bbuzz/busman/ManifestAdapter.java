@@ -0,0 +1,194 @@
+package net.bbuzz.busman;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.SectionIndexer;
+import android.widget.TextView;
+
+import java.text.DateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Shows the manifest straight from its {@link ManifestIndex}, in name order or with the most
+ * recent arrival first. Rows are looked up by position in the index rather than copied, and each
+ * ride's id is its sequence, so when the manifest changes the list keeps its place and only
+ * rebinds the rows on screen.
+ *
+ * In name order the fast-scroll sections are the first letters of the riders' names.
+ */
+class ManifestAdapter extends BaseAdapter implements SectionIndexer {
+
+    private static final int VIEW_TYPE_ADDING = 0;
+    private static final int VIEW_TYPE_DROPPING = 1;
+    private static final String[] NO_SECTIONS = new String[0];
+
+    private final LayoutInflater mInflater;
+    private final DateFormat mTimeFormat =
+            DateFormat.getTimeInstance(DateFormat.SHORT, Locale.getDefault());
+    // each ride's boarding time, formatted the first time its row is shown
+    private final Map<Ride, String> mTimes = new WeakHashMap<>();
+    private ManifestIndex mManifest = ManifestIndex.EMPTY;
+    private boolean mSortByName;
+    private boolean mIsAdding = true;
+    // worked out when the fast scroller asks for them
+    private String[] mSections;
+    private int[] mSectionPositions;
+
+    ManifestAdapter(Context context) {
+        mInflater = LayoutInflater.from(context);
+    }
+
+    /**
+     * Show manifest, redrawing only if something shown has changed
+     *
+     * @param isAdding - chooses the row layout
+     */
+    void update(ManifestIndex manifest, boolean sortByName, boolean isAdding) {
+        if (manifest == mManifest && sortByName == mSortByName && isAdding == mIsAdding) {
+            return;
+        }
+        mManifest = manifest;
+        mSortByName = sortByName;
+        mIsAdding = isAdding;
+        mSections = null;
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return mManifest.size();
+    }
+
+    @Override
+    public Ride getItem(int position) {
+        return mSortByName
+                ? mManifest.inNameOrder(position)
+                : mManifest.inBoardingOrder(mManifest.size() - 1 - position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return getItem(position).sequence;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public int getViewTypeCount() {
+        return 2;
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return mIsAdding ? VIEW_TYPE_ADDING : VIEW_TYPE_DROPPING;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        View row = convertView;
+        RowViews views;
+        if (row == null) {
+            row = mInflater.inflate(
+                    mIsAdding ? R.layout.rider_row_adding : R.layout.rider_row_dropping,
+                    parent, false);
+            views = new RowViews(row);
+            row.setTag(views);
+        } else {
+            views = (RowViews) row.getTag();
+        }
+        final Ride ride = getItem(position);
+        final int boardingOrder = mSortByName
+                ? mManifest.boardingOrder(ride) : mManifest.size() - position;
+        views.order.setText(Integer.toString(boardingOrder));
+        views.rider.setText(ride.rider);
+        views.time.setText(getTime(ride));
+        return row;
+    }
+
+    private String getTime(Ride ride) {
+        String time = mTimes.get(ride);
+        if (time == null) {
+            time = mTimeFormat.format(new Date(ride.boardingTime));
+            mTimes.put(ride, time);
+        }
+        return time;
+    }
+
+    @Override
+    public Object[] getSections() {
+        if (mSections == null) {
+            findSections();
+        }
+        return mSections;
+    }
+
+    @Override
+    public int getPositionForSection(int sectionIndex) {
+        getSections();
+        if (mSectionPositions.length == 0) {
+            return 0;
+        }
+        final int section = Math.max(0, Math.min(sectionIndex, mSectionPositions.length - 1));
+        return mSectionPositions[section];
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        getSections();
+        final int found = Arrays.binarySearch(mSectionPositions, position);
+        return Math.max(0, found >= 0 ? found : -found - 2);
+    }
+
+    /**
+     * Find where each first letter starts, by jumping from one to the next in the index
+     */
+    private void findSections() {
+        if (!mSortByName) {
+            mSections = NO_SECTIONS;
+            mSectionPositions = new int[0];
+            return;
+        }
+        final int size = mManifest.size();
+        final String[] sections = new String[size];
+        final int[] positions = new int[size];
+        int count = 0;
+        int position = 0;
+        while (position < size) {
+            final String rider = mManifest.inNameOrder(position).rider;
+            sections[count] = rider.isEmpty() ? "" : rider.substring(0, 1);
+            positions[count++] = position;
+            if (rider.isEmpty()) {
+                position++;
+            } else if (rider.charAt(0) == Character.MAX_VALUE) {
+                position = size;
+            } else {
+                position = mManifest.countNamesBefore(
+                        String.valueOf((char) (rider.charAt(0) + 1)));
+            }
+        }
+        mSections = Arrays.copyOf(sections, count);
+        mSectionPositions = Arrays.copyOf(positions, count);
+    }
+
+    private static class RowViews {
+        final TextView order;
+        final TextView rider;
+        final TextView time;
+
+        RowViews(View row) {
+            order = row.findViewById(R.id.ride_order);
+            rider = row.findViewById(R.id.ride_name);
+            time = row.findViewById(R.id.ride_time);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package net.bbuzz.busman;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Packs the manifest and mode into bytes, for the saved instance state and the snapshot on disk.
+ *
+ * After a version byte, the mode flag and the journal's last record number, comes a table of
+ * the riders' names in name order, each stored as the length of the prefix it shares with the
+ * one before it plus the rest. Then come the rides in boarding order, each as its rider's place
+ * in the table and its boarding time less the previous ride's. Numbers are varints, so most take
+ * a byte or two.
+ */
+final class ManifestCodec {
+
+    static final int VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ManifestCodec() {
+    }
+
+    static byte[] encode(ManifestJournal.State state) {
+        final ManifestIndex manifest = state.manifest;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(16 + 16 * manifest.size());
+        out.write(VERSION);
+        out.write(state.isAdding ? 1 : 0);
+        writeVarint(out, state.lastRecord);
+        writeVarint(out, manifest.size());
+
+        String previous = "";
+        for (final Ride ride : manifest.toNameList()) {
+            final int shared = sharedPrefix(previous, ride.rider);
+            final byte[] rest = ride.rider.substring(shared).getBytes(UTF_8);
+            writeVarint(out, shared);
+            writeVarint(out, rest.length);
+            out.write(rest, 0, rest.length);
+            previous = ride.rider;
+        }
+
+        long previousTime = 0;
+        for (final Ride ride : manifest.toBoardingList()) {
+            writeVarint(out, manifest.nameIndex(ride.rider));
+            writeVarint(out, zigzag(ride.boardingTime - previousTime));
+            previousTime = ride.boardingTime;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @throws IOException if bytes weren't written by a version of encode this can read
+     */
+    static ManifestJournal.State decode(byte[] bytes) throws IOException {
+        final Reader in = new Reader(bytes);
+        final int version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("unknown manifest version " + version);
+        }
+        final boolean isAdding = in.readByte() != 0;
+        final long lastRecord = in.readVarint();
+        final int size = (int) in.readVarint();
+        if (size < 0 || size > bytes.length) {
+            throw new IOException("bad manifest size " + size);
+        }
+
+        final String[] riders = new String[size];
+        String previous = "";
+        for (int i = 0; i < size; i++) {
+            final int shared = (int) in.readVarint();
+            if (shared < 0 || shared > previous.length()) {
+                throw new IOException("bad shared prefix " + shared);
+            }
+            riders[i] = previous.substring(0, shared) + in.readString((int) in.readVarint());
+            previous = riders[i];
+        }
+
+        ManifestIndex manifest = ManifestIndex.EMPTY;
+        long boardingTime = 0;
+        for (int boardingOrder = 1; boardingOrder <= size; boardingOrder++) {
+            final long rider = in.readVarint();
+            if (rider < 0 || rider >= size) {
+                throw new IOException("bad rider " + rider);
+            }
+            boardingTime += unzigzag(in.readVarint());
+            manifest = manifest.add(new Ride(riders[(int) rider], boardingOrder, boardingTime));
+        }
+        return new ManifestJournal.State(isAdding, manifest, lastRecord);
+    }
+
+    /**
+     * @return how many chars a and b start with in common, not splitting a surrogate pair
+     */
+    private static int sharedPrefix(String a, String b) {
+        final int limit = Math.min(a.length(), b.length());
+        int shared = 0;
+        while (shared < limit && a.charAt(shared) == b.charAt(shared)) {
+            shared++;
+        }
+        if (shared > 0 && Character.isHighSurrogate(a.charAt(shared - 1))) {
+            shared--;
+        }
+        return shared;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        long remaining = value;
+        while ((remaining & ~0x7fL) != 0) {
+            out.write((int) ((remaining & 0x7f) | 0x80));
+            remaining >>>= 7;
+        }
+        out.write((int) remaining);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static class Reader {
+        private final byte[] mBytes;
+        private int mPosition;
+
+        Reader(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        int readByte() throws EOFException {
+            if (mPosition >= mBytes.length) {
+                throw new EOFException("manifest cut off");
+            }
+            return mBytes[mPosition++] & 0xff;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("varint too long");
+        }
+
+        String readString(int length) throws EOFException {
+            if (length < 0 || length > mBytes.length - mPosition) {
+                throw new EOFException("manifest cut off");
+            }
+            final String string = new String(mBytes, mPosition, length, UTF_8);
+            mPosition += length;
+            return string;
+        }
+    }
+}
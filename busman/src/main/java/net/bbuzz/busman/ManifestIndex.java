@@ -0,0 +1,309 @@
+package net.bbuzz.busman;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The riders on the manifest, kept in both name order and boarding order. Each order is a
+ * treap whose nodes know the size of their subtree, so a rider's place in either order, and the
+ * rider at any place, is found in O(log n). A rider's boarding order is their rank by
+ * {@link Ride#sequence}, so when a rider gets off, no one else's entry has to change.
+ *
+ * Riders are looked up by name in a {@link HashTrieMap}, so checking a tap against the
+ * manifest doesn't walk either tree.
+ *
+ * An index is never modified: adding or removing a rider copies the nodes on the path to it
+ * and returns a new index that shares the rest. Holding on to an index is a snapshot of the
+ * manifest.
+ */
+final class ManifestIndex {
+
+    static final ManifestIndex EMPTY =
+            new ManifestIndex(HashTrieMap.<String, Ride>empty(), null, null, 1);
+
+    private static final Comparator<Ride> NAME_ORDER = new Comparator<Ride>() {
+        @Override
+        public int compare(Ride lhs, Ride rhs) {
+            return lhs.rider.compareTo(rhs.rider);
+        }
+    };
+
+    private static final Comparator<Ride> BOARDING_ORDER = new Comparator<Ride>() {
+        @Override
+        public int compare(Ride lhs, Ride rhs) {
+            return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+        }
+    };
+
+    private static final class Node {
+        final Ride ride;
+        final int priority;  // a parent's is never less than its children's
+        final int size;      // of the subtree
+        final Node left;
+        final Node right;
+
+        Node(Ride ride, int priority, Node left, Node right) {
+            this.ride = ride;
+            this.priority = priority;
+            this.size = 1 + size(left) + size(right);
+            this.left = left;
+            this.right = right;
+        }
+
+        Node with(Node left, Node right) {
+            return new Node(ride, priority, left, right);
+        }
+    }
+
+    private final HashTrieMap<String, Ride> mByRider;
+    private final Node mByName;
+    private final Node mByBoarding;
+    private final long mNextSequence;
+
+    private ManifestIndex(HashTrieMap<String, Ride> byRider, Node byName, Node byBoarding,
+            long nextSequence) {
+        mByRider = byRider;
+        mByName = byName;
+        mByBoarding = byBoarding;
+        mNextSequence = nextSequence;
+    }
+
+    int size() {
+        return size(mByName);
+    }
+
+    boolean isEmpty() {
+        return mByName == null;
+    }
+
+    /**
+     * @return the rider's ride, or null if they're not on the manifest
+     */
+    Ride get(String rider) {
+        return mByRider.get(rider);
+    }
+
+    boolean contains(String rider) {
+        return get(rider) != null;
+    }
+
+    /**
+     * @return an index with rider added after everyone else in boarding order, or this one if
+     *          they're already on it
+     */
+    ManifestIndex add(String rider, long boardingTime) {
+        if (contains(rider)) {
+            return this;
+        }
+        return add(new Ride(rider, mNextSequence, boardingTime));
+    }
+
+    /**
+     * @param ride - placed in boarding order by its sequence, e.g., when restoring a saved
+     *          manifest. Replaces any ride the rider already had.
+     */
+    ManifestIndex add(Ride ride) {
+        final ManifestIndex without = remove(ride.rider);
+        final int priority = priority(ride);
+        return new ManifestIndex(without.mByRider.put(ride.rider, ride),
+                insert(without.mByName, new Node(ride, priority, null, null), NAME_ORDER),
+                insert(without.mByBoarding, new Node(ride, priority, null, null),
+                        BOARDING_ORDER),
+                Math.max(without.mNextSequence, ride.sequence + 1));
+    }
+
+    /**
+     * @return an index without rider, or this one if they weren't on it
+     */
+    ManifestIndex remove(String rider) {
+        final Ride ride = get(rider);
+        if (ride == null) {
+            return this;
+        }
+        return new ManifestIndex(mByRider.remove(rider), remove(mByName, ride, NAME_ORDER),
+                remove(mByBoarding, ride, BOARDING_ORDER), mNextSequence);
+    }
+
+    /**
+     * @return ride's place in boarding order, starting at 1
+     */
+    int boardingOrder(Ride ride) {
+        return countBefore(mByBoarding, ride, BOARDING_ORDER) + 1;
+    }
+
+    /**
+     * @return rider's place in name order, starting at 0, or -1 if they're not on the manifest
+     */
+    int nameIndex(String rider) {
+        final Ride ride = get(rider);
+        return ride == null ? -1 : countBefore(mByName, ride, NAME_ORDER);
+    }
+
+    /**
+     * @return how many riders' names sort before name, whether or not it's on the manifest
+     */
+    int countNamesBefore(String name) {
+        int count = 0;
+        Node node = mByName;
+        while (node != null) {
+            if (node.ride.rider.compareTo(name) < 0) {
+                count += size(node.left) + 1;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param index - from 0 to size() - 1
+     */
+    Ride inNameOrder(int index) {
+        return select(mByName, index);
+    }
+
+    /**
+     * @param index - from 0 to size() - 1; the first rider to board is 0
+     */
+    Ride inBoardingOrder(int index) {
+        return select(mByBoarding, index);
+    }
+
+    List<Ride> toNameList() {
+        final List<Ride> rides = new ArrayList<>(size());
+        collect(mByName, rides);
+        return rides;
+    }
+
+    List<Ride> toBoardingList() {
+        final List<Ride> rides = new ArrayList<>(size());
+        collect(mByBoarding, rides);
+        return rides;
+    }
+
+    @Override
+    public String toString() {
+        return toBoardingList().toString();
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    /**
+     * @return a well-mixed hash of the rider, so the treaps stay balanced in any order
+     */
+    private static int priority(Ride ride) {
+        int hash = ride.rider.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    private static Node insert(Node tree, Node leaf, Comparator<Ride> order) {
+        if (tree == null) {
+            return leaf;
+        }
+        if (leaf.priority > tree.priority) {
+            final Node[] parts = new Node[2];
+            split(tree, leaf.ride, order, parts);
+            return leaf.with(parts[0], parts[1]);
+        }
+        if (order.compare(leaf.ride, tree.ride) < 0) {
+            return tree.with(insert(tree.left, leaf, order), tree.right);
+        }
+        return tree.with(tree.left, insert(tree.right, leaf, order));
+    }
+
+    /**
+     * @param parts - receives the rides before ride in parts[0], and the rest in parts[1]
+     */
+    private static void split(Node tree, Ride ride, Comparator<Ride> order, Node[] parts) {
+        if (tree == null) {
+            parts[0] = null;
+            parts[1] = null;
+        } else if (order.compare(tree.ride, ride) < 0) {
+            split(tree.right, ride, order, parts);
+            parts[0] = tree.with(tree.left, parts[0]);
+        } else {
+            split(tree.left, ride, order, parts);
+            parts[1] = tree.with(parts[1], tree.right);
+        }
+    }
+
+    /**
+     * @param ride - must be in tree
+     */
+    private static Node remove(Node tree, Ride ride, Comparator<Ride> order) {
+        final int comparison = order.compare(ride, tree.ride);
+        if (comparison < 0) {
+            return tree.with(remove(tree.left, ride, order), tree.right);
+        }
+        if (comparison > 0) {
+            return tree.with(tree.left, remove(tree.right, ride, order));
+        }
+        return merge(tree.left, tree.right);
+    }
+
+    /**
+     * @return the rides of both trees; all of before's must come before all of after's
+     */
+    private static Node merge(Node before, Node after) {
+        if (before == null) {
+            return after;
+        }
+        if (after == null) {
+            return before;
+        }
+        if (before.priority > after.priority) {
+            return before.with(before.left, merge(before.right, after));
+        }
+        return after.with(merge(before, after.left), after.right);
+    }
+
+    private static int countBefore(Node tree, Ride ride, Comparator<Ride> order) {
+        int count = 0;
+        Node node = tree;
+        while (node != null) {
+            if (order.compare(node.ride, ride) < 0) {
+                count += size(node.left) + 1;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return count;
+    }
+
+    private static Ride select(Node tree, int index) {
+        if (index < 0 || index >= size(tree)) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size(tree));
+        }
+        Node node = tree;
+        int remaining = index;
+        while (true) {
+            final int leftSize = size(node.left);
+            if (remaining < leftSize) {
+                node = node.left;
+            } else if (remaining == leftSize) {
+                return node.ride;
+            } else {
+                remaining -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    private static void collect(Node tree, List<Ride> rides) {
+        if (tree != null) {
+            collect(tree.left, rides);
+            rides.add(tree.ride);
+            collect(tree.right, rides);
+        }
+    }
+}
@@ -0,0 +1,449 @@
+package net.bbuzz.busman;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the manifest and mode on disk as a snapshot plus a journal of the changes made since.
+ * Each add, drop, mode change or clear appends one short record to the journal, and records
+ * that arrive together are written and synced together. Once the journal grows long, or when
+ * asked, the state is written to a new snapshot and the journal is emptied.
+ *
+ * All file I/O is done, in order, on one worker thread, so writes never interleave. The worker
+ * waits a moment after the first change of a burst, so the rest of the burst goes out in the
+ * same write. The state it writes is the immutable one current at that point, taken without
+ * holding up the UI thread while it's written. A crash
+ * can leave at most a partial last record, which is ignored when the journal is read back.
+ * Records are numbered, and a snapshot notes the last one it includes, so a journal that
+ * outlives its snapshot because of a crash isn't applied twice.
+ *
+ * The journal keeps its own copy of the state, updated as each change is recorded, so that a
+ * snapshot always matches exactly the records it replaces.
+ */
+class ManifestJournal {
+
+    private static final String TAG = "ManifestJournal";
+
+    // written by ManifestCodec
+    static final String SNAPSHOT_FILE = "ManifestState.bin";
+    // the text snapshot saved before there was a codec, read if there's no newer one
+    static final String LEGACY_SNAPSHOT_FILE = "ManifestState.txt";
+    static final String JOURNAL_FILE = "ManifestJournal.txt";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String EOL = "\n";
+    private static final char ADD = 'A';
+    private static final char DROP = 'D';
+    private static final char MODE = 'M';
+    private static final char CLEAR = 'C';
+
+    // records written before the journal is folded into a new snapshot
+    static final int COMPACT_AFTER = 200;
+    // how long to wait before trying a failed write again; the wait doubles up to the most
+    static final long RETRY_FIRST_MS = 250;
+    static final long RETRY_MOST_MS = 60000;
+
+    static class State {
+        static final State EMPTY = new State(true, ManifestIndex.EMPTY, 0);
+
+        final boolean isAdding;
+        final ManifestIndex manifest;
+        final long lastRecord;  // the number of the last record applied
+
+        State(boolean isAdding, ManifestIndex manifest, long lastRecord) {
+            this.isAdding = isAdding;
+            this.manifest = manifest;
+            this.lastRecord = lastRecord;
+        }
+    }
+
+    private final File mSnapshotFile;
+    private final File mLegacySnapshotFile;
+    private final File mJournalFile;
+    private final long mCoalesceWindowMs;
+    private final ScheduledExecutorService mWorker = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "manifest journal");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // guarded by this
+    private State mState = State.EMPTY;
+    private boolean mIsLoaded;
+    private List<String> mPending = new ArrayList<>();
+    private boolean mIsFlushScheduled;
+    private boolean mIsCompactionRequested;
+    private long mRetryMs;  // 0 if the last write worked
+    private int mWritesIssued;
+    private int mChangesCoalesced;
+    private long mTotalWriteNanos;
+    private long mMaxWriteNanos;
+
+    // used only on the worker
+    private FileOutputStream mJournalOut;
+    private int mJournalRecords;
+
+    /**
+     * @param dir - where the snapshot and journal are kept
+     * @param coalesceWindowMs - how long to wait after a change for others to write with it
+     */
+    ManifestJournal(File dir, long coalesceWindowMs) {
+        mCoalesceWindowMs = coalesceWindowMs;
+        mSnapshotFile = new File(dir, SNAPSHOT_FILE);
+        mLegacySnapshotFile = new File(dir, LEGACY_SNAPSHOT_FILE);
+        mJournalFile = new File(dir, JOURNAL_FILE);
+    }
+
+    /**
+     * Read the snapshot and replay the journal over it the first time; after that, return the
+     * state as last recorded
+     */
+    synchronized State restore() {
+        if (!mIsLoaded) {
+            mIsLoaded = true;
+            mState = replayJournal(readSnapshot());
+            // fold the journal into a snapshot before anything is appended after a partial record
+            compact();
+        }
+        return mState;
+    }
+
+    synchronized State getState() {
+        return mState;
+    }
+
+    void add(String rider, long boardingTime) {
+        append(ADD + "|" + boardingTime + "|" + rider);
+    }
+
+    void drop(String rider) {
+        append(DROP + "|" + rider);
+    }
+
+    void setAdding(boolean isAdding) {
+        append(MODE + "|" + isAdding);
+    }
+
+    /**
+     * Empty the manifest and go back to adding riders
+     */
+    void clear() {
+        append(String.valueOf(CLEAR));
+    }
+
+    /**
+     * Write a new snapshot and empty the journal, in the background
+     */
+    synchronized void compact() {
+        mIsCompactionRequested = true;
+        scheduleFlush();
+    }
+
+    /**
+     * Write everything recorded so far without waiting out the window, and wait until it's done
+     */
+    void sync() {
+        try {
+            mWorker.submit(mFlush).get();
+        } catch (Exception e) {
+            if (Log.isLoggable(TAG, Log.WARN)) {
+                Log.w(TAG, "sync interrupted", e);
+            }
+        }
+    }
+
+    private synchronized void append(String change) {
+        final String record = (mState.lastRecord + 1) + "|" + change;
+        mState = apply(mState, record);
+        mPending.add(record);
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (!mIsFlushScheduled) {
+            mIsFlushScheduled = true;
+            mWorker.schedule(mFlush, mCoalesceWindowMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            final List<String> records;
+            final State state;
+            final boolean isCompacting;
+            synchronized (ManifestJournal.this) {
+                records = mPending;
+                mPending = new ArrayList<>();
+                state = mState;
+                isCompacting = mIsCompactionRequested
+                        || mJournalRecords + records.size() >= COMPACT_AFTER;
+                mIsCompactionRequested = false;
+                mIsFlushScheduled = false;
+            }
+            if (records.isEmpty() && !isCompacting) {
+                // sync() got here first
+                return;
+            }
+            try {
+                final long startNanos = System.nanoTime();
+                if (isCompacting) {
+                    // the snapshot already includes the pending records
+                    writeSnapshot(state);
+                } else {
+                    writeRecords(records);
+                }
+                countWrite(System.nanoTime() - startNanos,
+                        isCompacting ? records.size() : records.size() - 1);
+                synchronized (ManifestJournal.this) {
+                    mRetryMs = 0;
+                }
+            } catch (IOException e) {
+                if (Log.isLoggable(TAG, Log.ERROR)) {
+                    Log.e(TAG, isCompacting ? "compaction failed" : "append failed", e);
+                }
+                closeJournal();
+                synchronized (ManifestJournal.this) {
+                    // whatever didn't get written will be in the next snapshot, which is tried
+                    // again even if nothing else changes
+                    mIsCompactionRequested = true;
+                    mRetryMs = mRetryMs == 0 ? RETRY_FIRST_MS
+                            : Math.min(mRetryMs * 2, RETRY_MOST_MS);
+                    if (!mIsFlushScheduled) {
+                        mIsFlushScheduled = true;
+                        mWorker.schedule(mFlush, mRetryMs, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
+        }
+    };
+
+    private synchronized void countWrite(long nanos, int coalesced) {
+        mWritesIssued++;
+        mChangesCoalesced += coalesced;
+        mTotalWriteNanos += nanos;
+        mMaxWriteNanos = Math.max(mMaxWriteNanos, nanos);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "write took " + TimeUnit.NANOSECONDS.toMicros(nanos) + "us; "
+                    + mWritesIssued + " writes, " + mChangesCoalesced + " changes coalesced, max "
+                    + TimeUnit.NANOSECONDS.toMicros(mMaxWriteNanos) + "us");
+        }
+    }
+
+    /**
+     * @return how many times the journal or snapshot has been written
+     */
+    synchronized int getWritesIssued() {
+        return mWritesIssued;
+    }
+
+    /**
+     * @return how many changes were written along with an earlier one, or folded into a
+     *          snapshot, instead of needing a write of their own
+     */
+    synchronized int getChangesCoalesced() {
+        return mChangesCoalesced;
+    }
+
+    synchronized long getAverageWriteNanos() {
+        return mWritesIssued == 0 ? 0 : mTotalWriteNanos / mWritesIssued;
+    }
+
+    synchronized long getMaxWriteNanos() {
+        return mMaxWriteNanos;
+    }
+
+    private void writeRecords(List<String> records) throws IOException {
+        if (mJournalOut == null) {
+            mJournalOut = new FileOutputStream(mJournalFile, true);
+        }
+        final StringBuilder batch = new StringBuilder();
+        for (final String record : records) {
+            batch.append(record).append(EOL);
+        }
+        mJournalOut.write(batch.toString().getBytes("UTF-8"));
+        mJournalOut.getFD().sync();
+        mJournalRecords += records.size();
+    }
+
+    /**
+     * Replace the snapshot with state, then empty the journal
+     */
+    private void writeSnapshot(State state) throws IOException {
+        final File tempFile = new File(mSnapshotFile.getPath() + TEMP_SUFFIX);
+        final FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(ManifestCodec.encode(state));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(mSnapshotFile)) {
+            throw new IOException("can't rename " + tempFile + " to " + mSnapshotFile);
+        }
+        mLegacySnapshotFile.delete();
+        closeJournal();
+        new FileOutputStream(mJournalFile).close();
+        mJournalRecords = 0;
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "compacted " + state.manifest.size() + " rides");
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournalOut != null) {
+            try {
+                mJournalOut.close();
+            } catch (IOException e) {
+                if (Log.isLoggable(TAG, Log.WARN)) {
+                    Log.w(TAG, "journal close failed", e);
+                }
+            }
+            mJournalOut = null;
+        }
+    }
+
+    private State readSnapshot() {
+        if (!mSnapshotFile.exists()) {
+            return readLegacySnapshot();
+        }
+        try {
+            return ManifestCodec.decode(readFully(mSnapshotFile));
+        } catch (IOException e) {
+            if (Log.isLoggable(TAG, Log.ERROR)) {
+                Log.e(TAG, "snapshot read failed", e);
+            }
+            return State.EMPTY;
+        }
+    }
+
+    private State readLegacySnapshot() {
+        if (!mLegacySnapshotFile.exists()) {
+            return State.EMPTY;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(mLegacySnapshotFile), "UTF-8"));
+            // read the "is adding" state: will be 'true' or 'false', then the last record number
+            // unless the snapshot was written before there was a journal
+            String line = reader.readLine();
+            final String[] header = line == null ? new String[0] : line.split(Ride.SEPARATOR_RE);
+            final boolean isAdding = header.length == 0 || "true".equals(header[0]);
+            final long lastRecord = header.length > 1 ? Long.parseLong(header[1]) : 0;
+            ManifestIndex manifest = ManifestIndex.EMPTY;
+            while ((line = reader.readLine()) != null) {
+                manifest = manifest.add(new Ride(line));
+            }
+            return new State(isAdding, manifest, lastRecord);
+        } catch (Exception e) {
+            if (Log.isLoggable(TAG, Log.ERROR)) {
+                Log.e(TAG, "snapshot read failed", e);
+            }
+            return State.EMPTY;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    if (Log.isLoggable(TAG, Log.ERROR)) {
+                        Log.e(TAG, "snapshot close failed", e);
+                    }
+                }
+            }
+        }
+    }
+
+    private State replayJournal(State snapshot) {
+        if (!mJournalFile.exists()) {
+            return snapshot;
+        }
+        final String journal;
+        try {
+            journal = new String(readFully(mJournalFile), "UTF-8");
+        } catch (IOException e) {
+            if (Log.isLoggable(TAG, Log.ERROR)) {
+                Log.e(TAG, "journal read failed", e);
+            }
+            return snapshot;
+        }
+        final String[] records = journal.split(EOL, -1);
+        // the last piece is empty unless the last record was cut off
+        State state = snapshot;
+        for (int i = 0; i < records.length - 1; i++) {
+            try {
+                state = apply(state, records[i]);
+            } catch (RuntimeException e) {
+                if (Log.isLoggable(TAG, Log.WARN)) {
+                    Log.w(TAG, "skipped bad journal record '" + records[i] + "'", e);
+                }
+            }
+        }
+        if (!records[records.length - 1].isEmpty() && Log.isLoggable(TAG, Log.WARN)) {
+            Log.w(TAG, "skipped partial journal record");
+        }
+        return state;
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, count);
+            }
+            return bytes.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param record - e.g., "12|A|1500000000000|Anna [anna]": its number, the kind of change,
+     *          then what changed
+     * @return state after the change, or state itself if it already includes the record
+     */
+    private static State apply(State state, String record) {
+        final int numberEnd = record.indexOf('|');
+        final long number = Long.parseLong(record.substring(0, numberEnd));
+        if (number <= state.lastRecord) {
+            return state;
+        }
+        final int changeStart = numberEnd + 1;
+        final String argument = record.substring(Math.min(changeStart + 2, record.length()));
+        switch (record.charAt(changeStart)) {
+            case ADD:
+                final int timeEnd = argument.indexOf('|');
+                return new State(state.isAdding, state.manifest.add(
+                        argument.substring(timeEnd + 1),
+                        Long.parseLong(argument.substring(0, timeEnd))), number);
+            case DROP:
+                return new State(state.isAdding, state.manifest.remove(argument), number);
+            case MODE:
+                return new State("true".equals(argument), state.manifest, number);
+            case CLEAR:
+                return new State(true, ManifestIndex.EMPTY, number);
+            default:
+                throw new IllegalArgumentException("unknown change");
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package net.bbuzz.busman;
+
+import android.util.Log;
+
+import net.bbuzz.busman.RiderMessages.AlreadyReturnedMessage;
+import net.bbuzz.busman.RiderMessages.GoMessage;
+import net.bbuzz.busman.RiderMessages.MessageSpec;
+import net.bbuzz.busman.RiderMessages.ReturnMessage;
+import net.bbuzz.busman.RiderMessages.WelcomeMessage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A binary copy of the messages file, written next to it after a successful parse. On later
+ * starts it's memory-mapped and read back instead of parsing the JSON, as long as it was written
+ * from the same JSON (by CRC) with the same {@link #SCHEMA_VERSION}.
+ *
+ * Only the messages that compiled are bundled, along with their compiled regular expressions and
+ * the lines reporting the ones that were rejected, so a start from the bundle neither compiles a
+ * regular expression nor re-validates a message. Templates and "when" clauses are still compiled
+ * from the bundled fields; they're a single pass over a short string.
+ *
+ * Layout: magic, schema version, source CRC, the rejection lines, the regular expressions as a
+ * count followed by each one's states, then each message list as a count followed by its
+ * messages' fields. Strings are a byte length followed by UTF-8 bytes.
+ */
+class MessageBundle {
+
+    private static final String TAG = "MessageBundle";
+
+    static final String BUNDLE_FILE_SUFFIX = ".bin";
+
+    private static final int MAGIC = 0x42754d61;  // "BuMa"
+    // bump this whenever the layout, or the fields of any message class, change
+    static final int SCHEMA_VERSION = 3;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The message lists held in a bundle, in the order they're stored, and what's known from
+     * compiling them
+     */
+    static class Contents {
+        final List<WelcomeMessage> welcomeMessages;
+        final List<WelcomeMessage> alreadyWelcomedMessages;
+        final List<ReturnMessage> returnMessages;
+        final List<AlreadyReturnedMessage> alreadyReturnedMessages;
+        final List<GoMessage> goMessages;
+        // compiled regular expressions, by their source
+        final Map<String, LinearRegex> patterns;
+        // a line for each message that was left out, for the load summary
+        final String rejected;
+
+        Contents(List<WelcomeMessage> welcomeMessages,
+                List<WelcomeMessage> alreadyWelcomedMessages,
+                List<ReturnMessage> returnMessages,
+                List<AlreadyReturnedMessage> alreadyReturnedMessages,
+                List<GoMessage> goMessages) {
+            this(welcomeMessages, alreadyWelcomedMessages, returnMessages,
+                    alreadyReturnedMessages, goMessages, new HashMap<String, LinearRegex>(), "");
+        }
+
+        Contents(List<WelcomeMessage> welcomeMessages,
+                List<WelcomeMessage> alreadyWelcomedMessages,
+                List<ReturnMessage> returnMessages,
+                List<AlreadyReturnedMessage> alreadyReturnedMessages,
+                List<GoMessage> goMessages,
+                Map<String, LinearRegex> patterns,
+                String rejected) {
+            this.welcomeMessages = welcomeMessages;
+            this.alreadyWelcomedMessages = alreadyWelcomedMessages;
+            this.returnMessages = returnMessages;
+            this.alreadyReturnedMessages = alreadyReturnedMessages;
+            this.goMessages = goMessages;
+            this.patterns = patterns;
+            this.rejected = rejected;
+        }
+    }
+
+    /**
+     * @return the bundle file that goes with jsonFile
+     */
+    static File bundleFileFor(File jsonFile) {
+        return new File(jsonFile.getParentFile(), jsonFile.getName() + BUNDLE_FILE_SUFFIX);
+    }
+
+    /**
+     * @return the CRC32 of the file's contents
+     */
+    static long hashFile(File file) throws IOException {
+        final FileInputStream stream = new FileInputStream(file);
+        try {
+            final FileChannel channel = stream.getChannel();
+            final MappedByteBuffer buffer =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            final CRC32 crc = new CRC32();
+            final byte[] chunk = new byte[8192];
+            while (buffer.hasRemaining()) {
+                final int length = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, length);
+                crc.update(chunk, 0, length);
+            }
+            return crc.getValue();
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * @param bundleFile - the bundle to read
+     * @param sourceHash - the hash of the JSON file the bundle should have been written from
+     * @return the bundle's messages, or null if there's no usable bundle for that JSON file
+     */
+    static Contents read(File bundleFile, long sourceHash) {
+        if (!bundleFile.exists()) {
+            return null;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(bundleFile, "r");
+            final FileChannel channel = file.getChannel();
+            final ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != SCHEMA_VERSION
+                    || in.getLong() != sourceHash) {
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "stale bundle " + bundleFile);
+                }
+                return null;
+            }
+            final String rejected = readString(in);
+            final Map<String, LinearRegex> patterns = new HashMap<>();
+            for (int count = in.getInt(); count > 0; count--) {
+                final LinearRegex pattern = LinearRegex.readBinary(in);
+                patterns.put(pattern.pattern, pattern);
+            }
+            final List<WelcomeMessage> welcomeMessages = new ArrayList<>();
+            for (int count = in.getInt(); count > 0; count--) {
+                welcomeMessages.add(read(in, new WelcomeMessage()));
+            }
+            final List<WelcomeMessage> alreadyWelcomedMessages = new ArrayList<>();
+            for (int count = in.getInt(); count > 0; count--) {
+                alreadyWelcomedMessages.add(read(in, new WelcomeMessage()));
+            }
+            final List<ReturnMessage> returnMessages = new ArrayList<>();
+            for (int count = in.getInt(); count > 0; count--) {
+                returnMessages.add(read(in, new ReturnMessage()));
+            }
+            final List<AlreadyReturnedMessage> alreadyReturnedMessages = new ArrayList<>();
+            for (int count = in.getInt(); count > 0; count--) {
+                alreadyReturnedMessages.add(read(in, new AlreadyReturnedMessage()));
+            }
+            final List<GoMessage> goMessages = new ArrayList<>();
+            for (int count = in.getInt(); count > 0; count--) {
+                goMessages.add(read(in, new GoMessage()));
+            }
+            return new Contents(welcomeMessages, alreadyWelcomedMessages, returnMessages,
+                    alreadyReturnedMessages, goMessages, patterns, rejected);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            if (Log.isLoggable(TAG, Log.WARN)) {
+                Log.w(TAG, "unreadable bundle " + bundleFile + ": " + e);
+            }
+            return null;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    if (Log.isLoggable(TAG, Log.ERROR)) {
+                        Log.e(TAG, "bundle close failed", e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static <T extends MessageSpec> T read(ByteBuffer in, T message) {
+        message.readBinary(in);
+        return message;
+    }
+
+    /**
+     * Write the bundle to a temporary file and then rename it into place, so that a reader never
+     * sees a partially written bundle.
+     *
+     * @param sourceHash - the hash of the JSON file the messages were read from
+     */
+    static void write(File bundleFile, long sourceHash, Contents contents) throws IOException {
+        final File tempFile = new File(bundleFile.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(SCHEMA_VERSION);
+            out.writeLong(sourceHash);
+            writeString(out, contents.rejected);
+            out.writeInt(contents.patterns.size());
+            for (final LinearRegex pattern : contents.patterns.values()) {
+                pattern.writeBinary(out);
+            }
+            writeList(out, contents.welcomeMessages);
+            writeList(out, contents.alreadyWelcomedMessages);
+            writeList(out, contents.returnMessages);
+            writeList(out, contents.alreadyReturnedMessages);
+            writeList(out, contents.goMessages);
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(bundleFile)) {
+            tempFile.delete();
+            throw new IOException("couldn't rename " + tempFile + " to " + bundleFile);
+        }
+    }
+
+    private static void writeList(DataOutputStream out, List<? extends MessageSpec> messages)
+            throws IOException {
+        out.writeInt(messages.size());
+        for (final MessageSpec message : messages) {
+            message.writeBinary(out);
+        }
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        final byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer in) {
+        final int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("bad string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
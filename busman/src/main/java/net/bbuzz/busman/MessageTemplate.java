@@ -0,0 +1,165 @@
+package net.bbuzz.busman;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A message compiled into literal text and slots for the rider's name, with any
+ * "!locale(language)" already taken out. Rendering appends the pieces into one builder of the
+ * right size instead of running String.format on every announcement.
+ *
+ * The supported format specifiers are those that make sense with a single name argument:
+ * "%s" (at most once), "%1$s", their upper-case forms "%S" and "%1$S", "%%" and "%n". Anything
+ * else is rejected when the message is compiled.
+ */
+class MessageTemplate {
+
+    private static final String LOCALE_COMMAND = "!locale(";
+
+    /**
+     * Thrown when a message uses a format that can't be rendered with just a name
+     */
+    static class MalformedTemplateException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        MalformedTemplateException(String message) {
+            super(message);
+        }
+    }
+
+    final String message;
+    final Locale locale;  // null means the default locale
+    private final String[] mLiterals;
+    private final boolean[] mUpperCaseSlots;
+    private final int mLiteralLength;
+
+    private MessageTemplate(String message, Locale locale, String[] literals,
+            boolean[] upperCaseSlots) {
+        this.message = message;
+        this.locale = locale;
+        mLiterals = literals;
+        mUpperCaseSlots = upperCaseSlots;
+        int literalLength = 0;
+        for (final String literal : literals) {
+            literalLength += literal.length();
+        }
+        mLiteralLength = literalLength;
+    }
+
+    /**
+     * @param message - a message with format specifiers for the rider's name
+     * @throws MalformedTemplateException if the message has a format we can't render
+     */
+    static MessageTemplate compile(String message) throws MalformedTemplateException {
+        final StringBuilder stripped = new StringBuilder();
+        final Locale locale = extractLocale(message, stripped);
+        final String text = stripped.toString();
+        final List<String> literals = new ArrayList<>();
+        final List<Boolean> upperCaseSlots = new ArrayList<>();
+        final StringBuilder literal = new StringBuilder();
+        int ordinarySlots = 0;
+        int i = 0;
+        while (i < text.length()) {
+            final char c = text.charAt(i++);
+            if (c != '%') {
+                literal.append(c);
+                continue;
+            }
+            if (i == text.length()) {
+                throw new MalformedTemplateException("'%' at end of '" + message + "'");
+            }
+            char conversion = text.charAt(i++);
+            if (conversion == '1' && text.startsWith("$", i) && i + 1 < text.length()) {
+                // explicit index: may be repeated
+                conversion = text.charAt(i + 1);
+                i += 2;
+                if (conversion != 's' && conversion != 'S') {
+                    throw unsupported(message, "%1$" + conversion);
+                }
+            } else if (conversion == 's' || conversion == 'S') {
+                if (++ordinarySlots > 1) {
+                    throw new MalformedTemplateException("more than one %s in '" + message + "'");
+                }
+            } else if (conversion == '%') {
+                literal.append('%');
+                continue;
+            } else if (conversion == 'n') {
+                literal.append(System.getProperty("line.separator"));
+                continue;
+            } else {
+                throw unsupported(message, "%" + conversion);
+            }
+            literals.add(literal.toString());
+            literal.setLength(0);
+            upperCaseSlots.add(conversion == 'S');
+        }
+        literals.add(literal.toString());
+
+        final boolean[] upperCase = new boolean[upperCaseSlots.size()];
+        for (int slot = 0; slot < upperCase.length; slot++) {
+            upperCase[slot] = upperCaseSlots.get(slot);
+        }
+        return new MessageTemplate(message, locale, literals.toArray(new String[literals.size()]),
+                upperCase);
+    }
+
+    /**
+     * @param message - a message without any name in it; '%' has no special meaning
+     */
+    static MessageTemplate compileLiteral(String message) {
+        final StringBuilder text = new StringBuilder();
+        final Locale locale = extractLocale(message, text);
+        return new MessageTemplate(message, locale, new String[] {text.toString()},
+                new boolean[0]);
+    }
+
+    private static MalformedTemplateException unsupported(String message, String specifier) {
+        return new MalformedTemplateException(
+                "unsupported format '" + specifier + "' in '" + message + "'");
+    }
+
+    /**
+     * Looks for "!locale(language)" in message.
+     *
+     * @param text - receives the message with the locale command stripped out
+     * @return the locale, or null if the message didn't name one
+     */
+    private static Locale extractLocale(String message, StringBuilder text) {
+        final int startIdx = message.indexOf(LOCALE_COMMAND);
+        if (startIdx >= 0) {
+            final int endIdx = message.indexOf(')', startIdx);
+            if (endIdx > 0) {
+                text.append(message, 0, startIdx).append(message, endIdx + 1, message.length());
+                return new Locale(message.substring(startIdx + LOCALE_COMMAND.length(), endIdx));
+            }
+        }
+        text.append(message);
+        return null;
+    }
+
+    /**
+     * @return the number of places the name is inserted
+     */
+    int slotCount() {
+        return mUpperCaseSlots.length;
+    }
+
+    /**
+     * @param name - the rider's name
+     * @return the text to speak
+     */
+    String render(String name) {
+        if (mUpperCaseSlots.length == 0) {
+            return mLiterals[0];
+        }
+        final String safeName = String.valueOf(name);
+        final StringBuilder result =
+                new StringBuilder(mLiteralLength + mUpperCaseSlots.length * safeName.length());
+        for (int slot = 0; slot < mUpperCaseSlots.length; slot++) {
+            result.append(mLiterals[slot])
+                    .append(mUpperCaseSlots[slot] ? safeName.toUpperCase() : safeName);
+        }
+        return result.append(mLiterals[mUpperCaseSlots.length]).toString();
+    }
+}
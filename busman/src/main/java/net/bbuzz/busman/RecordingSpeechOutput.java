@@ -0,0 +1,84 @@
+package net.bbuzz.busman;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Remembers what it's asked to say, and when, instead of saying it, so that the announcement
+ * path can run in tests and benchmarks without a device or a TTS engine.
+ */
+class RecordingSpeechOutput implements SpeechOutput {
+
+    static class Recording {
+        final long timeNanos;  // System.nanoTime() when say was called
+        final String text;
+        final Locale locale;
+        final long pauseMs;
+
+        Recording(long timeNanos, String text, Locale locale, long pauseMs) {
+            this.timeNanos = timeNanos;
+            this.text = text;
+            this.locale = locale;
+            this.pauseMs = pauseMs;
+        }
+    }
+
+    private final boolean mFinishAtOnce;
+    private final List<Recording> mRecordings = new ArrayList<>();
+    private Listener mListener;
+
+    /**
+     * @param finishAtOnce - true for each utterance to be done as soon as it's started, false
+     *          for it to wait for {@link #finish}
+     */
+    RecordingSpeechOutput(boolean finishAtOnce) {
+        mFinishAtOnce = finishAtOnce;
+    }
+
+    @Override
+    public void say(String text, Locale locale, long pauseMs, Listener listener) {
+        mRecordings.add(new Recording(System.nanoTime(), text, locale, pauseMs));
+        if (mFinishAtOnce) {
+            listener.onDone();
+        } else {
+            mListener = listener;
+        }
+    }
+
+    @Override
+    public void stop() {
+        mListener = null;
+    }
+
+    /**
+     * Finish the current utterance
+     *
+     * @return false if there wasn't one
+     */
+    boolean finish() {
+        final Listener listener = mListener;
+        if (listener == null) {
+            return false;
+        }
+        mListener = null;
+        listener.onDone();
+        return true;
+    }
+
+    List<Recording> getRecordings() {
+        return Collections.unmodifiableList(mRecordings);
+    }
+
+    /**
+     * @return the text of each utterance, in order
+     */
+    List<String> getTexts() {
+        final List<String> texts = new ArrayList<>(mRecordings.size());
+        for (final Recording recording : mRecordings) {
+            texts.add(recording.text);
+        }
+        return texts;
+    }
+}
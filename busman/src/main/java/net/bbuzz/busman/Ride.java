@@ -0,0 +1,34 @@
+package net.bbuzz.busman;
+
+/**
+ * A rider on the manifest. The rider's place in boarding order isn't kept here, since it changes
+ * whenever an earlier rider gets off; {@link ManifestIndex} works it out from sequence.
+ */
+class Ride {
+    final static String SEPARATOR = "|";
+    final static String SEPARATOR_RE = "\\|";
+    final String rider;
+    final long sequence;  // increases with each rider to board, and never changes
+    final long boardingTime;
+
+    Ride(String rider, long sequence, long boardingTime) {
+        this.rider = rider;
+        this.sequence = sequence;
+        this.boardingTime = boardingTime;
+    }
+
+    /**
+     * @param packedRide - "rider|order|time", as saved before there was a ManifestCodec. The
+     *          boarding order it was saved with becomes the sequence.
+     */
+    Ride(String packedRide) {
+        final String[] splitRide = packedRide.split(SEPARATOR_RE);
+        rider = splitRide[0];
+        sequence = Long.valueOf(splitRide[1]);
+        boardingTime = Long.valueOf(splitRide[2]);
+    }
+
+    public String toString() {
+        return rider + SEPARATOR + sequence + SEPARATOR + boardingTime;
+    }
+}
@@ -10,17 +10,28 @@ import android.util.JsonWriter;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.PatternSyntaxException;
 
 public class RiderMessages {
@@ -42,10 +53,15 @@ public class RiderMessages {
             new File(DATA_DIR, MESSAGE_JSON_FILE_NAME + ".old").getAbsolutePath();
 
     final static int DEFAULT_WEIGHT = 10;
-    // SimpleDateFormat e.g., "Sun, Mar 3, 2014 14:07"
-    private final static SimpleDateFormat DATE_FORMAT =
-            new SimpleDateFormat("EEE, MMM d, yyyy HH:mm");
-    private static final Random sRandom = new Random();
+    // SimpleDateFormat e.g., "Sun, Mar 3, 2014 14:07". SimpleDateFormat isn't thread-safe, and
+    // time matches can be worked out on the UI thread or while loading, so each thread has one.
+    private final static ThreadLocal<SimpleDateFormat> DATE_FORMAT =
+            new ThreadLocal<SimpleDateFormat>() {
+                @Override
+                protected SimpleDateFormat initialValue() {
+                    return new SimpleDateFormat("EEE, MMM d, yyyy HH:mm");
+                }
+            };
 
     private static final String FIELD_ID_REGEXP = "idRegexp";
     private static final String FIELD_TIME_REGEXP = "timeRegexp";
@@ -53,11 +69,417 @@ public class RiderMessages {
     private static final String FIELD_WEIGHT = "weight";
     private static final String FIELD_IS_LAST = "isLast";
     private static final String FIELD_DEJA_VU = "dejaVu";
+    private static final String FIELD_WHEN = "when";
+
+    /**
+     * A message as read from the JSON file, which can be compiled into a {@link Rule}
+     */
+    abstract static class MessageSpec extends JsonSerializable {
+        WhenClause when;  // null if the message has no "when" clause
+
+        /**
+         * @param patterns - regular expressions already compiled, by source; any this message
+         *          compiles are added
+         */
+        abstract Rule compile(Map<String, LinearRegex> patterns) throws PatternSyntaxException,
+                MessageTemplate.MalformedTemplateException,
+                TimeCondition.MalformedConditionException;
+
+        TimeCondition compileWhen() throws TimeCondition.MalformedConditionException {
+            return when == null ? null : when.compile();
+        }
+
+        void writeJsonWhen(JsonWriter writer) throws IOException {
+            if (when != null) {
+                writer.name(FIELD_WHEN).beginObject();
+                when.writeJson(writer);
+                writer.endObject();
+            }
+        }
+
+        void readJsonWhen(JsonReader reader) throws IOException {
+            when = new WhenClause();
+            reader.beginObject();
+            when.readJson(reader);
+            reader.endObject();
+        }
+
+        void writeBinaryWhen(DataOutputStream out) throws IOException {
+            out.writeBoolean(when != null);
+            if (when != null) {
+                when.writeBinary(out);
+            }
+        }
+
+        void readBinaryWhen(ByteBuffer in) {
+            if (in.get() != 0) {
+                when = new WhenClause();
+                when.readBinary(in);
+            } else {
+                when = null;
+            }
+        }
+
+        /**
+         * Write the fields for a {@link MessageBundle}
+         */
+        abstract void writeBinary(DataOutputStream out) throws IOException;
+
+        /**
+         * Read the fields written by {@link #writeBinary(DataOutputStream)}
+         */
+        abstract void readBinary(ByteBuffer in);
+    }
+
+    /**
+     * A message whose regular expressions and template have been compiled once at load time, so
+     * that matching a rider or a time, or filling in a name, doesn't re-parse them on every tap
+     */
+    static class Rule {
+        // regular expression metacharacters, other than '|' and '\'
+        private static final String METACHARACTERS = ".[]{}()*+?^$";
+
+        final LinearRegex idPattern;        // null matches all riders
+        final String[] idLiterals;          // non-null if idPattern only matches these ids
+        final LinearRegex timePattern;      // null matches all times
+        final TimeCondition timeCondition;  // null matches all times
+        final String isLast;
+        final String dejaVu;
+        final MessageTemplate template;
+        final int weight;
+
+        Rule(String idRegexp, String timeRegexp, TimeCondition timeCondition, String isLast,
+                String dejaVu, MessageTemplate template, int weight)
+                throws PatternSyntaxException {
+            this(idRegexp, timeRegexp, timeCondition, isLast, dejaVu, template, weight,
+                    new HashMap<String, LinearRegex>());
+        }
+
+        /**
+         * @param patterns - regular expressions already compiled, by source; the rule's own are
+         *          added if they're missing
+         */
+        Rule(String idRegexp, String timeRegexp, TimeCondition timeCondition, String isLast,
+                String dejaVu, MessageTemplate template, int weight,
+                Map<String, LinearRegex> patterns) throws PatternSyntaxException {
+            this.idPattern = compilePattern(idRegexp, patterns);
+            this.idLiterals = idPattern == null ? null : literalAlternatives(idRegexp);
+            this.timePattern =
+                    compilePattern(stripLeadingZeroInTimeRegexp(timeRegexp), patterns);
+            this.timeCondition = timeCondition;
+            this.isLast = isLast;
+            this.dejaVu = dejaVu;
+            this.template = template;
+            this.weight = weight;
+        }
+
+        private static LinearRegex compilePattern(String regexp,
+                Map<String, LinearRegex> patterns) throws PatternSyntaxException {
+            if (regexp.isEmpty()) {
+                return null;
+            }
+            LinearRegex pattern = patterns.get(regexp);
+            if (pattern == null) {
+                pattern = LinearRegex.compile(regexp);
+                patterns.put(regexp, pattern);
+            }
+            return pattern;
+        }
+
+        /**
+         * Recognize a regular expression that is really just a list of ids: "anna", "anna|ben",
+         * optionally anchored with "^...$" and wrapped in "(...)" or "(?:...)". Escaped
+         * punctuation such as "\." counts as the literal character.
+         *
+         * @return the ids the expression matches, or null if it's a real pattern
+         */
+        @VisibleForTesting
+        static String[] literalAlternatives(String regexp) {
+            String body = regexp;
+            if (body.startsWith("^")) {
+                body = body.substring(1);
+            }
+            if (body.endsWith("$") && !body.endsWith("\\$")) {
+                body = body.substring(0, body.length() - 1);
+            }
+            if (body.startsWith("(?:") && body.endsWith(")")) {
+                body = body.substring(3, body.length() - 1);
+            } else if (body.startsWith("(") && body.endsWith(")")) {
+                body = body.substring(1, body.length() - 1);
+            }
+            final List<String> literals = new ArrayList<>();
+            final StringBuilder literal = new StringBuilder();
+            for (int i = 0; i < body.length(); i++) {
+                final char c = body.charAt(i);
+                if (c == '\\') {
+                    // "\d", "\Q" and the like are patterns, not literals
+                    if (i + 1 == body.length() || Character.isLetterOrDigit(body.charAt(i + 1))) {
+                        return null;
+                    }
+                    literal.append(body.charAt(++i));
+                } else if (c == '|') {
+                    if (literal.length() == 0) {
+                        return null;
+                    }
+                    literals.add(literal.toString());
+                    literal.setLength(0);
+                } else if (METACHARACTERS.indexOf(c) >= 0) {
+                    return null;
+                } else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() == 0) {
+                return null;
+            }
+            literals.add(literal.toString());
+            return literals.toArray(new String[literals.size()]);
+        }
+
+        boolean matchesId(String riderId) {
+            return idPattern == null || idPattern.matches(riderId);
+        }
+
+        /**
+         * @param fields - the current minute. Its time string is only formatted if this rule
+         *          has a timeRegexp.
+         */
+        boolean matchesTime(TimeCondition.Fields fields) {
+            return (timeCondition == null || timeCondition.matches(fields))
+                    && (timePattern == null || timePattern.matches(fields.timeString()));
+        }
+
+        /**
+         * @param ruleFlag - "t", "f", or empty to match either
+         * @param value - the rider's state
+         */
+        static boolean matchesFlag(String ruleFlag, boolean value) {
+            return ruleFlag.isEmpty() || ruleFlag.equals(value ? "t" : "f");
+        }
+    }
+
+    /**
+     * The rules of one message category, as a view of the {@link RuleTable} that holds the
+     * rules of every category. Time filters have minute resolution, so every one gives the same
+     * answer for a whole minute: the rules that pass it, and their cumulative weights, are worked
+     * out once per minute instead of on every tap.
+     *
+     * The id filter never changes for a given rider until a new file is loaded, so the table
+     * keeps the rules matching each recently seen rider in a bounded LRU map. A new file gets a
+     * new table, which drops that map along with the old rules.
+     */
+    static class RuleSet {
+        final List<Rule> rules;
+        private final RuleTable mTable;
+        private final int mCategory;
+        private volatile TimeMatches mTimeMatches;
+        // the rule picked last time, so that the same message isn't said twice in a row
+        private volatile int mLatestRule = WeightedPicker.NONE;
+
+        /**
+         * A rule set with a table of its own
+         */
+        RuleSet(List<Rule> rules) {
+            this(new RuleTable(Collections.singletonList(rules)), 0);
+        }
+
+        RuleSet(RuleTable table, int category) {
+            mTable = table;
+            mCategory = category;
+            this.rules = table.categoryRules(category);
+        }
+
+        /**
+         * @param time - the current time in milliseconds
+         * @return the rules whose time filter matches the minute containing time
+         */
+        TimeMatches timeMatches(long time) {
+            final long minute = TimeUnit.MILLISECONDS.toMinutes(time);
+            TimeMatches matches = mTimeMatches;
+            if (matches == null || matches.minute != minute) {
+                matches = new TimeMatches(minute, mTable.timeCandidates(mCategory, time));
+                mTimeMatches = matches;
+            }
+            return matches;
+        }
+
+        /**
+         * @param riderId - a rider id
+         * @return the ascending indexes of the rules whose id filter matches riderId
+         */
+        @VisibleForTesting
+        int[] riderMatches(String riderId) {
+            return mTable.idMatches(mCategory, riderId);
+        }
+
+        /**
+         * @param riderId - a rider id
+         * @param time - the current time in milliseconds
+         * @param isLast - true if this rider's arrival emptied the manifest
+         * @param dejaVu - true if this rider was recently removed from the manifest
+         * @return a picker over the rules that match all of the above
+         */
+        WeightedPicker candidates(String riderId, long time, boolean isLast, boolean dejaVu) {
+            return mTable.candidates(mCategory, riderId, time, isLast, dejaVu);
+        }
+
+        /**
+         * @return the template of a rule picked from candidates, avoiding the one picked last
+         *          time, or null if there were none
+         */
+        MessageTemplate pickTemplate(WeightedPicker candidates, Random random) {
+            final int ruleIndex = candidates.pick(random, mLatestRule);
+            mLatestRule = ruleIndex;
+            return ruleIndex == WeightedPicker.NONE ? null : rules.get(ruleIndex).template;
+        }
+
+        /**
+         * Pick as {@link #pickTemplate} does, but without counting it as said
+         *
+         * @return the index of the picked rule, or WeightedPicker.NONE
+         */
+        int pickAhead(WeightedPicker candidates, Random random) {
+            return candidates.pick(random, mLatestRule);
+        }
+
+        /**
+         * Count a rule picked by {@link #pickAhead} as said
+         *
+         * @return false if it was the one said last, and shouldn't be said again now
+         */
+        boolean confirmPick(int ruleIndex) {
+            if (ruleIndex == mLatestRule) {
+                return false;
+            }
+            mLatestRule = ruleIndex;
+            return true;
+        }
+
+        @VisibleForTesting
+        RuleTable getTable() {
+            return mTable;
+        }
+    }
+
+    /**
+     * The indexes of the rules in a {@link RuleSet} whose time filter matches a given minute
+     */
+    static class TimeMatches {
+        final long minute;
+        final int[] ruleIndexes;
+        final WeightedPicker picker;
+
+        TimeMatches(long minute, WeightedPicker picker) {
+            this.minute = minute;
+            this.ruleIndexes = picker.values();
+            this.picker = picker;
+        }
+    }
+
+    /**
+     * The "when" clause of a message, which limits it to certain days or times without a regular
+     * expression. See {@link TimeCondition#compile} for the format of each field.
+     */
+    static class WhenClause extends JsonSerializable {
+        private static final String FIELD_DAYS_OF_WEEK = "daysOfWeek";
+        private static final String FIELD_FROM_DATE = "fromDate";
+        private static final String FIELD_TO_DATE = "toDate";
+        private static final String FIELD_FROM_TIME = "fromTime";
+        private static final String FIELD_TO_TIME = "toTime";
+        private static final String FIELD_MONTH = "month";
+        private static final String FIELD_DAY = "day";
+        private static final String DEFAULT_STRING = "";
+        private static final int DEFAULT_NUMBER = 0;
+
+        String daysOfWeek = DEFAULT_STRING;
+        String fromDate = DEFAULT_STRING;
+        String toDate = DEFAULT_STRING;
+        String fromTime = DEFAULT_STRING;
+        String toTime = DEFAULT_STRING;
+        int month = DEFAULT_NUMBER;
+        int day = DEFAULT_NUMBER;
+
+        TimeCondition compile() throws TimeCondition.MalformedConditionException {
+            return TimeCondition.compile(daysOfWeek, fromDate, toDate, fromTime, toTime, month,
+                    day);
+        }
+
+        @Override
+        public void writeJson(JsonWriter writer) throws IOException {
+            writeValue(writer, FIELD_DAYS_OF_WEEK, daysOfWeek, DEFAULT_STRING);
+            writeValue(writer, FIELD_FROM_DATE, fromDate, DEFAULT_STRING);
+            writeValue(writer, FIELD_TO_DATE, toDate, DEFAULT_STRING);
+            writeValue(writer, FIELD_FROM_TIME, fromTime, DEFAULT_STRING);
+            writeValue(writer, FIELD_TO_TIME, toTime, DEFAULT_STRING);
+            writeValue(writer, FIELD_MONTH, month, DEFAULT_NUMBER);
+            writeValue(writer, FIELD_DAY, day, DEFAULT_NUMBER);
+        }
+
+        void writeBinary(DataOutputStream out) throws IOException {
+            MessageBundle.writeString(out, daysOfWeek);
+            MessageBundle.writeString(out, fromDate);
+            MessageBundle.writeString(out, toDate);
+            MessageBundle.writeString(out, fromTime);
+            MessageBundle.writeString(out, toTime);
+            out.writeInt(month);
+            out.writeInt(day);
+        }
+
+        void readBinary(ByteBuffer in) {
+            daysOfWeek = MessageBundle.readString(in);
+            fromDate = MessageBundle.readString(in);
+            toDate = MessageBundle.readString(in);
+            fromTime = MessageBundle.readString(in);
+            toTime = MessageBundle.readString(in);
+            month = in.getInt();
+            day = in.getInt();
+        }
+
+        @Override
+        public void readJson(JsonReader reader) throws IOException {
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+
+                switch (name) {
+                    case FIELD_DAYS_OF_WEEK:
+                        daysOfWeek = reader.nextString();
+                        break;
+                    case FIELD_FROM_DATE:
+                        fromDate = reader.nextString();
+                        break;
+                    case FIELD_TO_DATE:
+                        toDate = reader.nextString();
+                        break;
+                    case FIELD_FROM_TIME:
+                        fromTime = reader.nextString();
+                        break;
+                    case FIELD_TO_TIME:
+                        toTime = reader.nextString();
+                        break;
+                    case FIELD_MONTH:
+                        month = reader.nextInt();
+                        break;
+                    case FIELD_DAY:
+                        day = reader.nextInt();
+                        break;
+                    case FIELD_COMMENT:
+                        reader.skipValue();
+                        break;
+                    default:
+                        if (Log.isLoggable(TAG, Log.WARN)) {
+                            Log.w(TAG, "Unknown when key: " + name);
+                        }
+                        reader.skipValue();
+                        break;
+                }
+            }
+        }
+    }
 
     /**
      * Strings to announce the arrival of a rider upon being added to the manifest
      */
-    static class WelcomeMessage extends JsonSerializable {
+    static class WelcomeMessage extends MessageSpec {
         private static final String DEFAULT_ID_REGEXP = "";
         private static final String DEFAULT_TIME_REGEXP = "";
         private static final String DEFAULT_MESSAGE = "";
@@ -76,14 +498,41 @@ public class RiderMessages {
             weight = DEFAULT_WEIGHT;
         }
 
+        @Override
+        Rule compile(Map<String, LinearRegex> patterns) throws PatternSyntaxException,
+                MessageTemplate.MalformedTemplateException,
+                TimeCondition.MalformedConditionException {
+            return new Rule(idRegexp, timeRegexp, compileWhen(), "", "",
+                    MessageTemplate.compile(message), weight, patterns);
+        }
+
         @Override
         public void writeJson(JsonWriter writer) throws IOException {
             writeValue(writer, FIELD_ID_REGEXP, idRegexp, DEFAULT_ID_REGEXP);
             writeValue(writer, FIELD_TIME_REGEXP, timeRegexp, DEFAULT_TIME_REGEXP);
+            writeJsonWhen(writer);
             writeValue(writer, FIELD_MESSAGE, message, DEFAULT_MESSAGE);
             writeValue(writer, FIELD_WEIGHT, weight, DEFAULT_WEIGHT);
         }
 
+        @Override
+        void writeBinary(DataOutputStream out) throws IOException {
+            MessageBundle.writeString(out, idRegexp);
+            MessageBundle.writeString(out, timeRegexp);
+            writeBinaryWhen(out);
+            MessageBundle.writeString(out, message);
+            out.writeInt(weight);
+        }
+
+        @Override
+        void readBinary(ByteBuffer in) {
+            idRegexp = MessageBundle.readString(in);
+            timeRegexp = MessageBundle.readString(in);
+            readBinaryWhen(in);
+            message = MessageBundle.readString(in);
+            weight = in.getInt();
+        }
+
         @Override
         public void readJson(JsonReader reader) throws IOException {
             while (reader.hasNext()) {
@@ -96,6 +545,9 @@ public class RiderMessages {
                     case FIELD_TIME_REGEXP:
                         timeRegexp = reader.nextString();
                         break;
+                    case FIELD_WHEN:
+                        readJsonWhen(reader);
+                        break;
                     case FIELD_MESSAGE:
                         message = reader.nextString();
                         break;
@@ -119,7 +571,7 @@ public class RiderMessages {
     /**
      * Strings to announce the arrival of a rider upon being removed from the manifest
      */
-    static class ReturnMessage extends JsonSerializable {
+    static class ReturnMessage extends MessageSpec {
         private static final String DEFAULT_ID_REGEXP = "";
         private static final String DEFAULT_TIME_REGEXP = "";
         private static final String DEFAULT_MESSAGE = "";
@@ -140,15 +592,44 @@ public class RiderMessages {
             weight = DEFAULT_WEIGHT;
         }
 
+        @Override
+        Rule compile(Map<String, LinearRegex> patterns) throws PatternSyntaxException,
+                MessageTemplate.MalformedTemplateException,
+                TimeCondition.MalformedConditionException {
+            return new Rule(idRegexp, timeRegexp, compileWhen(), isLast, "",
+                    MessageTemplate.compile(message), weight, patterns);
+        }
+
         @Override
         public void writeJson(JsonWriter writer) throws IOException {
             writeValue(writer, FIELD_ID_REGEXP, idRegexp, DEFAULT_ID_REGEXP);
             writeValue(writer, FIELD_TIME_REGEXP, timeRegexp, DEFAULT_TIME_REGEXP);
+            writeJsonWhen(writer);
             writeValue(writer, FIELD_MESSAGE, message, DEFAULT_MESSAGE);
             writeValue(writer, FIELD_IS_LAST, isLast, DEFAULT_ISLAST);
             writeValue(writer, FIELD_WEIGHT, weight, DEFAULT_WEIGHT);
         }
 
+        @Override
+        void writeBinary(DataOutputStream out) throws IOException {
+            MessageBundle.writeString(out, idRegexp);
+            MessageBundle.writeString(out, timeRegexp);
+            writeBinaryWhen(out);
+            MessageBundle.writeString(out, message);
+            MessageBundle.writeString(out, isLast);
+            out.writeInt(weight);
+        }
+
+        @Override
+        void readBinary(ByteBuffer in) {
+            idRegexp = MessageBundle.readString(in);
+            timeRegexp = MessageBundle.readString(in);
+            readBinaryWhen(in);
+            message = MessageBundle.readString(in);
+            isLast = MessageBundle.readString(in);
+            weight = in.getInt();
+        }
+
         @Override
         public void readJson(JsonReader reader) throws IOException {
             while (reader.hasNext()) {
@@ -161,6 +642,9 @@ public class RiderMessages {
                     case FIELD_TIME_REGEXP:
                         timeRegexp = reader.nextString();
                         break;
+                    case FIELD_WHEN:
+                        readJsonWhen(reader);
+                        break;
                     case FIELD_MESSAGE:
                         message = reader.nextString();
                         break;
@@ -187,7 +671,7 @@ public class RiderMessages {
     /**
      * Announce the attempted removal of a rider who is not in the manifest
      */
-    static class AlreadyReturnedMessage extends JsonSerializable {
+    static class AlreadyReturnedMessage extends MessageSpec {
         private static final String DEFAULT_ID_REGEXP = "";
         private static final String DEFAULT_TIME_REGEXP = "";
         private static final String DEFAULT_MESSAGE = "";
@@ -208,15 +692,44 @@ public class RiderMessages {
             weight = DEFAULT_WEIGHT;
         }
 
+        @Override
+        Rule compile(Map<String, LinearRegex> patterns) throws PatternSyntaxException,
+                MessageTemplate.MalformedTemplateException,
+                TimeCondition.MalformedConditionException {
+            return new Rule(idRegexp, timeRegexp, compileWhen(), "", dejaVu,
+                    MessageTemplate.compile(message), weight, patterns);
+        }
+
         @Override
         public void writeJson(JsonWriter writer) throws IOException {
             writeValue(writer, FIELD_ID_REGEXP, idRegexp, DEFAULT_ID_REGEXP);
             writeValue(writer, FIELD_TIME_REGEXP, timeRegexp, DEFAULT_TIME_REGEXP);
+            writeJsonWhen(writer);
             writeValue(writer, FIELD_MESSAGE, message, DEFAULT_MESSAGE);
             writeValue(writer, FIELD_DEJA_VU, dejaVu, DEFAULT_DEJAVU);
             writeValue(writer, FIELD_WEIGHT, weight, DEFAULT_WEIGHT);
         }
 
+        @Override
+        void writeBinary(DataOutputStream out) throws IOException {
+            MessageBundle.writeString(out, idRegexp);
+            MessageBundle.writeString(out, timeRegexp);
+            writeBinaryWhen(out);
+            MessageBundle.writeString(out, message);
+            MessageBundle.writeString(out, dejaVu);
+            out.writeInt(weight);
+        }
+
+        @Override
+        void readBinary(ByteBuffer in) {
+            idRegexp = MessageBundle.readString(in);
+            timeRegexp = MessageBundle.readString(in);
+            readBinaryWhen(in);
+            message = MessageBundle.readString(in);
+            dejaVu = MessageBundle.readString(in);
+            weight = in.getInt();
+        }
+
         @Override
         public void readJson(JsonReader reader) throws IOException {
             while (reader.hasNext()) {
@@ -229,6 +742,9 @@ public class RiderMessages {
                     case FIELD_TIME_REGEXP:
                         timeRegexp = reader.nextString();
                         break;
+                    case FIELD_WHEN:
+                        readJsonWhen(reader);
+                        break;
                     case FIELD_MESSAGE:
                         message = reader.nextString();
                         break;
@@ -255,7 +771,7 @@ public class RiderMessages {
     /**
      * Strings to announce the depletion of the manifest and the impending departure
      */
-    static class GoMessage extends JsonSerializable {
+    static class GoMessage extends MessageSpec {
         private static final String DEFAULT_TIME_REGEXP = "";
         private static final String DEFAULT_MESSAGE = "";
         private static final int DEFAULT_WEIGHT = 10;
@@ -270,13 +786,38 @@ public class RiderMessages {
             weight = DEFAULT_WEIGHT;
         }
 
+        @Override
+        Rule compile(Map<String, LinearRegex> patterns) throws PatternSyntaxException,
+                TimeCondition.MalformedConditionException {
+            // go messages don't name anyone, so '%' is just a character in them
+            return new Rule("", timeRegexp, compileWhen(), "", "",
+                    MessageTemplate.compileLiteral(message), weight, patterns);
+        }
+
         @Override
         public void writeJson(JsonWriter writer) throws IOException {
             writeValue(writer, FIELD_TIME_REGEXP, timeRegexp, DEFAULT_TIME_REGEXP);
+            writeJsonWhen(writer);
             writeValue(writer, FIELD_MESSAGE, message, DEFAULT_MESSAGE);
             writeValue(writer, FIELD_WEIGHT, weight, DEFAULT_WEIGHT);
         }
 
+        @Override
+        void writeBinary(DataOutputStream out) throws IOException {
+            MessageBundle.writeString(out, timeRegexp);
+            writeBinaryWhen(out);
+            MessageBundle.writeString(out, message);
+            out.writeInt(weight);
+        }
+
+        @Override
+        void readBinary(ByteBuffer in) {
+            timeRegexp = MessageBundle.readString(in);
+            readBinaryWhen(in);
+            message = MessageBundle.readString(in);
+            weight = in.getInt();
+        }
+
         @Override
         public void readJson(JsonReader reader) throws IOException {
             while (reader.hasNext()) {
@@ -286,6 +827,9 @@ public class RiderMessages {
                     case FIELD_TIME_REGEXP:
                         timeRegexp = reader.nextString();
                         break;
+                    case FIELD_WHEN:
+                        readJsonWhen(reader);
+                        break;
                     case FIELD_MESSAGE:
                         message = reader.nextString();
                         break;
@@ -306,14 +850,186 @@ public class RiderMessages {
         }
     }
 
-    private List<WelcomeMessage> mWelcomeMessages;
-    private List<WelcomeMessage> mAlreadyWelcomedMessages;
-    private List<ReturnMessage> mReturnMessages;
-    private List<AlreadyReturnedMessage> mAlreadyReturnedMessages;
-    private List<GoMessage> mGoMessages;
+    /**
+     * Everything loaded from one messages file. A MessageSet is never modified once it has been
+     * published, so a lookup on the UI thread can use it without locking while the next file is
+     * loaded in the background; the swap is a single write of {@link #mMessages}.
+     */
+    static class MessageSet {
+        static final MessageSet EMPTY = new MessageSet(
+                new ArrayList<WelcomeMessage>(), new ArrayList<WelcomeMessage>(),
+                new ArrayList<ReturnMessage>(), new ArrayList<AlreadyReturnedMessage>(),
+                new ArrayList<GoMessage>(),
+                new RuleTable(Collections.nCopies(RuleTable.CATEGORY_COUNT,
+                        Collections.<Rule>emptyList())),
+                null);
+
+        final List<WelcomeMessage> welcomeMessages;
+        final List<WelcomeMessage> alreadyWelcomedMessages;
+        final List<ReturnMessage> returnMessages;
+        final List<AlreadyReturnedMessage> alreadyReturnedMessages;
+        final List<GoMessage> goMessages;
+
+        final RuleTable table;
+        // null for the empty set, which is never bundled
+        private final MessageBundle.Contents mBundleContents;
+        final RuleSet welcomeRules;
+        final RuleSet alreadyWelcomedRules;
+        final RuleSet returnRules;
+        final RuleSet alreadyReturnedRules;
+        final RuleSet goRules;
+        // every locale named by a message, for starting TTS engines ahead of time
+        final Set<Locale> locales;
+
+        MessageSet(List<WelcomeMessage> welcomeMessages,
+                List<WelcomeMessage> alreadyWelcomedMessages,
+                List<ReturnMessage> returnMessages,
+                List<AlreadyReturnedMessage> alreadyReturnedMessages,
+                List<GoMessage> goMessages,
+                RuleTable table,
+                MessageBundle.Contents bundleContents) {
+            this.welcomeMessages = Collections.unmodifiableList(welcomeMessages);
+            this.alreadyWelcomedMessages = Collections.unmodifiableList(alreadyWelcomedMessages);
+            this.returnMessages = Collections.unmodifiableList(returnMessages);
+            this.alreadyReturnedMessages = Collections.unmodifiableList(alreadyReturnedMessages);
+            this.goMessages = Collections.unmodifiableList(goMessages);
+            this.table = table;
+            mBundleContents = bundleContents;
+            this.welcomeRules = new RuleSet(table, RuleTable.CATEGORY_WELCOME);
+            this.alreadyWelcomedRules = new RuleSet(table, RuleTable.CATEGORY_ALREADY_WELCOMED);
+            this.returnRules = new RuleSet(table, RuleTable.CATEGORY_RETURN);
+            this.alreadyReturnedRules = new RuleSet(table, RuleTable.CATEGORY_ALREADY_RETURNED);
+            this.goRules = new RuleSet(table, RuleTable.CATEGORY_GO);
+            final Set<Locale> locales = new HashSet<>();
+            for (int category = 0; category < RuleTable.CATEGORY_COUNT; category++) {
+                for (final Rule rule : table.categoryRules(category)) {
+                    if (rule.template.locale != null) {
+                        locales.add(rule.template.locale);
+                    }
+                }
+            }
+            this.locales = Collections.unmodifiableSet(locales);
+        }
+
+        /**
+         * Compile the rules for messages read from a file or a bundle
+         *
+         * @param summary - collects a line for each message that was rejected, now or when the
+         *          bundle was written
+         */
+        static MessageSet compile(MessageBundle.Contents contents, StringBuilder summary) {
+            final Map<String, LinearRegex> patterns = new HashMap<>(contents.patterns);
+            final StringBuilder rejected = new StringBuilder(contents.rejected);
+            final List<WelcomeMessage> welcomeMessages = new ArrayList<>();
+            final List<WelcomeMessage> alreadyWelcomedMessages = new ArrayList<>();
+            final List<ReturnMessage> returnMessages = new ArrayList<>();
+            final List<AlreadyReturnedMessage> alreadyReturnedMessages = new ArrayList<>();
+            final List<GoMessage> goMessages = new ArrayList<>();
+            // in RuleTable category order
+            final List<List<Rule>> categories = new ArrayList<>(RuleTable.CATEGORY_COUNT);
+            categories.add(compileRules("welcomeMessages", contents.welcomeMessages,
+                    welcomeMessages, patterns, rejected));
+            categories.add(compileRules("alreadyWelcomedMessages",
+                    contents.alreadyWelcomedMessages, alreadyWelcomedMessages, patterns,
+                    rejected));
+            categories.add(compileRules("returnMessages", contents.returnMessages,
+                    returnMessages, patterns, rejected));
+            categories.add(compileRules("alreadyReturnedMessages",
+                    contents.alreadyReturnedMessages, alreadyReturnedMessages, patterns,
+                    rejected));
+            categories.add(compileRules("goMessages", contents.goMessages, goMessages, patterns,
+                    rejected));
+            summary.append(rejected);
+
+            // a rejected message may have compiled a pattern before failing; don't bundle it
+            final Map<String, LinearRegex> used = new HashMap<>();
+            for (final List<Rule> rules : categories) {
+                for (final Rule rule : rules) {
+                    if (rule.idPattern != null) {
+                        used.put(rule.idPattern.pattern, rule.idPattern);
+                    }
+                    if (rule.timePattern != null) {
+                        used.put(rule.timePattern.pattern, rule.timePattern);
+                    }
+                }
+            }
+            return new MessageSet(contents.welcomeMessages, contents.alreadyWelcomedMessages,
+                    contents.returnMessages, contents.alreadyReturnedMessages, contents.goMessages,
+                    new RuleTable(categories),
+                    new MessageBundle.Contents(welcomeMessages, alreadyWelcomedMessages,
+                            returnMessages, alreadyReturnedMessages, goMessages, used,
+                            rejected.toString()));
+        }
+
+        /**
+         * @return the messages that compiled, with their compiled regular expressions, for
+         *          writing a bundle
+         */
+        MessageBundle.Contents bundleContents() {
+            return mBundleContents;
+        }
+
+        /**
+         * Fill this set's caches for the current minute and for the riders that were recently
+         * looked up in previous, so that the first taps after a reload take the fast path
+         * too. Call this before publishing the set.
+         */
+        void warmUp(MessageSet previous, long time) {
+            table.warmUp(previous.table, time);
+            goRules.timeMatches(time);
+        }
+    }
+
+    /**
+     * Tells the app that a new messages file has been loaded
+     */
+    interface MessagesListener {
+        void onMessagesLoaded();
+    }
+
+    static final int PREPARED_WELCOME = 0;
+    static final int PREPARED_RETURN = 1;
+    static final int PREPARED_LAST_RETURN = 2;
+
+    /**
+     * A message picked and rendered before the rider's tag was tapped. A rider's message only
+     * depends on their id, the minute, and the isLast and dejaVu flags, so it can be worked out
+     * in the background and be ready to speak. It's only good for the minute and the messages
+     * file it was picked from.
+     */
+    static class PreparedMessage {
+        final String text;
+        final Locale locale;
+        // false if it was prepared before, and has only been carried over
+        final boolean isNewPick;
+        private final MessageSet mMessages;
+        private final RuleSet mRuleSet;
+        private final long mMinute;
+        private final int mRuleIndex;
+
+        PreparedMessage(String text, Locale locale, boolean isNewPick, MessageSet messages,
+                RuleSet ruleSet, long minute, int ruleIndex) {
+            this.text = text;
+            this.locale = locale;
+            this.isNewPick = isNewPick;
+            mMessages = messages;
+            mRuleSet = ruleSet;
+            mMinute = minute;
+            mRuleIndex = ruleIndex;
+        }
+    }
+
+    private volatile MessageSet mMessages = MessageSet.EMPTY;
+
+    private final ConcurrentHashMap<String, PreparedMessage> mPrepared =
+            new ConcurrentHashMap<>();
+
+    private MessagesListener mMessagesListener;
 
     static RiderMessages sInstance = new RiderMessages();
 
+    private Random mRandom = new Random();
+
     /*
      *  The BusManMessages file is a JSON file with three different lists: welcome messages,
      *  returning messages, go messages.
@@ -323,9 +1039,22 @@ public class RiderMessages {
      *          "Sun, Mar 23, 2014 14:07"
      *          example: ex: ".*Apr 1,.*" matches April first
      *          (empty matches all)
+     *  when is an optional object that limits the message to certain times without a regular
+     *          expression. Any of its fields can be left out; all of those present must match:
+     *          "daysOfWeek": "Sat,Sun"
+     *          "fromDate": "2014-03-01", "toDate": "2014-03-31" (inclusive)
+     *          "fromTime": "07:00", "toTime": "09:30" (inclusive; may run past midnight)
+     *          "month": 3, "day": 17 (every March 17th)
+     *          A message can have both timeRegexp and when, in which case both must match.
      *  idRegexp is a regular expression to match against a rider id, or empty to match all riders
+     *  Both kinds of regular expression are matched in linear time by LinearRegex, which
+     *          supports the common subset of java.util.regex. A message whose expression uses
+     *          anything else, such as a back reference or lookaround, is rejected at load.
      *  message is the string, which can contain:
-     *          "%s" will be replaced with the rider's name (one instance)
+     *          "%s" will be replaced with the rider's name (one instance); "%1$s" can be used
+     *              any number of times, "%S" and "%1$S" give the name in upper case, and "%%"
+     *              and "%n" give a percent sign and a line break. A message with any other
+     *              format is rejected when the file is loaded.
      *          "!locale(language)" can appear anywhere in the message. It will be deleted from the
      *              message, and the language (an ISO locale spec) will be passed to the TTS engine,
      *              e.g., "!locale(en_GB)"
@@ -374,6 +1103,27 @@ public class RiderMessages {
             protected String doInBackground(Void... params) {
                 final Resources res = context.getResources();
                 sMessageFileLastModified = messageFileModDate;
+                final File bundleFile = MessageBundle.bundleFileFor(messageFile);
+                long sourceHash;
+                try {
+                    sourceHash = MessageBundle.hashFile(messageFile);
+                } catch (IOException e) {
+                    if (Log.isLoggable(TAG, Log.WARN)) {
+                        Log.w(TAG, "readMessages() - couldn't hash " + messageFile + ": " + e);
+                    }
+                    sourceHash = -1;
+                }
+                final MessageBundle.Contents bundled = sourceHash == -1 ? null
+                        : MessageBundle.read(bundleFile, sourceHash);
+                if (bundled != null) {
+                    if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                        Log.v(TAG, "readMessages() - using bundle");
+                    }
+                    final StringBuilder result = new StringBuilder();
+                    install(bundled, result);
+                    return res.getString(R.string.finished_reading_messages, result);
+                }
+
                 final InputStream messageStream;
                 try {
                     if (Log.isLoggable(TAG, Log.VERBOSE)) {
@@ -389,12 +1139,29 @@ public class RiderMessages {
                     return message;
                 }
 
-                final String result = parseJsonStream(messageStream);
+                final StringBuilder result = new StringBuilder();
+                final MessageBundle.Contents contents = parseJsonStream(messageStream, result);
+                if (contents != null) {
+                    final MessageSet messages = install(contents, result);
+                    if (sourceHash != -1) {
+                        try {
+                            MessageBundle.write(bundleFile, sourceHash,
+                                    messages.bundleContents());
+                        } catch (IOException e) {
+                            if (Log.isLoggable(TAG, Log.WARN)) {
+                                Log.w(TAG, "readMessages() - couldn't write bundle: " + e);
+                            }
+                        }
+                    }
+                }
                 return res.getString(R.string.finished_reading_messages, result);
             }
 
             protected void onPostExecute(String result) {
                 Toast.makeText(context, result, Toast.LENGTH_LONG).show();
+                if (mMessagesListener != null) {
+                    mMessagesListener.onMessagesLoaded();
+                }
             }
 
         }.execute((Void) null);
@@ -427,7 +1194,23 @@ public class RiderMessages {
     @VisibleForTesting
     String parseJsonStream(InputStream jsonStream) {
         final StringBuilder result = new StringBuilder();
-        resetMessages();
+        final MessageBundle.Contents contents = parseJsonStream(jsonStream, result);
+        if (contents != null) {
+            install(contents, result);
+        }
+        return result.toString();
+    }
+
+    /**
+     * @param result - collects any problems found in the file
+     * @return the messages read from the file, or null if it couldn't be read
+     */
+    private MessageBundle.Contents parseJsonStream(InputStream jsonStream, StringBuilder result) {
+        List<WelcomeMessage> welcomeMessages = new ArrayList<>();
+        List<WelcomeMessage> alreadyWelcomedMessages = new ArrayList<>();
+        List<ReturnMessage> returnMessages = new ArrayList<>();
+        List<AlreadyReturnedMessage> alreadyReturnedMessages = new ArrayList<>();
+        List<GoMessage> goMessages = new ArrayList<>();
 
         try {
             final JsonReader reader = new JsonReader(new InputStreamReader(jsonStream));
@@ -438,24 +1221,24 @@ public class RiderMessages {
 
                 switch (name) {
                     case "welcomeMessages":
-                        mWelcomeMessages = readJsonArray(reader, WelcomeMessage.class);
+                        welcomeMessages = readJsonArray(reader, WelcomeMessage.class);
                         break;
 
                     case "alreadyWelcomedMessages":
-                        mAlreadyWelcomedMessages = readJsonArray(reader, WelcomeMessage.class);
+                        alreadyWelcomedMessages = readJsonArray(reader, WelcomeMessage.class);
                         break;
 
                     case "returnMessages":
-                        mReturnMessages = readJsonArray(reader, ReturnMessage.class);
+                        returnMessages = readJsonArray(reader, ReturnMessage.class);
                         break;
 
                     case "alreadyReturnedMessages":
-                        mAlreadyReturnedMessages = readJsonArray(reader,
+                        alreadyReturnedMessages = readJsonArray(reader,
                                 AlreadyReturnedMessage.class);
                         break;
 
                     case "goMessages":
-                        mGoMessages = readJsonArray(reader, GoMessage.class);
+                        goMessages = readJsonArray(reader, GoMessage.class);
                         break;
 
                     default:
@@ -471,31 +1254,82 @@ public class RiderMessages {
 
             reader.endObject();
             reader.close();
-            final String separator = ", ";
-            result.append("(")
-                    .append(mWelcomeMessages.size()).append(separator)
-                    .append(mAlreadyWelcomedMessages.size()).append(separator)
-                    .append(mReturnMessages.size()).append(separator)
-                    .append(mAlreadyReturnedMessages.size()).append(separator)
-                    .append(mGoMessages.size())
-                    .append(")");
         } catch (IOException e) {
+            // keep using the messages we already have rather than a partial file
             result.append(e.toString());
             e.printStackTrace();
+            return null;
         }
 
-        return result.toString();
+        return new MessageBundle.Contents(welcomeMessages, alreadyWelcomedMessages,
+                returnMessages, alreadyReturnedMessages, goMessages);
+    }
+
+    /**
+     * Compile the messages and publish them for lookups
+     *
+     * @param result - collects a line for each rejected message, and the message counts
+     * @return the published messages
+     */
+    private MessageSet install(MessageBundle.Contents contents, StringBuilder result) {
+        final MessageSet messages = MessageSet.compile(contents, result);
+        messages.warmUp(mMessages, System.currentTimeMillis());
+        mMessages = messages;
+
+        final String separator = ", ";
+        result.append("(")
+                .append(messages.welcomeRules.rules.size()).append(separator)
+                .append(messages.alreadyWelcomedRules.rules.size()).append(separator)
+                .append(messages.returnRules.rules.size()).append(separator)
+                .append(messages.alreadyReturnedRules.rules.size()).append(separator)
+                .append(messages.goRules.rules.size())
+                .append(")");
+        return messages;
+    }
+
+    /**
+     * Compile each message's regular expressions and template. Messages with a bad regular
+     * expression or template are left out, and reported in the load summary.
+     *
+     * @param listName - the JSON key of the list, for the summary
+     * @param messages - the messages as read from the file
+     * @param compiled - collects the messages that compiled, in step with the rules
+     * @param patterns - regular expressions already compiled, by source
+     * @param summary - collects a line for each rejected message
+     * @return the rules for the messages that compiled
+     */
+    private static <T extends MessageSpec> List<Rule> compileRules(String listName,
+            List<T> messages, List<T> compiled, Map<String, LinearRegex> patterns,
+            StringBuilder summary) {
+        final List<Rule> rules = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            try {
+                rules.add(messages.get(i).compile(patterns));
+                compiled.add(messages.get(i));
+            } catch (PatternSyntaxException e) {
+                reject(listName, i, e.getDescription() + " in '" + e.getPattern() + "'", summary);
+            } catch (MessageTemplate.MalformedTemplateException
+                    | TimeCondition.MalformedConditionException e) {
+                reject(listName, i, e.getMessage(), summary);
+            }
+        }
+        return rules;
+    }
+
+    private static void reject(String listName, int index, String reason,
+            StringBuilder summary) {
+        final String message = "Rejected " + listName + "[" + index + "]: " + reason;
+        summary.append(message).append("\n");
+        if (Log.isLoggable(TAG, Log.WARN)) {
+            Log.w(TAG, message);
+        }
     }
 
     /**
      * Empty the message lists.
      */
     private void resetMessages() {
-        mWelcomeMessages = new ArrayList<>();
-        mAlreadyWelcomedMessages = new ArrayList<>();
-        mReturnMessages = new ArrayList<>();
-        mAlreadyReturnedMessages = new ArrayList<>();
-        mGoMessages = new ArrayList<>();
+        mMessages = MessageSet.EMPTY;
     }
 
     static String timeString() {
@@ -503,202 +1337,200 @@ public class RiderMessages {
     }
 
     static String timeString(long time) {
-        return RiderMessages.DATE_FORMAT.format(new Date(time));
-    }
-
-    private static class CandidateMessage {
-        final String message;
-        final int weight;
-
-        CandidateMessage(final String message, final int weight) {
-            this.message = message;
-            this.weight = weight;
-        }
+        return RiderMessages.DATE_FORMAT.get().format(new Date(time));
     }
 
-    private static String sLatestWelcomeString;
-
     /**
      * @param riderId - a rider id
-     * @return a welcome string or null if there were none
+     * @return a welcome template or null if there were none
      */
-    private String getWelcomeString(final String riderId, List<WelcomeMessage> welcomeMessages) {
-        if (welcomeMessages == null) {
-            return null;
-        }
-        final ArrayList<CandidateMessage> candidates = new ArrayList<>();
-        final String timeString = timeString();
-        int totalWeight = 0;
-        for (final WelcomeMessage message: welcomeMessages) {
-            final String idRegexp = message.idRegexp;
-            final String timeRegexp = stripLeadingZeroInTimeRegexp(message.timeRegexp);
-            try {
-                if ((!idRegexp.isEmpty() && !riderMatchesIdRegexp(riderId, idRegexp))
-                        || (!timeRegexp.isEmpty() && !timeString.matches(timeRegexp))
-                        || (message.message.equals(sLatestWelcomeString))) {
-                    continue;
-                }
-            } catch (PatternSyntaxException e) {
-                if (Log.isLoggable(TAG, Log.ERROR)) {
-                    Log.e(TAG, "welcome regexp error: " + e);
-                }
-                continue;
-            }
-            totalWeight += message.weight;
-            candidates.add(new CandidateMessage(message.message, totalWeight));
-        }
-
-        sLatestWelcomeString =  selectMessage(candidates, totalWeight);
-        return sLatestWelcomeString;
+    private MessageTemplate getWelcomeTemplate(final String riderId, RuleSet welcomeRules) {
+        return selectTemplate(welcomeRules,
+                welcomeRules.candidates(riderId, System.currentTimeMillis(), false, false));
     }
 
     /**
      * @param rider - a rider id
-     * @return a welcome string or null if there were none
+     * @return a welcome template or null if there were none
      */
-    String getWelcomeString(final String rider) {
-        return getWelcomeString(rider, mWelcomeMessages);
+    MessageTemplate getWelcomeTemplate(final String rider) {
+        return getWelcomeTemplate(rider, mMessages.welcomeRules);
     }
 
     /**
      * @param rider - a rider id
-     * @return a "not on the list" string or null if there were none
+     * @return a "not on the list" template or null if there were none
      */
-    String getAlreadyWelcomedString(final String rider) {
-        return getWelcomeString(rider, mAlreadyWelcomedMessages);
+    MessageTemplate getAlreadyWelcomedTemplate(final String rider) {
+        return getWelcomeTemplate(rider, mMessages.alreadyWelcomedRules);
     }
 
     /**
-     * @return a random message from the weighted candidates list
+     * @return a random template from the weighted candidates
      */
-    private static String selectMessage(final ArrayList<CandidateMessage> candidates,
-            final int totalWeight) {
-
-        if (totalWeight > 0) {
-            final int randomPick = sRandom.nextInt(totalWeight);
-            for (final CandidateMessage candidate: candidates) {
-                if (randomPick < candidate.weight) {
-                    return candidate.message;
-                }
-            }
-        }
-
-        if (Log.isLoggable(TAG, Log.WARN)) {
+    private MessageTemplate selectTemplate(final RuleSet ruleSet,
+            final WeightedPicker candidates) {
+        final MessageTemplate template = ruleSet.pickTemplate(candidates, mRandom);
+        if (template == null && Log.isLoggable(TAG, Log.WARN)) {
             Log.w(TAG, "failed to find a message");
         }
-        return null;
+        return template;
     }
 
-    private static String sLatestReturnsString;
-
     /**
      * @param riderId - a rider id
      * @param isLast - true if this rider's arrival emptied the manifest
-     * @return a welcome back string or null if there were none
+     * @return a welcome back template or null if there were none
      */
-    String getReturnsString(final String riderId, final boolean isLast) {
-        if (mReturnMessages == null) {
-            return null;
-        }
-        final ArrayList<CandidateMessage> candidates = new ArrayList<>();
-        final String timeString = timeString();
-        int totalWeight = 0;
-        for (final ReturnMessage message: mReturnMessages) {
-            final String idRegexp = message.idRegexp;
-            final String timeRegexp = stripLeadingZeroInTimeRegexp(message.timeRegexp);
-            final String messageIsLast = message.isLast;
-            final String riderIsLast = isLast ? "t" : "f";
-            try {
-                if ((!idRegexp.isEmpty() && !riderMatchesIdRegexp(riderId, idRegexp))
-                        || (!timeRegexp.isEmpty() && !timeString.matches(timeRegexp))
-                        || (!messageIsLast.isEmpty() && !riderIsLast.equals(messageIsLast))
-                        || (message.message.equals(sLatestReturnsString))) {
-                    continue;
-                }
-            } catch (PatternSyntaxException e) {
-                if (Log.isLoggable(TAG, Log.ERROR)) {
-                    Log.e(TAG, "returns regexp error: " + e);
-                }
-                continue;
-            }
-
-            totalWeight += message.weight;
-            candidates.add(new CandidateMessage(message.message, totalWeight));
-        }
+    MessageTemplate getReturnsTemplate(final String riderId, final boolean isLast) {
+        final RuleSet returnRules = mMessages.returnRules;
+        return selectTemplate(returnRules,
+                returnRules.candidates(riderId, System.currentTimeMillis(), isLast, false));
+    }
 
-        sLatestReturnsString = selectMessage(candidates, totalWeight);
-        return sLatestReturnsString;
+    /**
+     * @param riderId - a rider id
+     * @return a welcome back template or null if there were none
+     */
+    MessageTemplate getAlreadyReturnedTemplate(final String riderId, boolean alreadyRemoved) {
+        final RuleSet alreadyReturnedRules = mMessages.alreadyReturnedRules;
+        return selectTemplate(alreadyReturnedRules, alreadyReturnedRules.candidates(riderId,
+                System.currentTimeMillis(), false, alreadyRemoved));
     }
 
-    private static String sLatestAlreadyReturnedString;
+    /**
+     * @return a "time to go" template or null if there were none
+     */
+    MessageTemplate getGoTemplate() {
+        return getGoTemplate(System.currentTimeMillis());
+    }
 
     /**
-     * @param riderId - a rider id
-     * @return a welcome back string or null if there were none
+     * @param time - the current time in milliseconds
+     * @return a "time to go" template or null if there were none
      */
-    String getAlreadyReturnedString(final String riderId, boolean alreadyRemoved) {
-        if (mAlreadyReturnedMessages == null) {
+    MessageTemplate getGoTemplate(long time) {
+        final RuleSet goRules = mMessages.goRules;
+        // go messages have no other filter, so the per-minute picker can be used as it is
+        final int ruleIndex = goRules.timeMatches(time).picker.pick(mRandom);
+        if (ruleIndex == WeightedPicker.NONE) {
+            if (Log.isLoggable(TAG, Log.WARN)) {
+                Log.w(TAG, "failed to find a go message");
+            }
             return null;
         }
-        final ArrayList<CandidateMessage> candidates = new ArrayList<>();
-        final String timeString = timeString();
-        int totalWeight = 0;
-        for (final AlreadyReturnedMessage message: mAlreadyReturnedMessages) {
-            final String idRegexp = message.idRegexp;
-            final String timeRegexp = stripLeadingZeroInTimeRegexp(message.timeRegexp);
-            final String messageIsDejaVu = message.dejaVu;
-            final String dejaVu = alreadyRemoved ? "t" : "f";
-            try {
-                if ((!idRegexp.isEmpty() && !riderMatchesIdRegexp(riderId, idRegexp))
-                        || (!timeRegexp.isEmpty() && !timeString.matches(timeRegexp))
-                        || (!messageIsDejaVu.isEmpty() && !dejaVu.equals(messageIsDejaVu))
-                        || (message.message.equals(sLatestAlreadyReturnedString))) {
-                    continue;
-                }
-            } catch (PatternSyntaxException e) {
-                if (Log.isLoggable(TAG, Log.ERROR)) {
-                    Log.e(TAG, "alreadyReturned regexp error: " + e);
-                }
-                continue;
-            }
+        return goRules.rules.get(ruleIndex).template;
+    }
 
-            totalWeight += message.weight;
-            candidates.add(new CandidateMessage(message.message, totalWeight));
+    /**
+     * @param time - the current time in milliseconds
+     * @return every "time to go" template that {@link #getGoTemplate(long)} might pick
+     */
+    List<MessageTemplate> getGoTemplates(long time) {
+        final RuleSet goRules = mMessages.goRules;
+        final int[] ruleIndexes = goRules.timeMatches(time).ruleIndexes;
+        final List<MessageTemplate> templates = new ArrayList<>(ruleIndexes.length);
+        for (final int ruleIndex : ruleIndexes) {
+            templates.add(goRules.rules.get(ruleIndex).template);
         }
+        return templates;
+    }
 
-        sLatestAlreadyReturnedString = selectMessage(candidates, totalWeight);
-        return sLatestAlreadyReturnedString;
+    void setMessagesListener(MessagesListener listener) {
+        mMessagesListener = listener;
     }
 
-    private boolean riderMatchesIdRegexp(String riderId, String idRegexp) {
-        return riderId.matches(idRegexp);
+    /**
+     * Drop the messages prepared before the minute containing time, or from another messages
+     * file, e.g., for riders who weren't prepared again when the minute changed
+     */
+    void dropStalePrepared(long time) {
+        final long minute = TimeUnit.MILLISECONDS.toMinutes(time);
+        final Iterator<PreparedMessage> prepared = mPrepared.values().iterator();
+        while (prepared.hasNext()) {
+            final PreparedMessage message = prepared.next();
+            if (message.mMinute != minute || message.mMessages != mMessages) {
+                prepared.remove();
+            }
+        }
     }
 
     /**
-     * @param timeString - the current time
-     * @return a "time to go" string or null if there were none
-     */
-    String getGoString(String timeString) {
-        final ArrayList<CandidateMessage> candidates = new ArrayList<CandidateMessage>();
-        int totalWeight = 0;
-        for (final GoMessage message: mGoMessages) {
-            final String timeRegexp = stripLeadingZeroInTimeRegexp(message.timeRegexp);
-            try {
-                if (!timeRegexp.isEmpty() && !timeString.matches(timeRegexp)) {
-                    continue;
-                }
-            } catch (PatternSyntaxException e) {
-                if (Log.isLoggable(TAG, Log.ERROR)) {
-                    Log.e(TAG, "go regexp error: " + e);
-                }
-                continue;
+     * Pick and render a message for rider now, to be spoken when their tag is tapped. Call this
+     * on the same thread as the other lookups.
+     *
+     * A message already prepared for rider is kept as long as it can still be said: one from
+     * an earlier minute is carried over if its rule still matches. So a rider's message only
+     * changes once it has been said, or can't be.
+     *
+     * @param kind - PREPARED_WELCOME, PREPARED_RETURN or PREPARED_LAST_RETURN
+     * @param rider - the key to find it by later
+     * @param riderId - the rider's id
+     * @param firstName - the name to put in the message
+     * @param time - the current time in milliseconds
+     * @return the prepared message, or null if there were none
+     */
+    PreparedMessage prepare(int kind, String rider, String riderId, String firstName,
+            long time) {
+        final MessageSet messages = mMessages;
+        final RuleSet ruleSet = kind == PREPARED_WELCOME ? messages.welcomeRules
+                : messages.returnRules;
+        final long minute = TimeUnit.MILLISECONDS.toMinutes(time);
+        final String key = preparedKey(kind, rider);
+        PreparedMessage earlier = mPrepared.get(key);
+        if (earlier != null && (earlier.mMessages != messages
+                || earlier.mRuleIndex == ruleSet.mLatestRule)) {
+            earlier = null;
+        }
+        final WeightedPicker candidates = earlier != null && earlier.mMinute == minute ? null
+                : ruleSet.candidates(riderId, time, kind == PREPARED_LAST_RETURN, false);
+        final PreparedMessage prepared;
+        if (earlier != null
+                && (candidates == null || candidates.contains(earlier.mRuleIndex))) {
+            prepared = new PreparedMessage(earlier.text, earlier.locale, false, messages,
+                    ruleSet, minute, earlier.mRuleIndex);
+        } else {
+            final int ruleIndex = ruleSet.pickAhead(candidates, mRandom);
+            if (ruleIndex == WeightedPicker.NONE) {
+                mPrepared.remove(key);
+                return null;
             }
+            final MessageTemplate template = ruleSet.rules.get(ruleIndex).template;
+            prepared = new PreparedMessage(template.render(firstName), template.locale, true,
+                    messages, ruleSet, minute, ruleIndex);
+        }
+        mPrepared.put(key, prepared);
+        return prepared;
+    }
 
-            totalWeight += message.weight;
-            candidates.add(new CandidateMessage(message.message, totalWeight));
+    /**
+     * @param kind - PREPARED_WELCOME, PREPARED_RETURN or PREPARED_LAST_RETURN
+     * @param rider - the key it was prepared under
+     * @param time - the current time in milliseconds
+     * @return the message prepared for rider, or null if there isn't one that's still good. A
+     *          message is only handed out once.
+     */
+    PreparedMessage takePrepared(int kind, String rider, long time) {
+        final PreparedMessage prepared = mPrepared.remove(preparedKey(kind, rider));
+        if (prepared == null
+                || prepared.mMessages != mMessages
+                || prepared.mMinute != TimeUnit.MILLISECONDS.toMinutes(time)
+                || !prepared.mRuleSet.confirmPick(prepared.mRuleIndex)) {
+            return null;
         }
+        return prepared;
+    }
+
+    private static String preparedKey(int kind, String rider) {
+        return kind + rider;
+    }
 
-        return selectMessage(candidates, totalWeight);
+    /**
+     * Replace the source of randomness for message selection, e.g., with a seeded one
+     */
+    @VisibleForTesting
+    void setRandom(Random random) {
+        mRandom = random;
     }
 
     @VisibleForTesting
@@ -719,28 +1551,60 @@ public class RiderMessages {
         return MESSAGE_JSON_FILE;
     }
 
+    /**
+     * @return the locales named by the loaded messages
+     */
+    Set<Locale> getLocales() {
+        return mMessages.locales;
+    }
+
+    @VisibleForTesting
+    MessageSet getMessages() {
+        return mMessages;
+    }
+
     @VisibleForTesting
     List<WelcomeMessage> getWelcomeMessages() {
-        return mWelcomeMessages;
+        return mMessages.welcomeMessages;
     }
 
     @VisibleForTesting
     List<WelcomeMessage> getAlreadyWelcomedMessages() {
-        return mAlreadyWelcomedMessages;
+        return mMessages.alreadyWelcomedMessages;
     }
 
     @VisibleForTesting
     List<ReturnMessage> getReturnMessages() {
-        return mReturnMessages;
+        return mMessages.returnMessages;
     }
 
     @VisibleForTesting
     List<AlreadyReturnedMessage> getAlreadyReturnedMessages() {
-        return mAlreadyReturnedMessages;
+        return mMessages.alreadyReturnedMessages;
     }
 
     @VisibleForTesting
     List<GoMessage> getGoMessages() {
-        return mGoMessages;
+        return mMessages.goMessages;
+    }
+
+    @VisibleForTesting
+    List<Rule> getWelcomeRules() {
+        return mMessages.welcomeRules.rules;
+    }
+
+    @VisibleForTesting
+    List<Rule> getGoRules() {
+        return mMessages.goRules.rules;
+    }
+
+    @VisibleForTesting
+    RuleSet getGoRuleSet() {
+        return mMessages.goRules;
+    }
+
+    @VisibleForTesting
+    RuleSet getReturnRuleSet() {
+        return mMessages.returnRules;
     }
 }
@@ -0,0 +1,168 @@
+package net.bbuzz.busman;
+
+import net.bbuzz.busman.ConfigureTagActivity.RiderInfo;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Every rider seen since the activity started, each made into a {@link Rider} once and given a
+ * small int handle, counting up from 0. A rider is found again by their manifest key or by the
+ * text of their tag, so a repeat tap doesn't parse the tag, build the key, or work out the
+ * rider's id and first name again.
+ *
+ * Not thread-safe: use it from the UI thread. Riders themselves never change, and can be
+ * handed to any thread.
+ */
+final class RiderRegistry {
+
+    static final class Rider {
+        final int handle;
+        final String key;        // "rider's name [rider's id]", as the manifest knows them
+        final String id;         // null if key isn't in that form
+        final String firstName;  // null if the name is blank
+
+        private Rider(int handle, String key) {
+            this.handle = handle;
+            this.key = key;
+            this.id = id(key);
+            this.firstName = firstName(key);
+        }
+
+        @Override
+        public String toString() {
+            return key;
+        }
+    }
+
+    private Rider[] mRiders = new Rider[16];
+    private int mSize;
+    private final Table mByKey = new Table();
+    private final Table mByTag = new Table();
+
+    /**
+     * @param key - in the form "rider's name [rider's id]"
+     */
+    Rider intern(String key) {
+        Rider rider = mByKey.get(key);
+        if (rider == null) {
+            if (mSize == mRiders.length) {
+                mRiders = Arrays.copyOf(mRiders, mSize * 2);
+            }
+            rider = new Rider(mSize, key);
+            mRiders[mSize++] = rider;
+            mByKey.put(key, rider);
+        }
+        return rider;
+    }
+
+    /**
+     * @param tagText - an NFC tag's payload
+     * @throws IOException if the tag isn't a rider's
+     */
+    Rider internTag(String tagText) throws IOException {
+        Rider rider = mByTag.get(tagText);
+        if (rider == null) {
+            final RiderInfo riderInfo = RiderInfo.getRiderInfo(tagText);
+            rider = intern(riderInfo.name + " [" + riderInfo.id + "]");
+            mByTag.put(tagText, rider);
+        }
+        return rider;
+    }
+
+    Rider get(int handle) {
+        if (handle < 0 || handle >= mSize) {
+            throw new IndexOutOfBoundsException("handle " + handle + ", size " + mSize);
+        }
+        return mRiders[handle];
+    }
+
+    /**
+     * @return how many riders there are, and so the highest handle plus one
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @param rider - String in form "rider's name [rider's id]"
+     * @return rider's first name
+     */
+    static String firstName(final String rider) {
+        final String[] names = rider.split("\\s+");
+        for (final String name: names) {
+            if (!name.isEmpty()) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param rider - String in form "rider's name [rider's id]"
+     * @return rider's id, or null if the string is not in the expected format
+     */
+    static String id(final String rider) {
+        final int openBracePos = rider.indexOf('[');
+        final int closeBracePos = rider.indexOf(']');
+
+        if (openBracePos == -1 || closeBracePos <= openBracePos + 1) {
+            return null;
+        }
+        return rider.substring(openBracePos + 1, closeBracePos);
+    }
+
+    /**
+     * Riders by a string, in an open-addressing table: one array probe, usually, and no entry
+     * objects
+     */
+    private static final class Table {
+        private String[] mKeys = new String[32];
+        private Rider[] mValues = new Rider[32];
+        private int mSize;
+
+        Rider get(String key) {
+            final int mask = mKeys.length - 1;
+            for (int i = slot(key, mask); mKeys[i] != null; i = (i + 1) & mask) {
+                if (mKeys[i].equals(key)) {
+                    return mValues[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @param key - mustn't be in the table already
+         */
+        void put(String key, Rider rider) {
+            if (2 * (mSize + 1) > mKeys.length) {
+                final String[] keys = mKeys;
+                final Rider[] values = mValues;
+                mKeys = new String[keys.length * 2];
+                mValues = new Rider[keys.length * 2];
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] != null) {
+                        insert(keys[i], values[i]);
+                    }
+                }
+            }
+            insert(key, rider);
+            mSize++;
+        }
+
+        private void insert(String key, Rider rider) {
+            final int mask = mKeys.length - 1;
+            int i = slot(key, mask);
+            while (mKeys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            mKeys[i] = key;
+            mValues[i] = rider;
+        }
+
+        private static int slot(String key, int mask) {
+            final int hash = key.hashCode() * 0x9e3779b9;
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package net.bbuzz.busman;
+
+import android.support.annotation.VisibleForTesting;
+
+import net.bbuzz.busman.RiderMessages.Rule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Every rule loaded from one messages file, across all categories, stored by column. Each yes/no
+ * property of the rules is a bitset with one bit per rule: the category, which isLast and dejaVu
+ * values are accepted, and whether there is a time or id filter at all. The rules whose time
+ * filter passes are worked out once per minute, and those whose id filter passes once per rider,
+ * also as bitsets. Finding the candidates for a tap ANDs these together a word at a time, and
+ * only the rules that survive are looked at for their weights.
+ *
+ * The rules of each category are stored together, in the order they were given, and are
+ * numbered from zero within the category.
+ */
+class RuleTable {
+
+    static final int CATEGORY_WELCOME = 0;
+    static final int CATEGORY_ALREADY_WELCOMED = 1;
+    static final int CATEGORY_RETURN = 2;
+    static final int CATEGORY_ALREADY_RETURNED = 3;
+    static final int CATEGORY_GO = 4;
+    static final int CATEGORY_COUNT = 5;
+
+    @VisibleForTesting
+    static final int MAX_CACHED_RIDERS = 256;
+
+    private static final int FLAG_COMBINATIONS = 4;  // isLast x dejaVu
+
+    private final List<Rule> mRules;
+    private final int[] mCategoryStarts;  // one more than the number of categories
+    private final int[] mWeights;
+
+    private final long[][] mCategoryBits;
+    private final long[] mAcceptsLast;
+    private final long[] mAcceptsNotLast;
+    private final long[] mAcceptsDejaVu;
+    private final long[] mAcceptsNotDejaVu;
+    private final long[] mAnyTime;
+    private final long[] mAnyId;
+    private final long[] mAll;
+
+    private final int[] mTimeFilteredRows;
+    private final int[] mPatternIdRows;
+    private final HashMap<String, int[]> mLiteralIdRows = new HashMap<>();
+
+    private volatile TimeBits mTimeBits;
+    private final ConcurrentHashMap<String, RiderEntry> mRiders = new ConcurrentHashMap<>();
+    private final AtomicLong mRiderClock = new AtomicLong();
+
+    /**
+     * The rules whose time filter passes during one minute
+     */
+    private static class TimeBits {
+        final long minute;
+        final long[] bits;
+
+        TimeBits(long minute, long[] bits) {
+            this.minute = minute;
+            this.bits = bits;
+        }
+    }
+
+    /**
+     * The rules whose id filter passes for one rider, and the candidates built from them for the
+     * most recent minute, for each category and combination of the isLast and dejaVu flags
+     */
+    private static class RiderEntry {
+        final long[] idBits;
+        final Candidates[] candidates;
+        volatile long lastUsed;
+
+        RiderEntry(long[] idBits, int categoryCount) {
+            this.idBits = idBits;
+            this.candidates = new Candidates[categoryCount * FLAG_COMBINATIONS];
+        }
+    }
+
+    private static class Candidates {
+        final long minute;
+        final WeightedPicker picker;
+
+        Candidates(long minute, WeightedPicker picker) {
+            this.minute = minute;
+            this.picker = picker;
+        }
+    }
+
+    /**
+     * @param categories - the rules of each category, in category order
+     */
+    RuleTable(List<List<Rule>> categories) {
+        final List<Rule> rules = new ArrayList<>();
+        mCategoryStarts = new int[categories.size() + 1];
+        for (int category = 0; category < categories.size(); category++) {
+            mCategoryStarts[category] = rules.size();
+            rules.addAll(categories.get(category));
+        }
+        mCategoryStarts[categories.size()] = rules.size();
+        mRules = Collections.unmodifiableList(rules);
+
+        final int size = rules.size();
+        mWeights = new int[size];
+        mCategoryBits = new long[categories.size()][];
+        mAcceptsLast = newBits(size);
+        mAcceptsNotLast = newBits(size);
+        mAcceptsDejaVu = newBits(size);
+        mAcceptsNotDejaVu = newBits(size);
+        mAnyTime = newBits(size);
+        mAnyId = newBits(size);
+        mAll = newBits(size);
+        Arrays.fill(mAll, -1L);
+
+        for (int category = 0; category < categories.size(); category++) {
+            mCategoryBits[category] = newBits(size);
+            for (int row = mCategoryStarts[category]; row < mCategoryStarts[category + 1]; row++) {
+                setBit(mCategoryBits[category], row);
+            }
+        }
+
+        final int[] timeFilteredRows = new int[size];
+        final int[] patternIdRows = new int[size];
+        int timeFilteredCount = 0;
+        int patternIdCount = 0;
+        for (int row = 0; row < size; row++) {
+            final Rule rule = rules.get(row);
+            mWeights[row] = rule.weight;
+            if (Rule.matchesFlag(rule.isLast, true)) {
+                setBit(mAcceptsLast, row);
+            }
+            if (Rule.matchesFlag(rule.isLast, false)) {
+                setBit(mAcceptsNotLast, row);
+            }
+            if (Rule.matchesFlag(rule.dejaVu, true)) {
+                setBit(mAcceptsDejaVu, row);
+            }
+            if (Rule.matchesFlag(rule.dejaVu, false)) {
+                setBit(mAcceptsNotDejaVu, row);
+            }
+            if (rule.timePattern == null && rule.timeCondition == null) {
+                setBit(mAnyTime, row);
+            } else {
+                timeFilteredRows[timeFilteredCount++] = row;
+            }
+            if (rule.idPattern == null) {
+                setBit(mAnyId, row);
+            } else if (rule.idLiterals == null) {
+                patternIdRows[patternIdCount++] = row;
+            } else {
+                for (final String id : rule.idLiterals) {
+                    final int[] rows = mLiteralIdRows.get(id);
+                    if (rows == null) {
+                        mLiteralIdRows.put(id, new int[] {row});
+                    } else if (rows[rows.length - 1] != row) {
+                        // "anna|anna" lists the same rule twice
+                        final int[] grown = Arrays.copyOf(rows, rows.length + 1);
+                        grown[rows.length] = row;
+                        mLiteralIdRows.put(id, grown);
+                    }
+                }
+            }
+        }
+        mTimeFilteredRows = Arrays.copyOf(timeFilteredRows, timeFilteredCount);
+        mPatternIdRows = Arrays.copyOf(patternIdRows, patternIdCount);
+    }
+
+    private static long[] newBits(int size) {
+        return new long[(size + 63) >>> 6];
+    }
+
+    private static void setBit(long[] bits, int row) {
+        bits[row >>> 6] |= 1L << row;
+    }
+
+    /**
+     * @return the rules of category, in order
+     */
+    List<Rule> categoryRules(int category) {
+        return mRules.subList(mCategoryStarts[category], mCategoryStarts[category + 1]);
+    }
+
+    /**
+     * @param time - the current time in milliseconds
+     * @return the rules whose time filter passes during the minute containing time
+     */
+    long[] timeBits(long time) {
+        final long minute = TimeUnit.MILLISECONDS.toMinutes(time);
+        TimeBits timeBits = mTimeBits;
+        if (timeBits == null || timeBits.minute != minute) {
+            final long[] bits = mAnyTime.clone();
+            final TimeCondition.Fields fields = new TimeCondition.Fields(time);
+            for (final int row : mTimeFilteredRows) {
+                if (mRules.get(row).matchesTime(fields)) {
+                    setBit(bits, row);
+                }
+            }
+            timeBits = new TimeBits(minute, bits);
+            mTimeBits = timeBits;
+        }
+        return timeBits.bits;
+    }
+
+    /**
+     * @return the rules whose id filter passes for riderId
+     */
+    long[] idBits(String riderId) {
+        return riderEntry(riderId).idBits;
+    }
+
+    private RiderEntry riderEntry(String riderId) {
+        final long now = mRiderClock.incrementAndGet();
+        RiderEntry entry = mRiders.get(riderId);
+        if (entry == null) {
+            final long[] bits = mAnyId.clone();
+            final int[] literalIdRows = mLiteralIdRows.get(riderId);
+            if (literalIdRows != null) {
+                for (final int row : literalIdRows) {
+                    setBit(bits, row);
+                }
+            }
+            for (final int row : mPatternIdRows) {
+                if (mRules.get(row).matchesId(riderId)) {
+                    setBit(bits, row);
+                }
+            }
+            entry = new RiderEntry(bits, mCategoryBits.length);
+            if (mRiders.size() >= MAX_CACHED_RIDERS) {
+                evictLeastRecentlyUsed();
+            }
+            mRiders.put(riderId, entry);
+        }
+        entry.lastUsed = now;
+        return entry;
+    }
+
+    /**
+     * @param category - the category to pick from
+     * @param time - the current time in milliseconds
+     * @return a picker over the rules of category whose time filter passes at time
+     */
+    WeightedPicker timeCandidates(int category, long time) {
+        return select(category, timeBits(time), mAll, mAll, mAll);
+    }
+
+    /**
+     * @param category - the category to pick from
+     * @param riderId - a rider id
+     * @param time - the current time in milliseconds
+     * @param isLast - true if this rider's arrival emptied the manifest
+     * @param dejaVu - true if this rider was recently removed from the manifest
+     * @return a picker over the rules of category that match all of the above. It's built once
+     *          per rider, minute and flags, and reused for any further taps within that minute.
+     */
+    WeightedPicker candidates(int category, String riderId, long time, boolean isLast,
+            boolean dejaVu) {
+        final long minute = TimeUnit.MILLISECONDS.toMinutes(time);
+        final RiderEntry entry = riderEntry(riderId);
+        final int slot = category * FLAG_COMBINATIONS + (isLast ? 1 : 0) + (dejaVu ? 2 : 0);
+        Candidates candidates = entry.candidates[slot];
+        if (candidates == null || candidates.minute != minute) {
+            candidates = new Candidates(minute, select(category, timeBits(time), entry.idBits,
+                    isLast ? mAcceptsLast : mAcceptsNotLast,
+                    dejaVu ? mAcceptsDejaVu : mAcceptsNotDejaVu));
+            entry.candidates[slot] = candidates;
+        }
+        return candidates.picker;
+    }
+
+    /**
+     * The evaluation kernel: the rules of category whose bit is set in every filter, with their
+     * weights. Only the words covering category are visited.
+     */
+    private WeightedPicker select(int category, long[] timeBits, long[] idBits, long[] lastBits,
+            long[] dejaVuBits) {
+        final int start = mCategoryStarts[category];
+        final int end = mCategoryStarts[category + 1];
+        final WeightedPicker.Builder builder = new WeightedPicker.Builder(end - start);
+        if (start == end) {
+            return builder.build();
+        }
+        final long[] categoryBits = mCategoryBits[category];
+        final int lastWord = (end - 1) >>> 6;
+        for (int word = start >>> 6; word <= lastWord; word++) {
+            long bits = categoryBits[word] & timeBits[word] & idBits[word] & lastBits[word]
+                    & dejaVuBits[word];
+            while (bits != 0) {
+                final int row = (word << 6) + Long.numberOfTrailingZeros(bits);
+                builder.add(row - start, mWeights[row]);
+                bits &= bits - 1;
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the indexes, within category, of the rules whose id filter passes for riderId
+     */
+    @VisibleForTesting
+    int[] idMatches(int category, String riderId) {
+        final long[] bits = idBits(riderId);
+        final int start = mCategoryStarts[category];
+        final int end = mCategoryStarts[category + 1];
+        final int[] indexes = new int[end - start];
+        int count = 0;
+        for (int row = start; row < end; row++) {
+            if ((bits[row >>> 6] & (1L << row)) != 0) {
+                indexes[count++] = row - start;
+            }
+        }
+        return Arrays.copyOf(indexes, count);
+    }
+
+    private void evictLeastRecentlyUsed() {
+        String oldestRider = null;
+        long oldestUse = Long.MAX_VALUE;
+        for (final Map.Entry<String, RiderEntry> entry : mRiders.entrySet()) {
+            final long lastUsed = entry.getValue().lastUsed;
+            if (lastUsed < oldestUse) {
+                oldestUse = lastUsed;
+                oldestRider = entry.getKey();
+            }
+        }
+        if (oldestRider != null) {
+            mRiders.remove(oldestRider);
+        }
+    }
+
+    /**
+     * Fill the caches for the current minute and for the riders that were recently looked up in
+     * previous, so that the first taps after a reload take the fast path too
+     */
+    void warmUp(RuleTable previous, long time) {
+        timeBits(time);
+        for (final String riderId : previous.cachedRiderIds()) {
+            riderEntry(riderId);
+        }
+    }
+
+    Set<String> cachedRiderIds() {
+        return mRiders.keySet();
+    }
+
+    @VisibleForTesting
+    int cachedRiderCount() {
+        return mRiders.size();
+    }
+
+    @VisibleForTesting
+    int patternRuleCount() {
+        return mPatternIdRows.length;
+    }
+}
@@ -34,8 +34,14 @@ public class SettingsActivity extends PreferenceActivity implements
     public static final String PREF_MESSAGES_POLL_HOURS_DEFAULT = "4";
     public static final long MESSAGES_POLL_HOURS_DEFAULT = 4;
     public static final String PREF_MESSAGES_LAST_POLLED = "messages_last_polled";
+    public static final String PREF_SPEECH_CACHE_MB = "speech_cache_mb";
+    public static final String PREF_SPEECH_CACHE_MB_DEFAULT = "10";
+    public static final long SPEECH_CACHE_MB_DEFAULT = 10;
     public static final String PREF_ENABLE_READ_ONLY = "read_only_enabled";
     public static final boolean PREF_ENABLE_READ_ONLY_DEFAULT = false;
+    public static final String PREF_TAP_WINDOW_SECONDS = "tap_window_seconds";
+    public static final String PREF_TAP_WINDOW_SECONDS_DEFAULT = "3";
+    public static final int TAP_WINDOW_SECONDS_DEFAULT = 3;
     /**
      * Determines whether to always show the simplified settings UI, where
      * settings are presented in a single list. When false, settings are shown
@@ -62,6 +68,8 @@ public class SettingsActivity extends PreferenceActivity implements
         setupSimplePreferencesScreen();
         initializeSummary(PREF_MESSAGES_URL);
         initializeSummary(PREF_MESSAGES_POLL_HOURS);
+        initializeSummary(PREF_SPEECH_CACHE_MB);
+        initializeSummary(PREF_TAP_WINDOW_SECONDS);
     }
 
     /**
@@ -169,7 +177,8 @@ public class SettingsActivity extends PreferenceActivity implements
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-        if (PREF_MESSAGES_URL.equals(key) || PREF_MESSAGES_POLL_HOURS.equals(key)) {
+        if (PREF_MESSAGES_URL.equals(key) || PREF_MESSAGES_POLL_HOURS.equals(key)
+                || PREF_SPEECH_CACHE_MB.equals(key) || PREF_TAP_WINDOW_SECONDS.equals(key)) {
             Preference connectionPref = findPreference(key);
             connectionPref.setSummary(sharedPreferences.getString(key, ""));
         }
@@ -210,6 +219,8 @@ public class SettingsActivity extends PreferenceActivity implements
             // guidelines.
             bindPreferenceSummaryToValue(findPreference(PREF_MESSAGES_URL));
             bindPreferenceSummaryToValue(findPreference(PREF_MESSAGES_POLL_HOURS));
+            bindPreferenceSummaryToValue(findPreference(PREF_SPEECH_CACHE_MB));
+            bindPreferenceSummaryToValue(findPreference(PREF_TAP_WINDOW_SECONDS));
         }
     }
 }
@@ -0,0 +1,274 @@
+package net.bbuzz.busman;
+
+import android.speech.tts.TextToSpeech;
+import android.util.Log;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Announcements synthesized ahead of time into audio files, so that a tap can start playing
+ * right away instead of waiting for the TTS engine. Clips are kept in least recently used order
+ * and the oldest are deleted once their total size passes the disk budget.
+ *
+ * Synthesis needs an engine of its own: speaking with QUEUE_FLUSH on the live engine would
+ * throw away any synthesis queued behind it. Calls to that engine go to the TTS service, so
+ * they're made on a thread of their own and never while holding the lock that lookups take.
+ */
+class SpeechCache implements TextToSpeech.OnUtteranceCompletedListener {
+
+    private static final String TAG = "SpeechCache";
+
+    private static final String CLIP_SUFFIX = ".wav";
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    private final File mDir;
+    private long mBudgetBytes;
+    // clip file name -> size in bytes, least recently used first
+    private final LinkedHashMap<String, Long> mClips = new LinkedHashMap<>(16, 0.75f, true);
+    private long mTotalBytes;
+    // clips being synthesized
+    private final Set<String> mPending = new HashSet<>();
+    // clips played since their times on disk were last brought up to date, and when, so that
+    // the order survives a restart without touching the disk on each play
+    private LinkedHashMap<String, Long> mPlayed = new LinkedHashMap<>();
+    private TextToSpeech mEngine;
+    private final ExecutorService mSynthesizer = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "speech synthesis");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // used only on the synthesis thread: the language last set, and the engine it was set on
+    private Locale mEngineLocale;
+    private TextToSpeech mLocaleEngine;
+
+    /**
+     * @param dir - where to keep the clips; any left from before are picked up again
+     * @param budgetBytes - how much disk space the clips may take
+     */
+    SpeechCache(File dir, long budgetBytes) {
+        mDir = dir;
+        mBudgetBytes = budgetBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            if (Log.isLoggable(TAG, Log.WARN)) {
+                Log.w(TAG, "failed to create " + dir);
+            }
+            return;
+        }
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        // oldest first, so that they're the first to go
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                final long modified1 = file1.lastModified();
+                final long modified2 = file2.lastModified();
+                return modified1 < modified2 ? -1 : (modified1 == modified2 ? 0 : 1);
+            }
+        });
+        synchronized (this) {
+            for (final File file : files) {
+                if (file.getName().endsWith(CLIP_SUFFIX)) {
+                    addClip(file.getName(), file.length());
+                } else {
+                    file.delete();
+                }
+            }
+            evict();
+        }
+    }
+
+    /**
+     * @param engine - the engine to synthesize with, once it has been initialized; null to stop
+     *          synthesizing
+     */
+    synchronized void setEngine(TextToSpeech engine) {
+        mEngine = engine;
+        mPending.clear();
+        if (engine != null) {
+            engine.setOnUtteranceCompletedListener(this);
+        }
+    }
+
+    /**
+     * Stop synthesizing for good, and let the synthesis thread go
+     */
+    void release() {
+        setEngine(null);
+        mSynthesizer.shutdown();
+    }
+
+    synchronized void setBudget(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+        evict();
+    }
+
+    /**
+     * @param locale - the locale named by the message, or null for the default
+     * @return the clip for text, or null if it hasn't been synthesized
+     */
+    synchronized File get(String text, Locale locale) {
+        final String name = clipName(text, locale);
+        // moves the clip to the most recently used end
+        if (mClips.get(name) == null) {
+            return null;
+        }
+        mPlayed.remove(name);
+        mPlayed.put(name, System.currentTimeMillis());
+        return new File(mDir, name);
+    }
+
+    /**
+     * Start synthesizing text in the background, unless it's already cached or under way
+     *
+     * @param locale - the locale named by the message, or null for the default
+     */
+    void request(String text, Locale locale) {
+        final String name = clipName(text, locale);
+        final TextToSpeech engine;
+        synchronized (this) {
+            engine = mEngine;
+            if (engine == null || mClips.containsKey(name) || !mPending.add(name)) {
+                return;
+            }
+        }
+        final Locale engineLocale = locale == null ? Locale.getDefault() : locale;
+        try {
+            mSynthesizer.execute(synthesis(engine, text, engineLocale, name));
+        } catch (RejectedExecutionException e) {
+            // released since the engine was checked
+        }
+    }
+
+    private Runnable synthesis(final TextToSpeech engine, final String text,
+            final Locale engineLocale, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SpeechCache.this) {
+                    if (engine != mEngine) {
+                        // replaced or stopped while this waited
+                        return;
+                    }
+                }
+                if (engine != mLocaleEngine || !engineLocale.equals(mEngineLocale)) {
+                    engine.setLanguage(engineLocale);
+                    mLocaleEngine = engine;
+                    mEngineLocale = engineLocale;
+                }
+                final HashMap<String, String> params = new HashMap<>();
+                params.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, name);
+                final File partial = new File(mDir, name + PARTIAL_SUFFIX);
+                if (engine.synthesizeToFile(text, params, partial.getPath())
+                        != TextToSpeech.SUCCESS) {
+                    if (Log.isLoggable(TAG, Log.WARN)) {
+                        Log.w(TAG, "failed to queue synthesis of '" + text + "'");
+                    }
+                    synchronized (SpeechCache.this) {
+                        mPending.remove(name);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Called by the engine when a clip has been written, or has failed
+     */
+    @Override
+    public void onUtteranceCompleted(String name) {
+        final Map<String, Long> played;
+        synchronized (this) {
+            mPending.remove(name);
+            final File partial = new File(mDir, name + PARTIAL_SUFFIX);
+            final File clip = new File(mDir, name);
+            if (partial.length() == 0 || !partial.renameTo(clip)) {
+                if (Log.isLoggable(TAG, Log.WARN)) {
+                    Log.w(TAG, "failed to synthesize " + name);
+                }
+                partial.delete();
+            } else {
+                addClip(name, clip.length());
+                evict();
+            }
+            played = mPlayed;
+            mPlayed = new LinkedHashMap<>();
+        }
+        // on the engine's thread, and outside the lock, so that lookups never wait on the disk
+        for (final Map.Entry<String, Long> clip : played.entrySet()) {
+            new File(mDir, clip.getKey()).setLastModified(clip.getValue());
+        }
+    }
+
+    private void addClip(String name, long size) {
+        final Long oldSize = mClips.put(name, size);
+        mTotalBytes += size - (oldSize == null ? 0 : oldSize);
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<String, Long>> clips = mClips.entrySet().iterator();
+        while (mTotalBytes > mBudgetBytes && clips.hasNext()) {
+            final Map.Entry<String, Long> eldest = clips.next();
+            new File(mDir, eldest.getKey()).delete();
+            mPlayed.remove(eldest.getKey());
+            mTotalBytes -= eldest.getValue();
+            clips.remove();
+        }
+    }
+
+    synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * @return the clip file names, least recently used first
+     */
+    synchronized List<String> getClipNames() {
+        return Collections.unmodifiableList(new ArrayList<>(mClips.keySet()));
+    }
+
+    /**
+     * @return a file name that's the same for the same text and locale
+     */
+    static String clipName(String text, Locale locale) {
+        final String key = (locale == null ? "" : locale.toString()) + '\n' + text;
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // every Java platform has both
+            throw new IllegalStateException(e);
+        }
+        final StringBuilder name = new StringBuilder(digest.length * 2 + CLIP_SUFFIX.length());
+        for (final byte b : digest) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return name.append(CLIP_SUFFIX).toString();
+    }
+}
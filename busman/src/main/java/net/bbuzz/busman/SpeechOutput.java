@@ -0,0 +1,31 @@
+package net.bbuzz.busman;
+
+import java.util.Locale;
+
+/**
+ * Somewhere announcements are said. Keeping the announcement path apart from TextToSpeech lets
+ * it run, and be measured, without a device or a TTS engine.
+ */
+interface SpeechOutput {
+
+    interface Listener {
+        /**
+         * Called once the text has been said, or couldn't be
+         */
+        void onDone();
+    }
+
+    /**
+     * Start saying text, after anything already started
+     *
+     * @param locale - the locale named by the message, or null for the default
+     * @param pauseMs - how long to be silent first
+     * @param listener - called once on the thread that called say, unless output is stopped
+     */
+    void say(String text, Locale locale, long pauseMs, Listener listener);
+
+    /**
+     * Stop saying anything. The listener for what was being said won't be called.
+     */
+    void stop();
+}
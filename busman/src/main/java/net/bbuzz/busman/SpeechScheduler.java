@@ -0,0 +1,270 @@
+package net.bbuzz.busman;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Stands between the taps that cause announcements and the speech output, so that each
+ * announcement is said in full instead of being cut off by the next tap. Waiting announcements
+ * are kept in a bounded queue and said in order of priority, then arrival.
+ *
+ * When riders tap faster than their messages can be said, greetings of the same kind that are
+ * waiting together are merged into one, e.g., "Welcome Anna, Ben and Carl", and once the queue
+ * is full the least important announcement is dropped.
+ *
+ * Not thread-safe: use it from the UI thread.
+ */
+class SpeechScheduler {
+
+    private static final String TAG = "SpeechScheduler";
+
+    // lower numbers are said first
+    static final int PRIORITY_GO = 0;
+    static final int PRIORITY_WARNING = 1;
+    static final int PRIORITY_GREETING = 2;
+
+    // only greetings of the same kind are merged
+    static final int KIND_OTHER = 0;
+    static final int KIND_WELCOME = 1;
+    static final int KIND_RETURN = 2;
+    // the last rider's goodbye, picked for them by the messages file, so never merged
+    static final int KIND_LAST_RETURN = 3;
+    private static final int KIND_COUNT = 4;
+
+    // sets the go message off from the last goodbye
+    static final long GO_PAUSE_MS = 500;
+
+    static class Utterance {
+        final int priority;
+        final int kind;
+        final String text;
+        final Locale locale;  // null means the default locale
+        final String name;    // the rider's first name, or null
+        final long time;      // when it was asked for
+        final int count;      // how many announcements were merged into it
+
+        Utterance(int priority, int kind, String text, Locale locale, String name, long time) {
+            this(priority, kind, text, locale, name, time, 1);
+        }
+
+        private Utterance(int priority, int kind, String text, Locale locale, String name,
+                long time, int count) {
+            this.priority = priority;
+            this.kind = kind;
+            this.text = text;
+            this.locale = locale;
+            this.name = name;
+            this.time = time;
+            this.count = count;
+        }
+    }
+
+    private final SpeechOutput mOutput;
+    private final int mCapacity;
+    private final long mCoalesceWindowMs;
+    private final MessageTemplate[] mCoalescedTemplates = new MessageTemplate[KIND_COUNT];
+    private String mSeparator = ", ";
+    private String mLastSeparator = " and ";
+
+    // in order of arrival
+    private final List<Utterance> mQueue = new ArrayList<>();
+    private Utterance mSpeaking;
+    private int mMaxQueueDepth;
+    private int mDroppedCount;
+    private int mCoalescedCount;
+
+    private final SpeechOutput.Listener mDoneListener = new SpeechOutput.Listener() {
+        @Override
+        public void onDone() {
+            mSpeaking = null;
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "queue depth " + mQueue.size() + ", max " + mMaxQueueDepth
+                        + ", merged " + mCoalescedCount + ", dropped " + mDroppedCount);
+            }
+            if (!mQueue.isEmpty()) {
+                start(takeNext());
+            }
+        }
+    };
+
+    /**
+     * @param capacity - how many announcements may wait
+     * @param coalesceWindowMs - greetings asked for within this long of the first waiting one
+     *          are merged with it
+     */
+    SpeechScheduler(SpeechOutput output, int capacity, long coalesceWindowMs) {
+        mOutput = output;
+        mCapacity = capacity;
+        mCoalesceWindowMs = coalesceWindowMs;
+    }
+
+    /**
+     * @param kind - KIND_WELCOME or KIND_RETURN
+     * @param template - a message with a slot for the list of names, in the default locale;
+     *          null to never merge greetings of this kind
+     */
+    void setCoalescedTemplate(int kind, MessageTemplate template) {
+        mCoalescedTemplates[kind] = template;
+    }
+
+    /**
+     * @param separator - goes between names, e.g., ", "
+     * @param lastSeparator - goes before the last name, e.g., " and "
+     */
+    void setNameSeparators(String separator, String lastSeparator) {
+        mSeparator = separator;
+        mLastSeparator = lastSeparator;
+    }
+
+    /**
+     * Say utterance now if nothing else is being said, otherwise when its turn comes
+     */
+    void add(Utterance utterance) {
+        if (mSpeaking == null) {
+            start(utterance);
+            return;
+        }
+        if (mQueue.size() >= mCapacity) {
+            final int victim = leastImportant();
+            if (mQueue.get(victim).priority < utterance.priority) {
+                drop(utterance);
+                return;
+            }
+            drop(mQueue.remove(victim));
+        }
+        mQueue.add(utterance);
+        mMaxQueueDepth = Math.max(mMaxQueueDepth, mQueue.size());
+    }
+
+    /**
+     * Forget everything that's waiting, and stop what's being said
+     */
+    void clear() {
+        mQueue.clear();
+        mSpeaking = null;
+        mOutput.stop();
+    }
+
+    private void start(Utterance utterance) {
+        mSpeaking = utterance;
+        mOutput.say(utterance.text, utterance.locale,
+                utterance.priority == PRIORITY_GO ? GO_PAUSE_MS : 0, mDoneListener);
+    }
+
+    private void drop(Utterance utterance) {
+        mDroppedCount += utterance.count;
+        if (Log.isLoggable(TAG, Log.INFO)) {
+            Log.i(TAG, "dropped '" + utterance.text + "', " + mDroppedCount + " so far");
+        }
+    }
+
+    /**
+     * @return the index of the oldest of the lowest priority announcements waiting
+     */
+    private int leastImportant() {
+        int victim = 0;
+        for (int i = 1; i < mQueue.size(); i++) {
+            if (mQueue.get(i).priority > mQueue.get(victim).priority) {
+                victim = i;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Take the next announcement off the queue, merged with any greetings like it. The go
+     * message goes first, except that it waits for the goodbyes asked for before it, since
+     * it's the last of them that sets it off.
+     */
+    private Utterance takeNext() {
+        int next = 0;
+        for (int i = 1; i < mQueue.size(); i++) {
+            if (mQueue.get(i).priority < mQueue.get(next).priority) {
+                next = i;
+            }
+        }
+        if (mQueue.get(next).priority == PRIORITY_GO) {
+            for (int i = 0; i < next; i++) {
+                if (isReturn(mQueue.get(i).kind)) {
+                    next = i;
+                    break;
+                }
+            }
+        }
+        final Utterance first = mQueue.remove(next);
+        final MessageTemplate template = mCoalescedTemplates[first.kind];
+        if (template == null || first.locale != null || first.name == null) {
+            return first;
+        }
+        final List<String> names = new ArrayList<>();
+        names.add(first.name);
+        for (int i = next; i < mQueue.size(); ) {
+            final Utterance other = mQueue.get(i);
+            if (other.priority == PRIORITY_GO) {
+                // nothing asked for after the go message is said before it
+                break;
+            }
+            if (other.kind == first.kind && other.locale == null && other.name != null
+                    && other.time - first.time <= mCoalesceWindowMs) {
+                names.add(other.name);
+                mQueue.remove(i);
+            } else {
+                i++;
+            }
+        }
+        if (names.size() == 1) {
+            return first;
+        }
+        mCoalescedCount += names.size() - 1;
+        return new Utterance(first.priority, first.kind, template.render(joinNames(names)),
+                template.locale, null, first.time, names.size());
+    }
+
+    private static boolean isReturn(int kind) {
+        return kind == KIND_RETURN || kind == KIND_LAST_RETURN;
+    }
+
+    /**
+     * @return e.g., "Anna, Ben and Carl"
+     */
+    private String joinNames(List<String> names) {
+        final StringBuilder joined = new StringBuilder(names.get(0));
+        for (int i = 1; i < names.size(); i++) {
+            joined.append(i == names.size() - 1 ? mLastSeparator : mSeparator)
+                    .append(names.get(i));
+        }
+        return joined.toString();
+    }
+
+    boolean isSpeaking() {
+        return mSpeaking != null;
+    }
+
+    /**
+     * @return how many announcements are waiting
+     */
+    int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * @return how many announcements were never said because the queue was full
+     */
+    int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * @return how many announcements were said as part of another
+     */
+    int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+}
@@ -0,0 +1,117 @@
+package net.bbuzz.busman;
+
+import java.util.Arrays;
+
+/**
+ * Catches a tag read again right after it was read, e.g., when a rider holds their tag to the
+ * phone a moment too long, so the repeat never reaches the manifest or the announcements.
+ * A read is a repeat if the same rider was read for the same action (adding or dropping)
+ * within the window, to the second.
+ *
+ * Reads are kept in a ring of buckets, one for each second of the longest window, so the
+ * filter never holds more than that many seconds of reads and old ones need no sweeping: a
+ * bucket is emptied when its second comes round again.
+ *
+ * Not thread-safe: use it from the UI thread.
+ */
+final class TapFilter {
+
+    static final int MAX_WINDOW_SECONDS = 60;
+
+    private static final class Bucket {
+        long second = -1;
+        int size;
+        int[] reads = new int[4];  // rider handle * 2, plus 1 if adding
+    }
+
+    private final Bucket[] mBuckets = new Bucket[MAX_WINDOW_SECONDS + 1];
+    private int mWindowSeconds;
+    private long mSuppressedReads;
+
+    /**
+     * @param windowSeconds - how long a repeat read is ignored for; 0 lets every read through
+     */
+    TapFilter(int windowSeconds) {
+        for (int i = 0; i < mBuckets.length; i++) {
+            mBuckets[i] = new Bucket();
+        }
+        setWindowSeconds(windowSeconds);
+    }
+
+    /**
+     * @param windowSeconds - clamped to 0 through {@link #MAX_WINDOW_SECONDS}
+     */
+    void setWindowSeconds(int windowSeconds) {
+        mWindowSeconds = Math.max(0, Math.min(windowSeconds, MAX_WINDOW_SECONDS));
+    }
+
+    /**
+     * Notes a read, and checks it against the reads before it. A repeat is noted too, once a
+     * second, so a tag left on the phone keeps being ignored.
+     *
+     * @param riderHandle - from {@link RiderRegistry}
+     * @param adding - true if the read would add the rider, false if it would drop them
+     * @param nowMs - a clock that only goes forward, such as SystemClock.elapsedRealtime()
+     * @return true if the read should be ignored
+     */
+    boolean isRepeat(int riderHandle, boolean adding, long nowMs) {
+        if (mWindowSeconds == 0) {
+            return false;
+        }
+        final int read = riderHandle * 2 + (adding ? 1 : 0);
+        final long nowSecond = nowMs / 1000;
+        // the latest second this read was seen in, looking from now back
+        long lastSecond = Long.MIN_VALUE;
+        for (long second = nowSecond; second >= nowSecond - mWindowSeconds
+                && lastSecond == Long.MIN_VALUE; second--) {
+            final Bucket bucket = bucketFor(second);
+            if (bucket.second == second) {
+                for (int i = 0; i < bucket.size; i++) {
+                    if (bucket.reads[i] == read) {
+                        lastSecond = second;
+                        break;
+                    }
+                }
+            }
+        }
+        final boolean repeat = lastSecond != Long.MIN_VALUE;
+        if (repeat) {
+            mSuppressedReads++;
+        }
+        if (!repeat || lastSecond < nowSecond) {
+            final Bucket bucket = bucketFor(nowSecond);
+            if (bucket.second != nowSecond) {
+                bucket.second = nowSecond;
+                bucket.size = 0;
+            }
+            if (bucket.size == bucket.reads.length) {
+                bucket.reads = Arrays.copyOf(bucket.reads, bucket.size * 2);
+            }
+            bucket.reads[bucket.size++] = read;
+        }
+        return repeat;
+    }
+
+    /**
+     * Forgets every read, e.g., when the bus switches between adding and dropping riders, so
+     * the next read is never taken for a repeat
+     */
+    void clear() {
+        for (final Bucket bucket : mBuckets) {
+            bucket.second = -1;
+            bucket.size = 0;
+        }
+    }
+
+    /**
+     * @return how many reads have been ignored as repeats
+     */
+    long getSuppressedReads() {
+        return mSuppressedReads;
+    }
+
+    private Bucket bucketFor(long second) {
+        final int index = (int) (second % mBuckets.length);
+        return mBuckets[index < 0 ? index + mBuckets.length : index];
+    }
+}
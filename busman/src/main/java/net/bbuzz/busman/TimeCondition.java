@@ -0,0 +1,187 @@
+package net.bbuzz.busman;
+
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A message's "when" clause, compiled into integer ranges that are compared against calendar
+ * fields worked out once per minute. Every part of the clause is optional, and all of the parts
+ * that are given must match.
+ */
+class TimeCondition {
+
+    private static final String[] DAY_NAMES = {"sun", "mon", "tue", "wed", "thu", "fri", "sat"};
+
+    /**
+     * Thrown when a "when" clause has a value we can't make sense of
+     */
+    static class MalformedConditionException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        MalformedConditionException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The calendar fields of one minute, in the default time zone
+     */
+    static class Fields {
+        final long time;
+        final int dayOfWeekBit;  // 1 << (Calendar.DAY_OF_WEEK - Calendar.SUNDAY)
+        final int date;          // yyyymmdd
+        final int month;         // 1 - 12
+        final int dayOfMonth;
+        final int minuteOfDay;
+        private String mTimeString;
+
+        Fields(long time) {
+            this.time = time;
+            final Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(time);
+            dayOfWeekBit = 1 << (calendar.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY);
+            month = calendar.get(Calendar.MONTH) - Calendar.JANUARY + 1;
+            dayOfMonth = calendar.get(Calendar.DAY_OF_MONTH);
+            date = calendar.get(Calendar.YEAR) * 10000 + month * 100 + dayOfMonth;
+            minuteOfDay = calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+        }
+
+        /**
+         * @return the time formatted for timeRegexp, which is only done if a rule asks for it
+         */
+        String timeString() {
+            if (mTimeString == null) {
+                mTimeString = RiderMessages.timeString(time);
+            }
+            return mTimeString;
+        }
+    }
+
+    private final int mDaysOfWeek;  // bits as in Fields.dayOfWeekBit; 0 matches every day
+    private final int mFromDate;
+    private final int mToDate;
+    private final int mFromMinute;
+    private final int mToMinute;
+    private final int mMonth;       // 0 matches every month
+    private final int mDayOfMonth;  // 0 matches every day
+
+    private TimeCondition(int daysOfWeek, int fromDate, int toDate, int fromMinute, int toMinute,
+            int month, int dayOfMonth) {
+        mDaysOfWeek = daysOfWeek;
+        mFromDate = fromDate;
+        mToDate = toDate;
+        mFromMinute = fromMinute;
+        mToMinute = toMinute;
+        mMonth = month;
+        mDayOfMonth = dayOfMonth;
+    }
+
+    /**
+     * @param daysOfWeek - e.g., "Sat,Sun"; empty for every day
+     * @param fromDate - "yyyy-mm-dd", the first day that matches; empty for no limit
+     * @param toDate - "yyyy-mm-dd", the last day that matches; empty for no limit
+     * @param fromTime - "hh:mm", the first minute of each day that matches; empty for midnight
+     * @param toTime - "hh:mm", the last minute of each day that matches; empty for 23:59. If
+     *          it's earlier than fromTime, the range runs past midnight.
+     * @param month - 1 - 12, or 0 for every month
+     * @param dayOfMonth - 1 - 31, or 0 for every day
+     * @throws MalformedConditionException if a value is badly formed
+     */
+    static TimeCondition compile(String daysOfWeek, String fromDate, String toDate,
+            String fromTime, String toTime, int month, int dayOfMonth)
+            throws MalformedConditionException {
+        if (month < 0 || month > 12) {
+            throw new MalformedConditionException("bad month " + month);
+        }
+        if (dayOfMonth < 0 || dayOfMonth > 31) {
+            throw new MalformedConditionException("bad day " + dayOfMonth);
+        }
+        return new TimeCondition(parseDaysOfWeek(daysOfWeek),
+                fromDate.isEmpty() ? Integer.MIN_VALUE : parseDate(fromDate),
+                toDate.isEmpty() ? Integer.MAX_VALUE : parseDate(toDate),
+                fromTime.isEmpty() ? 0 : parseTime(fromTime),
+                toTime.isEmpty() ? (int) TimeUnit.DAYS.toMinutes(1) - 1 : parseTime(toTime),
+                month, dayOfMonth);
+    }
+
+    private static int parseDaysOfWeek(String daysOfWeek) {
+        int days = 0;
+        if (daysOfWeek.trim().isEmpty()) {
+            return days;
+        }
+        for (final String day : daysOfWeek.split(",")) {
+            final String name = day.trim().toLowerCase(Locale.US);
+            int found = -1;
+            for (int i = 0; i < DAY_NAMES.length; i++) {
+                if (name.length() >= 3 && name.startsWith(DAY_NAMES[i])) {
+                    found = i;
+                    break;
+                }
+            }
+            if (found < 0) {
+                throw new MalformedConditionException("bad day of week '" + day + "'");
+            }
+            days |= 1 << found;
+        }
+        return days;
+    }
+
+    /**
+     * @return "yyyy-mm-dd" as yyyymmdd
+     */
+    private static int parseDate(String date) {
+        final String[] parts = date.trim().split("-");
+        if (parts.length != 3) {
+            throw new MalformedConditionException("bad date '" + date + "'");
+        }
+        final int year = parseField(parts[0], 0, 9999, date);
+        final int month = parseField(parts[1], 1, 12, date);
+        final int day = parseField(parts[2], 1, 31, date);
+        return year * 10000 + month * 100 + day;
+    }
+
+    /**
+     * @return "hh:mm" as minutes since midnight
+     */
+    private static int parseTime(String time) {
+        final String[] parts = time.trim().split(":");
+        if (parts.length != 2) {
+            throw new MalformedConditionException("bad time '" + time + "'");
+        }
+        return parseField(parts[0], 0, 23, time) * 60 + parseField(parts[1], 0, 59, time);
+    }
+
+    private static int parseField(String field, int min, int max, String value) {
+        final int result;
+        try {
+            result = Integer.parseInt(field);
+        } catch (NumberFormatException e) {
+            throw new MalformedConditionException("bad value '" + value + "'");
+        }
+        if (result < min || result > max) {
+            throw new MalformedConditionException("out of range '" + value + "'");
+        }
+        return result;
+    }
+
+    boolean matches(Fields fields) {
+        if (mDaysOfWeek != 0 && (mDaysOfWeek & fields.dayOfWeekBit) == 0) {
+            return false;
+        }
+        if (fields.date < mFromDate || fields.date > mToDate) {
+            return false;
+        }
+        if (mMonth != 0 && fields.month != mMonth) {
+            return false;
+        }
+        if (mDayOfMonth != 0 && fields.dayOfMonth != mDayOfMonth) {
+            return false;
+        }
+        if (mFromMinute <= mToMinute) {
+            return fields.minuteOfDay >= mFromMinute && fields.minuteOfDay <= mToMinute;
+        }
+        // e.g., 22:00 - 02:00
+        return fields.minuteOfDay >= mFromMinute || fields.minuteOfDay <= mToMinute;
+    }
+}
@@ -0,0 +1,129 @@
+package net.bbuzz.busman;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.speech.tts.TextToSpeech;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One TextToSpeech engine for each locale the messages name, each set to its language once when
+ * it starts. Choosing an engine per phrase means a live engine never has to switch languages,
+ * which can be slow and can hold up the next utterance.
+ *
+ * An engine is only handed out once it has initialized and its language has been found to be
+ * available. Until then, and for languages that aren't available, there's no engine for the
+ * locale.
+ */
+class TtsPool {
+
+    private static final String TAG = "TtsPool";
+
+    private final Context mContext;
+    private final TextToSpeech.OnUtteranceCompletedListener mListener;
+    // every engine started, whether or not it turned out to be usable
+    private final Map<Locale, TextToSpeech> mStarted = new HashMap<>();
+    private final Map<Locale, TextToSpeech> mReady = new ConcurrentHashMap<>();
+    private boolean mIsShutDown;
+
+    /**
+     * @param listener - told when each engine finishes an utterance
+     */
+    TtsPool(Context context, TextToSpeech.OnUtteranceCompletedListener listener) {
+        mContext = context;
+        mListener = listener;
+    }
+
+    /**
+     * Start an engine for each locale that doesn't have one yet
+     */
+    synchronized void addLocales(Collection<Locale> locales) {
+        if (mIsShutDown) {
+            return;
+        }
+        for (final Locale locale : locales) {
+            if (!mStarted.containsKey(locale)) {
+                final EngineStarter starter = new EngineStarter(locale);
+                starter.mEngine = new TextToSpeech(mContext, starter);
+                mStarted.put(locale, starter.mEngine);
+            }
+        }
+    }
+
+    /**
+     * @return the engine for locale, or null if there isn't one ready
+     */
+    TextToSpeech get(Locale locale) {
+        return mReady.get(locale);
+    }
+
+    /**
+     * @return the engines that are ready
+     */
+    List<TextToSpeech> getReady() {
+        return new ArrayList<>(mReady.values());
+    }
+
+    synchronized void shutdown() {
+        mIsShutDown = true;
+        mReady.clear();
+        for (final TextToSpeech engine : mStarted.values()) {
+            engine.stop();
+            engine.shutdown();
+        }
+        mStarted.clear();
+    }
+
+    /**
+     * Checks the language and sets it once the engine has initialized. That's done off the
+     * UI thread, where onInit is called, since it can be slow.
+     */
+    private class EngineStarter implements TextToSpeech.OnInitListener {
+        private final Locale mLocale;
+        private TextToSpeech mEngine;
+
+        EngineStarter(Locale locale) {
+            mLocale = locale;
+        }
+
+        @Override
+        public void onInit(int status) {
+            if (status != TextToSpeech.SUCCESS) {
+                if (Log.isLoggable(TAG, Log.WARN)) {
+                    Log.w(TAG, "failed to start TTS for " + mLocale + ", status " + status);
+                }
+                return;
+            }
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final int availability = mEngine.isLanguageAvailable(mLocale);
+                    if (availability < TextToSpeech.LANG_AVAILABLE
+                            || mEngine.setLanguage(mLocale) < TextToSpeech.LANG_AVAILABLE) {
+                        if (Log.isLoggable(TAG, Log.WARN)) {
+                            Log.w(TAG, "TTS language " + mLocale + " not available, result "
+                                    + availability);
+                        }
+                        return;
+                    }
+                    mEngine.setOnUtteranceCompletedListener(mListener);
+                    synchronized (TtsPool.this) {
+                        if (!mIsShutDown) {
+                            mReady.put(mLocale, mEngine);
+                        }
+                    }
+                    if (Log.isLoggable(TAG, Log.INFO)) {
+                        Log.i(TAG, "TTS ready for " + mLocale);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package net.bbuzz.busman;
+
+import android.content.Context;
+import android.os.Handler;
+import android.speech.tts.TextToSpeech;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Speaks live with TextToSpeech: phrases in the default locale on the default engine, and
+ * others on an engine of their own from a {@link TtsPool}. No engine's language is ever
+ * switched, so a phrase in a locale whose engine isn't ready is spoken by the default engine.
+ */
+class TtsSpeechOutput implements SpeechOutput, TextToSpeech.OnUtteranceCompletedListener {
+
+    private static final String TAG = "TtsSpeechOutput";
+
+    // the longest an utterance can take before it's taken to be done anyway
+    private static final long MAX_UTTERANCE_MS = 15000;
+
+    private final TextToSpeech mEngine;
+    private final Locale mDefaultLocale;
+    private final Handler mHandler;
+    private final TtsPool mPool;
+    private final HashMap<String, String> mParams = new HashMap<>();
+    private int mLastUtterance;
+    // the utterance being spoken, and who to tell when it's done
+    private String mAwaitedUtterance;
+    private Listener mListener;
+
+    // in case an utterance never reports that it's done
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (Log.isLoggable(TAG, Log.WARN)) {
+                Log.w(TAG, "gave up waiting for utterance " + mAwaitedUtterance);
+            }
+            finish();
+        }
+    };
+
+    /**
+     * @param engine - the engine for the default locale. Call
+     *          setOnUtteranceCompletedListener(this) on it once it has initialized.
+     * @param handler - where listeners are called
+     */
+    TtsSpeechOutput(Context context, TextToSpeech engine, Locale defaultLocale,
+            Handler handler) {
+        mEngine = engine;
+        mDefaultLocale = defaultLocale;
+        mHandler = handler;
+        mPool = new TtsPool(context, this);
+    }
+
+    /**
+     * Start an engine for each of locales that needs one
+     */
+    void addLocales(Collection<Locale> locales) {
+        final Set<Locale> others = new HashSet<>(locales);
+        others.remove(mDefaultLocale);
+        mPool.addLocales(others);
+    }
+
+    @Override
+    public void say(String text, Locale locale, long pauseMs, Listener listener) {
+        final TextToSpeech engine = engineFor(locale);
+        if (pauseMs > 0) {
+            engine.playSilence(pauseMs, TextToSpeech.QUEUE_ADD, null);
+        }
+        mAwaitedUtterance = Integer.toString(++mLastUtterance);
+        mListener = listener;
+        mParams.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, mAwaitedUtterance);
+        mHandler.postDelayed(mTimeout, MAX_UTTERANCE_MS + pauseMs);
+        if (engine.speak(text, TextToSpeech.QUEUE_ADD, mParams) != TextToSpeech.SUCCESS) {
+            finish();
+        }
+    }
+
+    /**
+     * @param phraseLocale - the locale named by the message, or null for the default
+     */
+    private TextToSpeech engineFor(final Locale phraseLocale) {
+        if (phraseLocale == null || phraseLocale.equals(mDefaultLocale)) {
+            return mEngine;
+        }
+        final TextToSpeech engine = mPool.get(phraseLocale);
+        if (engine == null) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "no TTS ready for " + phraseLocale);
+            }
+            return mEngine;
+        }
+        return engine;
+    }
+
+    /**
+     * Called by an engine, on a thread of its own
+     */
+    @Override
+    public void onUtteranceCompleted(final String utteranceId) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (utteranceId.equals(mAwaitedUtterance)) {
+                    finish();
+                }
+            }
+        });
+    }
+
+    private void finish() {
+        mHandler.removeCallbacks(mTimeout);
+        mAwaitedUtterance = null;
+        final Listener listener = mListener;
+        mListener = null;
+        if (listener != null) {
+            listener.onDone();
+        }
+    }
+
+    @Override
+    public void stop() {
+        mHandler.removeCallbacks(mTimeout);
+        mAwaitedUtterance = null;
+        mListener = null;
+        mEngine.stop();
+        for (final TextToSpeech engine : mPool.getReady()) {
+            engine.stop();
+        }
+    }
+
+    /**
+     * Stop and release the pooled engines; the default engine belongs to the caller
+     */
+    void shutdown() {
+        stop();
+        mPool.shutdown();
+    }
+}
@@ -0,0 +1,138 @@
+package net.bbuzz.busman;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Makes weighted random picks from a fixed set of values. The cumulative weights are computed
+ * once, when the picker is built, so each pick is a binary search rather than a scan.
+ */
+class WeightedPicker {
+
+    static final int NONE = -1;
+
+    static final WeightedPicker EMPTY = new WeightedPicker(new int[0], new int[0], 0);
+
+    private final int[] mValues;
+    private final int[] mCumulativeWeights;
+    final int totalWeight;
+
+    private WeightedPicker(int[] values, int[] cumulativeWeights, int totalWeight) {
+        mValues = values;
+        mCumulativeWeights = cumulativeWeights;
+        this.totalWeight = totalWeight;
+    }
+
+    /**
+     * Collects the values and weights for a {@link WeightedPicker}
+     */
+    static class Builder {
+        private int[] mValues;
+        private int[] mCumulativeWeights;
+        private int mCount;
+        private int mTotalWeight;
+
+        Builder(int expectedSize) {
+            mValues = new int[Math.max(expectedSize, 1)];
+            mCumulativeWeights = new int[mValues.length];
+        }
+
+        /**
+         * @param value - a non-negative value to be picked; values must be added in ascending
+         *          order
+         * @param weight - the value's selection weight; negative weights count as zero
+         */
+        Builder add(int value, int weight) {
+            if (mCount == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mCount * 2);
+                mCumulativeWeights = Arrays.copyOf(mCumulativeWeights, mCount * 2);
+            }
+            mTotalWeight += Math.max(weight, 0);
+            mValues[mCount] = value;
+            mCumulativeWeights[mCount] = mTotalWeight;
+            mCount++;
+            return this;
+        }
+
+        WeightedPicker build() {
+            if (mCount == 0) {
+                return EMPTY;
+            }
+            return new WeightedPicker(Arrays.copyOf(mValues, mCount),
+                    Arrays.copyOf(mCumulativeWeights, mCount), mTotalWeight);
+        }
+    }
+
+    /**
+     * @return the values that can be picked, in ascending order
+     */
+    int[] values() {
+        return mValues.clone();
+    }
+
+    /**
+     * @return true if value could be picked
+     */
+    boolean contains(int value) {
+        final int position = Arrays.binarySearch(mValues, value);
+        return position >= 0
+                && mCumulativeWeights[position] > (position == 0 ? 0
+                        : mCumulativeWeights[position - 1]);
+    }
+
+    /**
+     * @return a value chosen with probability proportional to its weight, or NONE if the total
+     *          weight is zero
+     */
+    int pick(Random random) {
+        if (totalWeight <= 0) {
+            return NONE;
+        }
+        return mValues[positionOf(random.nextInt(totalWeight))];
+    }
+
+    /**
+     * Picks as {@link #pick(Random)} does, except that excludedValue is never chosen. The other
+     * values keep their relative probabilities.
+     *
+     * @param excludedValue - a value to leave out, or NONE
+     * @return the chosen value, or NONE if nothing other than excludedValue has any weight
+     */
+    int pick(Random random, int excludedValue) {
+        final int excludedPosition =
+                excludedValue == NONE ? -1 : Arrays.binarySearch(mValues, excludedValue);
+        if (excludedPosition < 0) {
+            return pick(random);
+        }
+        final int excludedStart =
+                excludedPosition == 0 ? 0 : mCumulativeWeights[excludedPosition - 1];
+        final int excludedWeight = mCumulativeWeights[excludedPosition] - excludedStart;
+        final int remainingWeight = totalWeight - excludedWeight;
+        if (remainingWeight <= 0) {
+            return NONE;
+        }
+        int target = random.nextInt(remainingWeight);
+        if (target >= excludedStart) {
+            // skip over the excluded value's share of the range
+            target += excludedWeight;
+        }
+        return mValues[positionOf(target)];
+    }
+
+    /**
+     * @return the first position whose cumulative weight exceeds target
+     */
+    private int positionOf(int target) {
+        int low = 0;
+        int high = mCumulativeWeights.length - 1;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mCumulativeWeights[mid] > target) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+}